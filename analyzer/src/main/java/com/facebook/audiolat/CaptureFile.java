@@ -0,0 +1,164 @@
+package com.facebook.audiolat;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+// Read-only capture file, either raw or a wav (RIFF or RF64, as written by
+// WavFileWriter or by ffmpeg), in any SampleFormat. The samples are
+// memory-mapped by ranges of frames, so files of any size can be split into
+// chunks and analyzed in parallel (FileChannel.map() is thread-safe).
+public class CaptureFile implements Closeable {
+  private static final int RIFF = 0x46464952;
+  private static final int RF64 = 0x34364652;
+  private static final int FMT = 0x20746d66;
+  private static final int DS64 = 0x34367364;
+  private static final int DATA = 0x61746164;
+  private static final int FORMAT_EXTENSIBLE = 0xfffe;
+
+  private final String mPath;
+  private final FileInputStream mStream;
+  private final FileChannel mChannel;
+  private long mDataOffset = 0;
+  private long mDataSize;
+  private int mChannelCount;
+  private int mSampleFormat;
+  // 0 for raw files
+  private int mSampleRate = 0;
+
+  // `rawChannelCount` and `rawSampleFormat` are only used for raw files
+  public CaptureFile(String path, int rawChannelCount, int rawSampleFormat) throws IOException {
+    mPath = path;
+    mStream = new FileInputStream(path);
+    mChannel = mStream.getChannel();
+    mDataSize = mChannel.size();
+    mChannelCount = rawChannelCount;
+    mSampleFormat = rawSampleFormat;
+    try {
+      readHeader();
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  private void readHeader() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+    mChannel.read(header, 0);
+    if (header.position() < 12
+        || (header.getInt(0) != RIFF && header.getInt(0) != RF64)) {
+      // raw
+      return;
+    }
+    long fileSize = mChannel.size();
+    long ds64DataSize = -1;
+    boolean format = false;
+    ByteBuffer chunk = ByteBuffer.allocate(8 + 28).order(ByteOrder.LITTLE_ENDIAN);
+    long position = 12;
+    while (position + 8 <= fileSize) {
+      chunk.clear();
+      mChannel.read(chunk, position);
+      int id = chunk.getInt(0);
+      long size = chunk.getInt(4) & 0xffffffffL;
+      if (id == DS64) {
+        ds64DataSize = chunk.getLong(8 + 8);
+      } else if (id == FMT) {
+        int tag = chunk.getShort(8) & 0xffff;
+        int bits = chunk.getShort(8 + 14);
+        mSampleFormat = getSampleFormat(tag, bits);
+        if (mSampleFormat < 0) {
+          throw new IOException(mPath + ": unsupported format " + tag + " (" + bits + " bits)");
+        }
+        mChannelCount = chunk.getShort(8 + 2);
+        mSampleRate = chunk.getInt(8 + 4);
+        if (mChannelCount < 1) {
+          throw new IOException(mPath + ": no channels");
+        }
+        format = true;
+      } else if (id == DATA) {
+        if (!format) {
+          throw new IOException(mPath + ": no fmt chunk before the data");
+        }
+        mDataOffset = position + 8;
+        if (size == 0xffffffffL && ds64DataSize >= 0) {
+          size = ds64DataSize;
+        }
+        // the file can be shorter (e.g. a capture cut short)
+        mDataSize = Math.min(size, fileSize - mDataOffset);
+        return;
+      }
+      // chunks are padded to an even size
+      position += 8 + size + (size & 1);
+    }
+    throw new IOException(mPath + ": no data chunk");
+  }
+
+  // -1 if not supported (extensible formats are taken as integer PCM)
+  private static int getSampleFormat(int tag, int bits) {
+    if (tag == WavFileWriter.WAVE_FORMAT_IEEE_FLOAT) {
+      return (bits == 32) ? SampleFormat.PCM_FLOAT : -1;
+    }
+    if (tag != WavFileWriter.WAVE_FORMAT_PCM && tag != FORMAT_EXTENSIBLE) {
+      return -1;
+    }
+    switch (bits) {
+      case 16:
+        return SampleFormat.PCM_16;
+      case 24:
+        return SampleFormat.PCM_24_PACKED;
+      default:
+        return -1;
+    }
+  }
+
+  public String getPath() {
+    return mPath;
+  }
+
+  public int getChannelCount() {
+    return mChannelCount;
+  }
+
+  public int getSampleRate() {
+    return mSampleRate;
+  }
+
+  public int getSampleFormat() {
+    return mSampleFormat;
+  }
+
+  public int getFrameSizeInBytes() {
+    return SampleFormat.getBytesPerSample(mSampleFormat) * mChannelCount;
+  }
+
+  public long getFrames() {
+    return mDataSize / getFrameSizeInBytes();
+  }
+
+  // frames [firstFrame, firstFrame + frames), interleaved
+  public ByteBuffer map(long firstFrame, long frames) throws IOException {
+    int frameSize = getFrameSizeInBytes();
+    ByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_ONLY,
+        mDataOffset + firstFrame * frameSize, frames * frameSize);
+    return buffer.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  // one channel of the whole file, as floats in [-1, 1] (e.g. a signal
+  // template)
+  public float[] readChannel(int channel) throws IOException {
+    int frames = (int) getFrames();
+    float[] samples = new float[frames];
+    SampleFormat.toFloats(mSampleFormat, map(0, frames),
+        SampleFormat.getBytesPerSample(mSampleFormat) * channel, frames, getFrameSizeInBytes(),
+        samples, 0);
+    return samples;
+  }
+
+  @Override
+  public void close() throws IOException {
+    mStream.close();
+  }
+}
@@ -0,0 +1,625 @@
+package com.facebook.audiolat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Host-side analyzer of capture archives (raw or wav files), on a
+// plain JVM. It finds the begin and end signals with the same matched filter
+// (StreamingCorrelator) and pairing rule as the on-line LatencyDetector, so
+// off-line and on-line results can be compared directly.
+//
+// Every capture is memory-mapped and split into chunks, which are analyzed
+// in parallel on a fork-join pool (one task per chunk, so a few long soak
+// captures use all the cores as well as many short ones). Each chunk is
+// extended by a margin on both sides, so that the correlators are settled at
+// its edges, but only keeps the pulses that start inside it. Pulses are then
+// paired per capture, and written to a consolidated CSV (pulses and delays)
+// and a JSON summary.
+//
+// $ ./gradlew :analyzer:installDist
+// $ ./analyzer/build/install/analyzer/bin/analyzer \
+//     -b app/src/main/res/raw/begin_signal.raw \
+//     -e app/src/main/res/raw/chirp2_48k_300ms.raw -o results captures/
+public class OfflineAnalyzer {
+  private static final int DEFAULT_SAMPLE_RATE = 48000;
+  private static final double DEFAULT_MAX_DELAY_MS = 1000.0;
+  // minimum distance between pulses of the same signal
+  private static final int DEFAULT_HOLD_MS = 100;
+  private static final int DEFAULT_CHUNK_SECONDS = 30;
+  private static final int SCRATCH_SIZE = 4096;
+
+  private static class Pulse {
+    final long frame;
+    final double fraction;
+    final float score;
+
+    Pulse(long frame, double fraction, float score) {
+      this.frame = frame;
+      this.fraction = fraction;
+      this.score = score;
+    }
+  }
+
+  private static class Capture {
+    final String path;
+    CaptureFile file;
+    int sampleRate;
+    long frames;
+    int chunkCount;
+    // per chunk, filled by the chunk tasks
+    List<List<Pulse>> beginPulses;
+    List<List<Pulse>> endPulses;
+    String[] chunkErrors;
+    String error;
+    // after pairing
+    List<Pulse> begins = new ArrayList<>();
+    List<Pulse> ends = new ArrayList<>();
+    // begin frame, end frame, delay and score of every pair
+    long[] pairBegins = new long[0];
+    long[] pairEnds = new long[0];
+    double[] pairDelays = new double[0];
+    float[] pairScores = new float[0];
+    int pairCount = 0;
+
+    Capture(String path) {
+      this.path = path;
+    }
+  }
+
+  private String mBeginPath;
+  private String mEndPath;
+  private int mRawSampleRate = DEFAULT_SAMPLE_RATE;
+  private int mRawSampleFormat = SampleFormat.PCM_16;
+  // 1 or 2 for stereo captures with that reference channel, 0 for mono
+  private int mReferenceChannel = 0;
+  private float mThreshold = LatencyDetector.DEFAULT_THRESHOLD;
+  private double mMaxDelayMs = DEFAULT_MAX_DELAY_MS;
+  private int mHoldMs = DEFAULT_HOLD_MS;
+  private int mChunkSeconds = DEFAULT_CHUNK_SECONDS;
+  private int mThreads = Runtime.getRuntime().availableProcessors();
+  private String mOutputPrefix = "analysis";
+  private final List<String> mInputs = new ArrayList<>();
+
+  private float[] mBeginTemplate;
+  private float mBeginThreshold;
+  private float[] mEndTemplate;
+  private int mTemplateSampleRate;
+
+  private static void usage() {
+    System.err.println("usage: analyzer [options] <capture|directory>...");
+    System.err.println("  -b <file>     begin signal (raw s16le or wav)");
+    System.err.println("  -e <file>     end signal (raw s16le or wav)");
+    System.err.println("  -c <1|2>      stereo captures, with that reference channel "
+        + "(no begin signal)");
+    System.err.println("  -r <rate>     sample rate of raw files [" + DEFAULT_SAMPLE_RATE + "]");
+    System.err.println("  -f <format>   sample format of raw captures (s16, float, s24) [s16]");
+    System.err.println("  -t <score>    end signal threshold [" + LatencyDetector.DEFAULT_THRESHOLD
+        + "]");
+    System.err.println("  -d <ms>       maximum delay [" + DEFAULT_MAX_DELAY_MS + "]");
+    System.err.println("  -m <ms>       minimum distance between pulses [" + DEFAULT_HOLD_MS + "]");
+    System.err.println("  -k <seconds>  chunk length [" + DEFAULT_CHUNK_SECONDS + "]");
+    System.err.println("  -j <threads>  parallelism [number of cores]");
+    System.err.println("  -o <prefix>   output: <prefix>.csv (delays), <prefix>.pulses.csv, "
+        + "<prefix>.json [analysis]");
+    System.exit(1);
+  }
+
+  public static void main(String[] args) {
+    OfflineAnalyzer analyzer = new OfflineAnalyzer();
+    try {
+      analyzer.parseArgs(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      usage();
+    }
+    try {
+      analyzer.run();
+    } catch (IOException e) {
+      System.err.println("error: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  private void parseArgs(String[] args) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (!arg.startsWith("-") || arg.length() == 1) {
+        mInputs.add(arg);
+        continue;
+      }
+      if (i + 1 == args.length) {
+        throw new IllegalArgumentException("missing value for " + arg);
+      }
+      String value = args[++i];
+      switch (arg) {
+        case "-b":
+          mBeginPath = value;
+          break;
+        case "-e":
+          mEndPath = value;
+          break;
+        case "-c":
+          mReferenceChannel = Integer.parseInt(value);
+          break;
+        case "-r":
+          mRawSampleRate = Integer.parseInt(value);
+          break;
+        case "-f":
+          mRawSampleFormat = SampleFormat.getFormat(value);
+          if (mRawSampleFormat < 0) {
+            throw new IllegalArgumentException("unsupported format: " + value);
+          }
+          break;
+        case "-t":
+          mThreshold = Float.parseFloat(value);
+          break;
+        case "-d":
+          mMaxDelayMs = Double.parseDouble(value);
+          break;
+        case "-m":
+          mHoldMs = Integer.parseInt(value);
+          break;
+        case "-k":
+          mChunkSeconds = Integer.parseInt(value);
+          break;
+        case "-j":
+          mThreads = Integer.parseInt(value);
+          break;
+        case "-o":
+          mOutputPrefix = value;
+          break;
+        default:
+          throw new IllegalArgumentException("unknown option: " + arg);
+      }
+    }
+    if (mEndPath == null || (mBeginPath == null && mReferenceChannel == 0)) {
+      throw new IllegalArgumentException("the signals are missing");
+    }
+    if (mReferenceChannel < 0 || mReferenceChannel > 2) {
+      throw new IllegalArgumentException("invalid reference channel: " + mReferenceChannel);
+    }
+    if (mInputs.isEmpty()) {
+      throw new IllegalArgumentException("no captures");
+    }
+  }
+
+  private float[] readTemplate(String path) throws IOException {
+    // raw signals are s16, as the app resources
+    CaptureFile file = new CaptureFile(path, 1, SampleFormat.PCM_16);
+    try {
+      int sampleRate = (file.getSampleRate() > 0) ? file.getSampleRate() : mRawSampleRate;
+      if (mTemplateSampleRate > 0 && sampleRate != mTemplateSampleRate) {
+        throw new IOException(path + ": sample rate " + sampleRate + " does not match "
+            + mTemplateSampleRate);
+      }
+      mTemplateSampleRate = sampleRate;
+      return file.readChannel(0);
+    } finally {
+      file.close();
+    }
+  }
+
+  // files given, and the .raw/.wav files in the directories given (sorted)
+  private List<String> listCaptures() {
+    List<String> paths = new ArrayList<>();
+    for (String input : mInputs) {
+      addCaptures(new File(input), paths);
+    }
+    return paths;
+  }
+
+  private static void addCaptures(File file, List<String> paths) {
+    if (!file.isDirectory()) {
+      paths.add(file.getPath());
+      return;
+    }
+    File[] children = file.listFiles();
+    if (children == null) {
+      return;
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      String name = child.getName();
+      if (child.isDirectory() || name.endsWith(".raw") || name.endsWith(".wav")) {
+        addCaptures(child, paths);
+      }
+    }
+  }
+
+  public void run() throws IOException {
+    mEndTemplate = readTemplate(mEndPath);
+    if (mReferenceChannel > 0) {
+      // the end signal is looked for in both channels
+      mBeginTemplate = mEndTemplate;
+      mBeginThreshold = mThreshold;
+    } else {
+      mBeginTemplate = readTemplate(mBeginPath);
+      mBeginThreshold = Math.max(mThreshold, LatencyDetector.BEGIN_THRESHOLD);
+    }
+
+    final List<Capture> captures = new ArrayList<>();
+    for (String path : listCaptures()) {
+      Capture capture = new Capture(path);
+      open(capture);
+      captures.add(capture);
+    }
+
+    long start = System.nanoTime();
+    ForkJoinPool pool = new ForkJoinPool(Math.max(mThreads, 1));
+    try {
+      pool.invoke(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          List<ChunkTask> tasks = new ArrayList<>();
+          for (Capture capture : captures) {
+            if (capture.error == null && capture.chunkCount > 0) {
+              tasks.add(new ChunkTask(capture, 0, capture.chunkCount));
+            }
+          }
+          invokeAll(tasks);
+        }
+      });
+    } finally {
+      pool.shutdown();
+    }
+    long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+    long frames = 0;
+    for (Capture capture : captures) {
+      if (capture.file != null) {
+        capture.file.close();
+      }
+      pair(capture);
+      frames += capture.frames;
+    }
+    writeCsv(captures);
+    writeJson(captures);
+    printSummary(captures);
+    System.out.println("analyzed " + captures.size() + " files (" + frames + " frames) in "
+        + elapsedMs + " ms, " + mThreads + " threads");
+  }
+
+  @SuppressWarnings("unchecked")
+  private void open(Capture capture) {
+    try {
+      capture.file =
+          new CaptureFile(capture.path, (mReferenceChannel > 0) ? 2 : 1, mRawSampleFormat);
+    } catch (IOException e) {
+      capture.error = e.getMessage();
+      return;
+    }
+    CaptureFile file = capture.file;
+    capture.sampleRate = (file.getSampleRate() > 0) ? file.getSampleRate() : mRawSampleRate;
+    capture.frames = file.getFrames();
+    if (capture.sampleRate != mTemplateSampleRate) {
+      capture.error = "sample rate " + capture.sampleRate + " does not match the signals ("
+          + mTemplateSampleRate + ")";
+      return;
+    }
+    if (mReferenceChannel > file.getChannelCount()) {
+      capture.error = "no channel " + mReferenceChannel;
+      return;
+    }
+    long chunkFrames = (long) mChunkSeconds * capture.sampleRate;
+    capture.chunkCount = (int) ((capture.frames + chunkFrames - 1) / chunkFrames);
+    // pre-sized: the chunk tasks only set() their own entry
+    List<Pulse> none = null;
+    capture.beginPulses = new ArrayList<>(Collections.nCopies(capture.chunkCount, none));
+    capture.endPulses = new ArrayList<>(Collections.nCopies(capture.chunkCount, none));
+    capture.chunkErrors = new String[capture.chunkCount];
+  }
+
+  // analyzes chunks [first, last) of a capture, splitting the range until a
+  // single chunk is left
+  private class ChunkTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Capture mCapture;
+    private final int mFirst;
+    private final int mLast;
+
+    ChunkTask(Capture capture, int first, int last) {
+      mCapture = capture;
+      mFirst = first;
+      mLast = last;
+    }
+
+    @Override
+    protected void compute() {
+      if (mLast - mFirst > 1) {
+        int middle = (mFirst + mLast) >>> 1;
+        invokeAll(new ChunkTask(mCapture, mFirst, middle), new ChunkTask(mCapture, middle, mLast));
+        return;
+      }
+      try {
+        analyzeChunk(mCapture, mFirst);
+      } catch (IOException e) {
+        mCapture.chunkErrors[mFirst] = e.getMessage();
+      } catch (RuntimeException e) {
+        // a bug in one chunk fails its capture, not the whole analysis
+        mCapture.chunkErrors[mFirst] = e.toString();
+      }
+    }
+  }
+
+  private void analyzeChunk(Capture capture, int chunk) throws IOException {
+    final List<Pulse> begins = new ArrayList<>();
+    final List<Pulse> ends = new ArrayList<>();
+    long chunkFrames = (long) mChunkSeconds * capture.sampleRate;
+    final long start = chunk * chunkFrames;
+    final long end = Math.min(start + chunkFrames, capture.frames);
+    int holdFrames = (int) ((long) mHoldMs * capture.sampleRate / 1000);
+
+    final StreamingCorrelator[] correlators = new StreamingCorrelator[2];
+    // the correlators count frames from the start of the mapped range
+    final long[] first = new long[1];
+    StreamingCorrelator.PeakListener listener = new StreamingCorrelator.PeakListener() {
+      @Override
+      public void onPeak(
+          StreamingCorrelator correlator, long frame, double fraction, float score) {
+        long absolute = first[0] + frame;
+        if (absolute < start || absolute >= end) {
+          // in the margin: the neighbor chunk has it
+          return;
+        }
+        Pulse pulse = new Pulse(absolute, fraction, score);
+        if (correlator == correlators[0]) {
+          begins.add(pulse);
+        } else {
+          ends.add(pulse);
+        }
+      }
+    };
+    correlators[0] = new StreamingCorrelator(
+        mBeginTemplate, mBeginTemplate.length, mBeginThreshold, holdFrames, listener);
+    correlators[1] = new StreamingCorrelator(
+        mEndTemplate, mEndTemplate.length, mThreshold, holdFrames, listener);
+
+    // the correlators hold a peak for up to max(hold, template) frames, and
+    // only compute full segments (fft size), so a pulse at the edge of the
+    // chunk is settled within this margin
+    int margin = Math.max(holdFrames, Math.max(mBeginTemplate.length, mEndTemplate.length));
+    for (StreamingCorrelator correlator : correlators) {
+      margin += correlator.getHopSize() + correlator.getTemplateSize();
+    }
+    first[0] = Math.max(start - margin, 0);
+    long last = Math.min(end + margin, capture.frames);
+    ByteBuffer data = capture.file.map(first[0], last - first[0]);
+
+    int sampleFormat = capture.file.getSampleFormat();
+    int bytesPerSample = SampleFormat.getBytesPerSample(sampleFormat);
+    int frameSize = capture.file.getFrameSizeInBytes();
+    // channel of the begin signal, and of the end signal
+    int beginChannel = (mReferenceChannel > 0) ? mReferenceChannel - 1 : 0;
+    int endChannel = (mReferenceChannel > 0) ? 2 - mReferenceChannel : 0;
+    float[] scratch = new float[SCRATCH_SIZE];
+    long frames = last - first[0];
+    int offset = 0;
+    while (frames > 0) {
+      int count = (int) Math.min(frames, SCRATCH_SIZE);
+      SampleFormat.toFloats(sampleFormat, data, offset + bytesPerSample * beginChannel, count,
+          frameSize, scratch, 0);
+      correlators[0].write(scratch, 0, count);
+      SampleFormat.toFloats(sampleFormat, data, offset + bytesPerSample * endChannel, count,
+          frameSize, scratch, 0);
+      correlators[1].write(scratch, 0, count);
+      offset += count * frameSize;
+      frames -= count;
+    }
+    if (last == capture.frames) {
+      // flush the pulses at the end of the capture
+      Arrays.fill(scratch, 0);
+      for (int flushed = 0; flushed < margin; flushed += SCRATCH_SIZE) {
+        correlators[0].write(scratch, 0, SCRATCH_SIZE);
+        correlators[1].write(scratch, 0, SCRATCH_SIZE);
+      }
+    }
+    capture.beginPulses.set(chunk, begins);
+    capture.endPulses.set(chunk, ends);
+  }
+
+  // pair every end pulse with the closest unused begin pulse before it (as
+  // LatencyDetector does)
+  private void pair(Capture capture) {
+    if (capture.error == null) {
+      for (int i = 0; i < capture.chunkCount; i++) {
+        if (capture.chunkErrors[i] != null) {
+          capture.error = "chunk " + i + ": " + capture.chunkErrors[i];
+          return;
+        }
+        capture.begins.addAll(capture.beginPulses.get(i));
+        capture.ends.addAll(capture.endPulses.get(i));
+      }
+    }
+    int count = capture.ends.size();
+    capture.pairBegins = new long[count];
+    capture.pairEnds = new long[count];
+    capture.pairDelays = new double[count];
+    capture.pairScores = new float[count];
+    if (count == 0) {
+      return;
+    }
+    long maxDelayFrames = (long) (mMaxDelayMs * capture.sampleRate / 1000.0);
+    boolean[] used = new boolean[capture.begins.size()];
+    // first begin pulse after the current end pulse
+    int next = 0;
+    for (Pulse end : capture.ends) {
+      while (next < used.length && capture.begins.get(next).frame <= end.frame) {
+        next++;
+      }
+      for (int i = next - 1; i >= 0; i--) {
+        Pulse begin = capture.begins.get(i);
+        if (end.frame - begin.frame > maxDelayFrames) {
+          break;
+        }
+        if (used[i]) {
+          continue;
+        }
+        used[i] = true;
+        double delay = (end.frame - begin.frame) + (end.fraction - begin.fraction);
+        int index = capture.pairCount++;
+        capture.pairBegins[index] = begin.frame;
+        capture.pairEnds[index] = end.frame;
+        capture.pairDelays[index] = delay * 1000.0 / capture.sampleRate;
+        capture.pairScores[index] = end.score;
+        break;
+      }
+    }
+  }
+
+  private void writeCsv(List<Capture> captures) throws IOException {
+    PrintWriter delays = new PrintWriter(new FileOutputStream(mOutputPrefix + ".csv"));
+    PrintWriter pulses = new PrintWriter(new FileOutputStream(mOutputPrefix + ".pulses.csv"));
+    try {
+      delays.println("file,begin_frame,end_frame,time_sec,delay_ms,score,snr_db");
+      pulses.println("file,signal,frame,time_sec,score,snr_db");
+      for (Capture capture : captures) {
+        String file = csvField(capture.path);
+        for (int i = 0; i < capture.pairCount; i++) {
+          delays.println(file + "," + capture.pairBegins[i] + "," + capture.pairEnds[i] + ","
+              + format((double) capture.pairEnds[i] / capture.sampleRate) + ","
+              + format(capture.pairDelays[i]) + "," + capture.pairScores[i] + ","
+              + format(StreamingCorrelator.getSnrDb(capture.pairScores[i])));
+        }
+        writePulses(pulses, file, "begin", capture.begins, capture.sampleRate);
+        writePulses(pulses, file, "end", capture.ends, capture.sampleRate);
+      }
+    } finally {
+      delays.close();
+      pulses.close();
+    }
+  }
+
+  private static void writePulses(
+      PrintWriter pw, String file, String signal, List<Pulse> pulses, int sampleRate) {
+    for (Pulse pulse : pulses) {
+      pw.println(file + "," + signal + "," + pulse.frame + ","
+          + format((pulse.frame + pulse.fraction) / sampleRate) + "," + pulse.score + ","
+          + format(StreamingCorrelator.getSnrDb(pulse.score)));
+    }
+  }
+
+  private void writeJson(List<Capture> captures) throws IOException {
+    PrintWriter pw = new PrintWriter(new FileOutputStream(mOutputPrefix + ".json"));
+    try {
+      pw.println("{");
+      pw.println("  \"files\": [");
+      int total = 0;
+      for (int i = 0; i < captures.size(); i++) {
+        Capture capture = captures.get(i);
+        total += capture.pairCount;
+        pw.print("    {\"file\": " + jsonString(capture.path)
+            + ", \"sample_rate\": " + capture.sampleRate
+            + ", \"frames\": " + capture.frames
+            + ", \"begin_pulses\": " + capture.begins.size()
+            + ", \"end_pulses\": " + capture.ends.size() + ", "
+            + jsonStats(Arrays.copyOf(capture.pairDelays, capture.pairCount))
+            + ", \"error\": " + ((capture.error != null) ? jsonString(capture.error) : "null")
+            + "}");
+        pw.println((i + 1 < captures.size()) ? "," : "");
+      }
+      pw.println("  ],");
+      double[] all = new double[total];
+      int index = 0;
+      for (Capture capture : captures) {
+        System.arraycopy(capture.pairDelays, 0, all, index, capture.pairCount);
+        index += capture.pairCount;
+      }
+      pw.println("  \"total\": {\"files\": " + captures.size() + ", " + jsonStats(all) + "}");
+      pw.println("}");
+    } finally {
+      pw.close();
+    }
+  }
+
+  // count, mean, stddev, and percentiles of `delays` (in ms)
+  private static String jsonStats(double[] delays) {
+    Arrays.sort(delays);
+    int count = delays.length;
+    double sum = 0;
+    for (double delay : delays) {
+      sum += delay;
+    }
+    double mean = (count > 0) ? sum / count : Double.NaN;
+    double variance = 0;
+    for (double delay : delays) {
+      variance += (delay - mean) * (delay - mean);
+    }
+    double stddev = (count > 0) ? Math.sqrt(variance / count) : Double.NaN;
+    return "\"delays\": " + count
+        + ", \"mean_ms\": " + jsonNumber(mean)
+        + ", \"stddev_ms\": " + jsonNumber(stddev)
+        + ", \"min_ms\": " + jsonNumber(getPercentile(delays, 0))
+        + ", \"p50_ms\": " + jsonNumber(getPercentile(delays, 50))
+        + ", \"p90_ms\": " + jsonNumber(getPercentile(delays, 90))
+        + ", \"p99_ms\": " + jsonNumber(getPercentile(delays, 99))
+        + ", \"max_ms\": " + jsonNumber(getPercentile(delays, 100));
+  }
+
+  // nearest-rank percentile of sorted `values`
+  private static double getPercentile(double[] values, double percentile) {
+    if (values.length == 0) {
+      return Double.NaN;
+    }
+    int rank = (int) Math.ceil(percentile / 100.0 * values.length);
+    return values[Math.min(Math.max(rank, 1), values.length) - 1];
+  }
+
+  private void printSummary(List<Capture> captures) {
+    for (Capture capture : captures) {
+      if (capture.error != null) {
+        System.out.println(capture.path + ": error: " + capture.error);
+        continue;
+      }
+      double[] delays = Arrays.copyOf(capture.pairDelays, capture.pairCount);
+      double sum = 0;
+      for (double delay : delays) {
+        sum += delay;
+      }
+      System.out.println(capture.path + ": begin: " + capture.begins.size()
+          + " end: " + capture.ends.size() + " delays: " + capture.pairCount
+          + ((capture.pairCount > 0) ? " average: " + format(sum / capture.pairCount) + " ms"
+                                     : ""));
+    }
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.US, "%.6f", value);
+  }
+
+  private static String csvField(String value) {
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+      return value;
+    }
+    return "\"" + value.replace("\"", "\"\"") + "\"";
+  }
+
+  private static String jsonString(String value) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format(Locale.US, "\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  private static String jsonNumber(double value) {
+    return Double.isNaN(value) ? "null" : format(value);
+  }
+}
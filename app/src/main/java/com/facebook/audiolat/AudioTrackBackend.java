@@ -0,0 +1,245 @@
+package com.facebook.audiolat;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.util.Log;
+import java.nio.ByteBuffer;
+
+// LatencyBackend on top of an AudioTrack and an AudioRecord.
+public class AudioTrackBackend implements LatencyBackend {
+  public static final String LOG_ID = "audiolat";
+  // AudioFormat.ENCODING_PCM_24BIT_PACKED
+  private static final int ENCODING_PCM_24BIT_PACKED = 21;
+  public static final int PCM_24_PACKED_MIN_SDK = 31;
+  private final AudioTrack mPlayer;
+  private final AudioRecord mRecorder;
+  private final int mSampleRate;
+  private final int mPlaybackBufferSizeInBytes;
+  private final int mRecordBufferSizeInBytes;
+  private final AudioTimestamp mPlayerTimestamp = new AudioTimestamp();
+  private final AudioTimestamp mRecorderTimestamp = new AudioTimestamp();
+  // the timestamp positions count from the start of the run (as the frames
+  // read and written by the loop), but the streams may be reused across runs
+  // (StreamPool), and then their positions may go on from the previous runs.
+  // Raw positions at the start of the run (the input one is only known with
+  // the first input timestamp, -1 until then), and raw input position when
+  // the recorder was last stopped.
+  private long mOutputStartPosition = 0;
+  private long mInputStartPosition = -1;
+  private long mInputStopPosition = 0;
+
+  public AudioTrackBackend(TestSettings settings) {
+    mSampleRate = settings.sampleRate;
+    final int AUDIO_FORMAT = getEncoding(settings.sampleFormat);
+    // stereo when one channel is the (looped back) reference
+    final int inputChannelMask = (LatencyLoop.getInputChannelCount(settings) == 2)
+        ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+    int recordBufferSizeInBytes = AudioRecord.getMinBufferSize(
+            settings.sampleRate, inputChannelMask, AUDIO_FORMAT);
+    int playbackBufferSizeInBytes = AudioTrack.getMinBufferSize(
+            settings.sampleRate, AudioFormat.CHANNEL_OUT_MONO, AUDIO_FORMAT);
+
+    if (settings.playoutBufferSizeInBytes > 0) {
+      Log.d(LOG_ID, "Playback min buffer size is " + playbackBufferSizeInBytes  +
+              " change to:"+settings.playoutBufferSizeInBytes );
+      playbackBufferSizeInBytes = settings.playoutBufferSizeInBytes;
+    }
+
+    Log.e(LOG_ID, "playback buffer size:" + playbackBufferSizeInBytes);
+
+    // create player object
+    mPlayer =
+            new AudioTrack.Builder()
+                    .setAudioAttributes(new AudioAttributes.Builder()
+                            .setUsage(settings.usage)
+                            .setContentType(settings.contentType)
+                            .build())
+                    .setAudioFormat(new AudioFormat.Builder()
+                            .setEncoding(AUDIO_FORMAT)
+                            .setSampleRate(settings.sampleRate)
+                            .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+                            .build())
+                    .setTransferMode(AudioTrack.MODE_STREAM)
+                    .setBufferSizeInBytes(playbackBufferSizeInBytes)
+                    .setPerformanceMode(settings.javaaudioPerformanceMode)
+                    .build();
+
+    if (settings.recordBufferSizeInBytes > 0){
+      Log.d(LOG_ID, "Recording min size is " + recordBufferSizeInBytes  +
+                 " change to:"+settings.recordBufferSizeInBytes );
+      recordBufferSizeInBytes = settings.recordBufferSizeInBytes;
+    }
+
+    // create record object
+    mRecorder =
+        new AudioRecord.Builder()
+            .setAudioSource(settings.inputPreset)
+            .setAudioFormat(new AudioFormat.Builder()
+                                .setEncoding(AUDIO_FORMAT)
+                                .setSampleRate(settings.sampleRate)
+                                .setChannelMask(inputChannelMask)
+                                .build())
+                                .setBufferSizeInBytes(recordBufferSizeInBytes)
+                .build();
+    setTimeout(settings.timeout);
+    mRecorder.setPositionNotificationPeriod(settings.sampleRate / 2);
+
+    mPlaybackBufferSizeInBytes = playbackBufferSizeInBytes;
+    mRecordBufferSizeInBytes = recordBufferSizeInBytes;
+  }
+
+  // the recorder marker is at the end of the run
+  public void setTimeout(int timeout) {
+    mRecorder.setNotificationMarkerPosition(mSampleRate * timeout);
+  }
+
+  private static int getEncoding(int sampleFormat) {
+    switch (sampleFormat) {
+      case SampleFormat.PCM_FLOAT:
+        return AudioFormat.ENCODING_PCM_FLOAT;
+      case SampleFormat.PCM_24_PACKED:
+        return ENCODING_PCM_24BIT_PACKED;
+      default:
+        return AudioFormat.ENCODING_PCM_16BIT;
+    }
+  }
+
+  @Override
+  public int getSampleRate() {
+    return mSampleRate;
+  }
+
+  @Override
+  public int getOutputBufferSizeInBytes() {
+    return mPlaybackBufferSizeInBytes;
+  }
+
+  @Override
+  public int getInputBufferSizeInBytes() {
+    return mRecordBufferSizeInBytes;
+  }
+
+  @Override
+  public void start() {
+    // 0 after the flush in stop(), unless the platform keeps counting
+    mOutputStartPosition = mPlayer.getPlaybackHeadPosition() & 0xffffffffL;
+    mInputStartPosition = -1;
+    mRecorder.startRecording();
+    mPlayer.play();
+  }
+
+  @Override
+  public void stop() {
+    if (mRecorder.getTimestamp(mRecorderTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC)
+        == AudioRecord.SUCCESS) {
+      // the first frame the recorder would capture when started again
+      mInputStopPosition = mRecorderTimestamp.framePosition
+          + (System.nanoTime() - mRecorderTimestamp.nanoTime) * mSampleRate / 1000000000L;
+    }
+    mRecorder.stop();
+    mPlayer.stop();
+    // the streams may be started again (StreamPool): drop the pending output,
+    // so the next run starts from an empty buffer at position 0, and the
+    // listener of the last run
+    mPlayer.flush();
+    mRecorder.setRecordPositionUpdateListener(null);
+  }
+
+  @Override
+  public void release() {
+    mRecorder.release();
+    mPlayer.release();
+  }
+
+  @Override
+  public boolean isRunning() {
+    return mRecorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING;
+  }
+
+  @Override
+  public long getNanoTime() {
+    return System.nanoTime();
+  }
+
+  @Override
+  public boolean isRealTime() {
+    return true;
+  }
+
+  @Override
+  public int write(ByteBuffer data, int sizeInBytes) {
+    return mPlayer.write(data, sizeInBytes, AudioTrack.WRITE_NON_BLOCKING);
+  }
+
+  // `data` must be direct
+  @Override
+  public int read(ByteBuffer data, int sizeInBytes, boolean blocking) {
+    int read = mRecorder.read(data, sizeInBytes,
+        blocking ? AudioRecord.READ_BLOCKING : AudioRecord.READ_NON_BLOCKING);
+    if (read > 0) {
+      // AudioRecord does not move the position
+      data.position(data.position() + read);
+    }
+    return read;
+  }
+
+  @Override
+  public boolean getOutputTimestamp(Timestamp timestamp) {
+    if (!mPlayer.getTimestamp(mPlayerTimestamp)) {
+      return false;
+    }
+    timestamp.framePosition = mPlayerTimestamp.framePosition - mOutputStartPosition;
+    timestamp.nanoTime = mPlayerTimestamp.nanoTime;
+    return true;
+  }
+
+  @Override
+  public boolean getInputTimestamp(Timestamp timestamp) {
+    if (mRecorder.getTimestamp(mRecorderTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC)
+        != AudioRecord.SUCCESS) {
+      return false;
+    }
+    long position = mRecorderTimestamp.framePosition;
+    if (mInputStartPosition < 0) {
+      // the positions either restarted from 0, or go on from where the
+      // recorder was stopped (the first timestamp of a run comes long before
+      // it has recorded as much as a whole previous run)
+      mInputStartPosition = (mInputStopPosition > 0 && position >= mInputStopPosition)
+          ? mInputStopPosition : 0;
+    }
+    timestamp.framePosition = position - mInputStartPosition;
+    timestamp.nanoTime = mRecorderTimestamp.nanoTime;
+    return true;
+  }
+
+  @Override
+  public long getUnderrunCount() {
+    return mPlayer.getUnderrunCount();
+  }
+
+  // AudioRecord does not count overruns (GlitchMonitor detects them from the
+  // timestamps)
+  @Override
+  public long getOverrunCount() {
+    return -1;
+  }
+
+  @Override
+  public void setInputPositionListener(int periodInFrames, final Runnable listener) {
+    mRecorder.setPositionNotificationPeriod(periodInFrames);
+    mRecorder.setRecordPositionUpdateListener(new AudioRecord.OnRecordPositionUpdateListener() {
+      @Override
+      public void onMarkerReached(AudioRecord recorder) {
+        listener.run();
+      }
+
+      @Override
+      public void onPeriodicNotification(AudioRecord recorder) {
+        listener.run();
+      }
+    });
+  }
+}
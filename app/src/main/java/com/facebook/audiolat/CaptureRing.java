@@ -0,0 +1,180 @@
+package com.facebook.audiolat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Lock-free single-producer/single-consumer ring of preallocated direct
+// buffers. The audio thread (producer) appends recorded data with `offer()`,
+// which never blocks nor allocates: when the ring is full the data is dropped
+// and accounted in the overflow counters, and it is replaced by silence as
+// soon as there is room again, so the rest of the capture keeps its timing.
+// A writer thread (consumer) drains the published slots with
+// `poll()`/`release()`.
+public class CaptureRing {
+  private static final long FINISH_POLL_PERIOD_NS = 1000000;
+
+  private final ByteBuffer[] mSlots;
+  private final int mMask;
+  // silence source (never written)
+  private final ByteBuffer mZeros;
+  // slots [head, tail) are published and owned by the consumer. The slot at
+  // tail is owned by the producer while it is being filled.
+  private final AtomicLong mHead = new AtomicLong(0);
+  private final AtomicLong mTail = new AtomicLong(0);
+  // producer-side counters (written by the producer only)
+  private volatile long mOverflowCount = 0;
+  private volatile long mDroppedBytes = 0;
+  private volatile long mOfferedBytes = 0;
+  private volatile int mMaxPendingSlots = 0;
+  // dropped bytes not yet replaced by silence (producer only)
+  private long mPendingSilenceBytes = 0;
+
+  public CaptureRing(int numSlots, int slotSizeInBytes) {
+    if (numSlots < 2 || Integer.bitCount(numSlots) != 1) {
+      throw new IllegalArgumentException("number of slots must be a power of 2: " + numSlots);
+    }
+    mSlots = new ByteBuffer[numSlots];
+    for (int i = 0; i < numSlots; i++) {
+      mSlots[i] = ByteBuffer.allocateDirect(slotSizeInBytes);
+    }
+    mMask = numSlots - 1;
+    mZeros = ByteBuffer.allocateDirect(slotSizeInBytes);
+  }
+
+  // producer: append `length` bytes of `data` from byte `offset` (the
+  // buffer position and limit are restored). Returns false if (part of) the
+  // data was dropped because the consumer is not keeping up.
+  public boolean offer(ByteBuffer data, int offset, int length) {
+    mOfferedBytes += length;
+    if (!fillSilence()) {
+      drop(length);
+      return false;
+    }
+    int position = data.position();
+    int limit = data.limit();
+    boolean offered = true;
+    while (length > 0) {
+      long tail = mTail.get();
+      if (tail - mHead.get() > mMask) {
+        // the slot at tail is still owned by the consumer
+        drop(length);
+        offered = false;
+        break;
+      }
+      ByteBuffer slot = mSlots[(int) (tail & mMask)];
+      int count = Math.min(length, slot.remaining());
+      data.limit(offset + count);
+      data.position(offset);
+      slot.put(data);
+      offset += count;
+      length -= count;
+      if (!slot.hasRemaining()) {
+        publish(tail);
+      }
+    }
+    data.limit(limit);
+    data.position(position);
+    return offered;
+  }
+
+  private void drop(int length) {
+    mOverflowCount++;
+    mDroppedBytes += length;
+    mPendingSilenceBytes += length;
+  }
+
+  // write the silence of the dropped data, as far as it fits. Returns false
+  // if part of it is still pending.
+  private boolean fillSilence() {
+    while (mPendingSilenceBytes > 0) {
+      long tail = mTail.get();
+      if (tail - mHead.get() > mMask) {
+        return false;
+      }
+      ByteBuffer slot = mSlots[(int) (tail & mMask)];
+      int count = (int) Math.min(mPendingSilenceBytes, slot.remaining());
+      mZeros.clear();
+      mZeros.limit(count);
+      slot.put(mZeros);
+      mPendingSilenceBytes -= count;
+      if (!slot.hasRemaining()) {
+        publish(tail);
+      }
+    }
+    return true;
+  }
+
+  // producer: publish the slot being filled, even if it is not full (after
+  // the pending silence). Returns false if there was no room for all of it.
+  public boolean flush() {
+    if (!fillSilence()) {
+      return false;
+    }
+    long tail = mTail.get();
+    if (tail - mHead.get() <= mMask && mSlots[(int) (tail & mMask)].position() > 0) {
+      publish(tail);
+    }
+    return true;
+  }
+
+  // producer: the final flush(), once the producer is done. It waits for the
+  // consumer (which must be running) to free slots until everything has been
+  // published, so it must not be called from the audio thread.
+  public void finish() {
+    while (!flush()) {
+      LockSupport.parkNanos(FINISH_POLL_PERIOD_NS);
+    }
+  }
+
+  private void publish(long tail) {
+    mSlots[(int) (tail & mMask)].flip();
+    // ordered store: the slot contents are visible before the new tail
+    mTail.lazySet(tail + 1);
+    int pending = (int) (tail + 1 - mHead.get());
+    if (pending > mMaxPendingSlots) {
+      mMaxPendingSlots = pending;
+    }
+  }
+
+  // consumer: next published slot (ready to be read), or null if none
+  public ByteBuffer poll() {
+    long head = mHead.get();
+    if (head == mTail.get()) {
+      return null;
+    }
+    return mSlots[(int) (head & mMask)];
+  }
+
+  // consumer: return the slot obtained with `poll()` to the producer
+  public void release() {
+    long head = mHead.get();
+    mSlots[(int) (head & mMask)].clear();
+    mHead.lazySet(head + 1);
+  }
+
+  public boolean isEmpty() {
+    return mHead.get() == mTail.get();
+  }
+
+  public int getNumSlots() {
+    return mSlots.length;
+  }
+
+  public long getOverflowCount() {
+    return mOverflowCount;
+  }
+
+  // bytes lost to overflows (written as silence)
+  public long getDroppedBytes() {
+    return mDroppedBytes;
+  }
+
+  public long getOfferedBytes() {
+    return mOfferedBytes;
+  }
+
+  public int getMaxPendingSlots() {
+    return mMaxPendingSlots;
+  }
+}
@@ -0,0 +1,92 @@
+package com.facebook.audiolat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.LockSupport;
+
+// Drains a CaptureRing into a channel. Meant to run in its own (low priority)
+// thread, so that storage stalls never block the audio thread. The writer
+// polls the ring instead of being signaled, so the producer side never makes
+// a system call.
+//
+// The on-line detector, if any, is fed from here too: its FFTs stay out of
+// the audio thread. It sees the capture as written (silence included).
+public class CaptureWriter implements Runnable {
+  private static final long POLL_PERIOD_NS = 2000000;
+
+  private final CaptureRing mRing;
+  private final WritableByteChannel mChannel;
+  private volatile boolean mRunning = true;
+  private volatile long mBytesWritten = 0;
+  private volatile IOException mError = null;
+  private LatencyDetector mDetector = null;
+  private volatile RuntimeException mDetectorError = null;
+
+  public CaptureWriter(CaptureRing ring, WritableByteChannel channel) {
+    mRing = ring;
+    mChannel = channel;
+  }
+
+  // must be called before run()
+  public void setDetector(LatencyDetector detector) {
+    mDetector = detector;
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      // read the flag before polling: a slot published between an empty poll
+      // and a later read of the flag would be lost
+      boolean running = mRunning;
+      ByteBuffer slot = mRing.poll();
+      if (slot == null) {
+        if (!running) {
+          // the producer is done and everything has been written
+          break;
+        }
+        LockSupport.parkNanos(POLL_PERIOD_NS);
+        continue;
+      }
+      if (mDetector != null) {
+        try {
+          mDetector.process(slot, slot.position(), slot.remaining());
+        } catch (RuntimeException e) {
+          // only the on-line analysis stops: the capture is still written,
+          // so that the producer does not overflow
+          mDetectorError = e;
+          mDetector = null;
+        }
+      }
+      try {
+        while (slot.hasRemaining()) {
+          mBytesWritten += mChannel.write(slot);
+        }
+      } catch (IOException e) {
+        // keep draining so that the producer does not overflow
+        if (mError == null) {
+          mError = e;
+        }
+      }
+      mRing.release();
+    }
+  }
+
+  // ask the writer to finish once the ring is empty. The producer must call
+  // `CaptureRing.finish()` before.
+  public void stop() {
+    mRunning = false;
+  }
+
+  public long getBytesWritten() {
+    return mBytesWritten;
+  }
+
+  public IOException getError() {
+    return mError;
+  }
+
+  public RuntimeException getDetectorError() {
+    return mDetectorError;
+  }
+}
@@ -0,0 +1,110 @@
+package com.facebook.audiolat;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+// Fixed-capacity binary journal of trigger events. All the storage is
+// allocated up front, so append() can be called from the audio thread. Once
+// the journal is full new events are counted as dropped.
+//
+// File format (little-endian):
+// * header: magic "ALJ1" (4 bytes), number of fields per record (int32),
+//   number of records (int32), number of dropped records (int32)
+// * records: FIELD_COUNT int64 values each, in the FIELD_* order
+// A field is -1 when the value is not available (e.g. no timestamp).
+public class EventJournal {
+  public static final int FIELD_TYPE = 0;
+  public static final int FIELD_TRIGGER_NANOTIME = 1;
+  public static final int FIELD_WRITE_NANOTIME = 2;
+  public static final int FIELD_FRAMES_WRITTEN = 3;
+  public static final int FIELD_TIMESTAMP_FRAME_POSITION = 4;
+  public static final int FIELD_TIMESTAMP_NANOTIME = 5;
+  // TriggerHub source id (-1 for timer events)
+  public static final int FIELD_SOURCE = 6;
+  // capture frame where the begin signal was spliced in (-1 for midi events)
+  public static final int FIELD_SPLICE_FRAME = 7;
+  public static final int FIELD_COUNT = 8;
+
+  // event types
+  public static final int TYPE_TIMER = 0;
+  public static final int TYPE_MIDI = 1;
+
+  private static final int MAGIC = 0x314a4c41; // "ALJ1"
+  private static final int HEADER_SIZE = 16;
+
+  private final long[] mRecords;
+  private final int mCapacity;
+  private int mCount = 0;
+  private int mDropped = 0;
+
+  public EventJournal(int capacity) {
+    mCapacity = capacity;
+    mRecords = new long[capacity * FIELD_COUNT];
+  }
+
+  public boolean append(int type, long triggerNanotime, long writeNanotime, long framesWritten,
+      long timestampFramePosition, long timestampNanotime, int source) {
+    if (mCount == mCapacity) {
+      mDropped++;
+      return false;
+    }
+    int base = mCount * FIELD_COUNT;
+    mRecords[base + FIELD_TYPE] = type;
+    mRecords[base + FIELD_TRIGGER_NANOTIME] = triggerNanotime;
+    mRecords[base + FIELD_WRITE_NANOTIME] = writeNanotime;
+    mRecords[base + FIELD_FRAMES_WRITTEN] = framesWritten;
+    mRecords[base + FIELD_TIMESTAMP_FRAME_POSITION] = timestampFramePosition;
+    mRecords[base + FIELD_TIMESTAMP_NANOTIME] = timestampNanotime;
+    mRecords[base + FIELD_SOURCE] = source;
+    mRecords[base + FIELD_SPLICE_FRAME] = -1;
+    mCount++;
+    return true;
+  }
+
+  public void clear() {
+    mCount = 0;
+    mDropped = 0;
+  }
+
+  public int size() {
+    return mCount;
+  }
+
+  public int getDropped() {
+    return mDropped;
+  }
+
+  public long get(int index, int field) {
+    return mRecords[index * FIELD_COUNT + field];
+  }
+
+  // fill in a field known after the append (e.g. the splice frame)
+  public void set(int index, int field, long value) {
+    mRecords[index * FIELD_COUNT + field] = value;
+  }
+
+  public void flush(String path) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + mCount * FIELD_COUNT * 8)
+                            .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC);
+    buffer.putInt(FIELD_COUNT);
+    buffer.putInt(mCount);
+    buffer.putInt(mDropped);
+    for (int i = 0; i < mCount * FIELD_COUNT; i++) {
+      buffer.putLong(mRecords[i]);
+    }
+    buffer.flip();
+    FileOutputStream fos = new FileOutputStream(path);
+    try {
+      FileChannel channel = fos.getChannel();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } finally {
+      fos.close();
+    }
+  }
+}
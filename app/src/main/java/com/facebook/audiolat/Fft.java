@@ -0,0 +1,87 @@
+package com.facebook.audiolat;
+
+// In-place iterative radix-2 complex FFT. All the tables are computed in the
+// constructor so that transforms never allocate.
+public class Fft {
+  private final int mSize;
+  private final int[] mBitReverse;
+  private final double[] mCos;
+  private final double[] mSin;
+
+  public Fft(int size) {
+    if (size < 2 || Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException("fft size must be a power of 2: " + size);
+    }
+    mSize = size;
+    int bits = Integer.numberOfTrailingZeros(size);
+    mBitReverse = new int[size];
+    for (int i = 0; i < size; i++) {
+      mBitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+    }
+    mCos = new double[size / 2];
+    mSin = new double[size / 2];
+    for (int i = 0; i < size / 2; i++) {
+      mCos[i] = Math.cos(2 * Math.PI * i / size);
+      mSin[i] = Math.sin(2 * Math.PI * i / size);
+    }
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  public static int nextPowerOfTwo(int value) {
+    int size = 1;
+    while (size < value) {
+      size <<= 1;
+    }
+    return size;
+  }
+
+  public void forward(double[] re, double[] im) {
+    transform(re, im, false);
+  }
+
+  // inverse transform, including the 1/N scaling
+  public void inverse(double[] re, double[] im) {
+    transform(re, im, true);
+    double scale = 1.0 / mSize;
+    for (int i = 0; i < mSize; i++) {
+      re[i] *= scale;
+      im[i] *= scale;
+    }
+  }
+
+  private void transform(double[] re, double[] im, boolean inverse) {
+    for (int i = 0; i < mSize; i++) {
+      int j = mBitReverse[i];
+      if (j > i) {
+        double tmp = re[i];
+        re[i] = re[j];
+        re[j] = tmp;
+        tmp = im[i];
+        im[i] = im[j];
+        im[j] = tmp;
+      }
+    }
+    double sign = inverse ? 1.0 : -1.0;
+    for (int len = 2; len <= mSize; len <<= 1) {
+      int half = len / 2;
+      int step = mSize / len;
+      for (int start = 0; start < mSize; start += len) {
+        for (int k = 0; k < half; k++) {
+          double wr = mCos[k * step];
+          double wi = sign * mSin[k * step];
+          int a = start + k;
+          int b = a + half;
+          double tr = re[b] * wr - im[b] * wi;
+          double ti = re[b] * wi + im[b] * wr;
+          re[b] = re[a] - tr;
+          im[b] = im[a] - ti;
+          re[a] += tr;
+          im[a] += ti;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,264 @@
+package com.facebook.audiolat;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+// Glitch (xrun) detection for the java loop, checked on every block:
+// * output underruns and input overruns, as counted by the device. When the
+//   device does not count input overruns (AudioRecord), they are detected
+//   from the input timestamp: the recorder position running ahead of the
+//   frames read by more than the input buffer means data was lost.
+// * short blocking reads, zero-length writes of the end signal (which cut
+//   it short), and read/write errors
+// * discontinuities of the stream positions: a timestamp position that
+//   does not advance with its time (by more than `toleranceFrames`)
+//
+// Every glitch is kept as an event (type, capture frame and time it was
+// detected at, and a type-dependent value), in preallocated storage, so the
+// checks run in the audio thread. Once the storage is full, events are only
+// counted. Latency measurements whose begin-to-end span contains a glitch
+// are flagged with flagMeasurement(), which may be called from another
+// thread (the on-line detector runs in the capture writer thread): events
+// are published through the volatile size.
+public class GlitchMonitor {
+  public static final int TYPE_UNDERRUN = 0;
+  public static final int TYPE_OVERRUN = 1;
+  public static final int TYPE_SHORT_READ = 2;
+  public static final int TYPE_ZERO_WRITE = 3;
+  public static final int TYPE_READ_ERROR = 4;
+  public static final int TYPE_WRITE_ERROR = 5;
+  public static final int TYPE_OUTPUT_DISCONTINUITY = 6;
+  public static final int TYPE_INPUT_DISCONTINUITY = 7;
+  private static final String[] TYPE_NAMES = {"underrun", "overrun", "short_read", "zero_write",
+      "read_error", "write_error", "output_discontinuity", "input_discontinuity"};
+  public static final int NUM_TYPES = TYPE_NAMES.length;
+  public static final String CSV_HEADER = "type,capture_frame,nanotime,value";
+
+  private final LatencyBackend mBackend;
+  private final int mSampleRate;
+  private final int mOutputFrameSize;
+  private final int mInputFrameSize;
+  private final long mInputBufferFrames;
+  private final long mToleranceFrames;
+  private final int mCapacity;
+  private final int[] mTypes;
+  private final long[] mFrames;
+  private final long[] mNanotimes;
+  private final long[] mValues;
+  private volatile int mSize = 0;
+  private volatile long mDropped = 0;
+  private final long[] mCounts = new long[NUM_TYPES];
+  // capture frame of the last glitch (kept even if the event was dropped)
+  private volatile long mLastFrame = -1;
+  private long mFlaggedCount = 0;
+
+  private long mUnderrunCount = 0;
+  private long mOverrunCount = 0;
+  // input frames lost to overruns detected from the timestamps
+  private long mLostFrames = 0;
+  private final LatencyBackend.Timestamp mTimestamp = new LatencyBackend.Timestamp();
+  private long mOutputPosition = -1;
+  private long mOutputNanotime = 0;
+  private long mInputPosition = -1;
+  private long mInputNanotime = 0;
+
+  // frame sizes are in bytes
+  public GlitchMonitor(LatencyBackend backend, int sampleRate, int outputFrameSize,
+      int inputFrameSize, int capacity, int toleranceFrames) {
+    mBackend = backend;
+    mSampleRate = sampleRate;
+    mOutputFrameSize = outputFrameSize;
+    mInputFrameSize = inputFrameSize;
+    mInputBufferFrames = backend.getInputBufferSizeInBytes() / inputFrameSize;
+    mToleranceFrames = toleranceFrames;
+    mCapacity = capacity;
+    mTypes = new int[capacity];
+    mFrames = new long[capacity];
+    mNanotimes = new long[capacity];
+    mValues = new long[capacity];
+  }
+
+  public static String getTypeName(int type) {
+    return TYPE_NAMES[type];
+  }
+
+  public void reset() {
+    mSize = 0;
+    mDropped = 0;
+    for (int i = 0; i < NUM_TYPES; i++) {
+      mCounts[i] = 0;
+    }
+    mLastFrame = -1;
+    mFlaggedCount = 0;
+    // the device counts since the streams were created, which may have been
+    // used by previous runs
+    mUnderrunCount = Math.max(mBackend.getUnderrunCount(), 0);
+    mOverrunCount = Math.max(mBackend.getOverrunCount(), 0);
+    mLostFrames = 0;
+    mOutputPosition = -1;
+    mInputPosition = -1;
+  }
+
+  // a write of `requested` bytes returned `written`. Zero-length writes only
+  // count while the end signal is written.
+  public void onWrite(int written, int requested, boolean signal, long captureFrame) {
+    if (written < 0) {
+      add(TYPE_WRITE_ERROR, captureFrame, written);
+    } else if (written == 0 && requested > 0 && signal) {
+      add(TYPE_ZERO_WRITE, captureFrame, requested / mOutputFrameSize);
+    }
+  }
+
+  // a read of `requested` bytes returned `read`. Short reads only count when
+  // blocking.
+  public void onRead(int read, int requested, boolean blocking, long captureFrame) {
+    if (read < 0) {
+      add(TYPE_READ_ERROR, captureFrame, read);
+    } else if (blocking && read < requested) {
+      add(TYPE_SHORT_READ, captureFrame, (requested - read) / mInputFrameSize);
+    }
+  }
+
+  // per-block check of the device counters and positions. `readFrames` is
+  // the number of frames read from the input so far.
+  public void check(long captureFrame, long readFrames) {
+    long underruns = mBackend.getUnderrunCount();
+    if (underruns > mUnderrunCount) {
+      add(TYPE_UNDERRUN, captureFrame, underruns - mUnderrunCount);
+      mUnderrunCount = underruns;
+    }
+    long overruns = mBackend.getOverrunCount();
+    if (overruns > mOverrunCount) {
+      add(TYPE_OVERRUN, captureFrame, overruns - mOverrunCount);
+      mOverrunCount = overruns;
+    }
+
+    long nanotime = mBackend.getNanoTime();
+    if (mBackend.getOutputTimestamp(mTimestamp) && mTimestamp.nanoTime != mOutputNanotime) {
+      if (mOutputPosition >= 0) {
+        long jump = getJump(mOutputPosition, mOutputNanotime);
+        if (Math.abs(jump) > mToleranceFrames) {
+          add(TYPE_OUTPUT_DISCONTINUITY, captureFrame, jump);
+        }
+      }
+      mOutputPosition = mTimestamp.framePosition;
+      mOutputNanotime = mTimestamp.nanoTime;
+    }
+    if (mBackend.getInputTimestamp(mTimestamp) && mTimestamp.nanoTime != mInputNanotime) {
+      if (mInputPosition >= 0) {
+        long jump = getJump(mInputPosition, mInputNanotime);
+        if (Math.abs(jump) > mToleranceFrames) {
+          add(TYPE_INPUT_DISCONTINUITY, captureFrame, jump);
+        }
+      }
+      mInputPosition = mTimestamp.framePosition;
+      mInputNanotime = mTimestamp.nanoTime;
+      if (overruns < 0) {
+        // recorder position (now) ahead of the reads by more than the buffer
+        // (both count from the start of the run, see LatencyBackend.Timestamp)
+        long backlog = mTimestamp.framePosition
+            + (nanotime - mTimestamp.nanoTime) * mSampleRate / 1000000000L - readFrames
+            - mLostFrames;
+        long lost = backlog - mInputBufferFrames - mToleranceFrames;
+        if (lost > 0) {
+          add(TYPE_OVERRUN, captureFrame, lost);
+          mLostFrames += lost;
+        }
+      }
+    }
+  }
+
+  // frames the position in mTimestamp moved, beyond what the time elapsed
+  // since (`position`, `nanotime`) explains
+  private long getJump(long position, long nanotime) {
+    long expected = (mTimestamp.nanoTime - nanotime) * mSampleRate / 1000000000L;
+    return mTimestamp.framePosition - position - expected;
+  }
+
+  private void add(int type, long captureFrame, long value) {
+    mCounts[type]++;
+    mLastFrame = captureFrame;
+    if (mSize == mCapacity) {
+      mDropped++;
+      return;
+    }
+    mTypes[mSize] = type;
+    mFrames[mSize] = captureFrame;
+    mNanotimes[mSize] = mBackend.getNanoTime();
+    mValues[mSize] = value;
+    mSize++;
+  }
+
+  // true if a glitch was detected within [beginFrame - guardFrames,
+  // endFrame + guardFrames]. Events are in capture frame order, so only the
+  // most recent ones are looked at.
+  public boolean isGlitched(long beginFrame, long endFrame, long guardFrames) {
+    long first = beginFrame - guardFrames;
+    long last = endFrame + guardFrames;
+    if (getTotalCount() > 0 && mLastFrame >= first && mLastFrame <= last) {
+      return true;
+    }
+    for (int i = mSize - 1; i >= 0 && mFrames[i] >= first; i--) {
+      if (mFrames[i] <= last) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // isGlitched() for a latency measurement, counting the flagged ones
+  public boolean flagMeasurement(long beginFrame, long endFrame, long guardFrames) {
+    if (!isGlitched(beginFrame, endFrame, guardFrames)) {
+      return false;
+    }
+    mFlaggedCount++;
+    return true;
+  }
+
+  public long getFlaggedCount() {
+    return mFlaggedCount;
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  public long getDropped() {
+    return mDropped;
+  }
+
+  // all the events of `type`, including the dropped ones
+  public long getCount(int type) {
+    return mCounts[type];
+  }
+
+  public long getTotalCount() {
+    return mSize + mDropped;
+  }
+
+  public int getType(int index) {
+    return mTypes[index];
+  }
+
+  public long getFrame(int index) {
+    return mFrames[index];
+  }
+
+  public long getValue(int index) {
+    return mValues[index];
+  }
+
+  public void writeCsv(String path) throws IOException {
+    PrintWriter pw = new PrintWriter(new FileOutputStream(path));
+    try {
+      pw.println(CSV_HEADER);
+      for (int i = 0; i < mSize; i++) {
+        pw.println(TYPE_NAMES[mTypes[i]] + "," + mFrames[i] + "," + mNanotimes[i] + ","
+            + mValues[i]);
+      }
+    } finally {
+      pw.close();
+    }
+  }
+}
@@ -1,12 +1,7 @@
 package com.facebook.audiolat;
 
 import android.content.Context;
-import android.media.AudioAttributes;
-import android.media.AudioFormat;
 import android.media.AudioManager;
-import android.media.AudioRecord;
-import android.media.AudioTimestamp;
-import android.media.AudioTrack;
 import android.media.MediaRecorder;
 import android.os.Trace;
 import android.util.Log;
@@ -17,189 +12,277 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.net.IDN;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 public class JavaAudio {
   public static final String LOG_ID = "audiolat";
-  private long midi_timestamp = -1;
-  private long last_midi_timestamp = -1;
+  // capture ring: 64 x 16 KB is ~10 seconds of 48 kHz mono s16
+  private static final int CAPTURE_RING_SLOTS = 64;
+  private static final int CAPTURE_RING_SLOT_SIZE_IN_BYTES = 16384;
+  // longest begin-to-end delay looked for by the on-line analysis
+  private static final double MAX_DELAY_MS = 1000.0;
+  // pulse-window capture: data kept before each pulse
+  private static final int PULSE_PREROLL_MS = 100;
+  // latency samples within this time of a glitch are flagged
+  private static final int GLITCH_GUARD_MS = 50;
+  // simulated device (api "simulated"): 2 ms output and 3 ms input delay,
+  // 0.5 ms of jitter
+  private static final float SIMULATED_OUTPUT_DELAY_MS = 2.0f;
+  private static final float SIMULATED_INPUT_DELAY_MS = 3.0f;
+  private static final float SIMULATED_JITTER_MS = 0.5f;
+  // with a reference channel: speaker to microphone (~1 m)
+  private static final float SIMULATED_ACOUSTIC_DELAY_MS = 3.0f;
+  private static final float SIMULATED_NOISE_LEVEL = 0.001f;
+  private TriggerHub mTriggerHub = null;
+  private StreamPool mStreamPool = null;
 
-  public void javaMidiSignal(long nanotime) {
-      midi_timestamp = nanotime;
+  // external (midi/usb) triggers
+  public void setTriggerHub(TriggerHub hub) {
+    mTriggerHub = hub;
+  }
+
+  // take the streams from `pool` (and leave them open) instead of creating
+  // and releasing them on every run
+  public void setStreamPool(StreamPool pool) {
+    mStreamPool = pool;
   }
 
   public void runJavaAudio(final Context context, final TestSettings settings) {
     Log.d(LOG_ID, "Start java experiment");
     android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
-    final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
-    int recordBufferSizeInBytes_ = AudioRecord.getMinBufferSize(
-            settings.sampleRate, AudioFormat.CHANNEL_IN_MONO, AUDIO_FORMAT);
-    int playbackBufferSizeInBytes_ = AudioTrack.getMinBufferSize(
-            settings.sampleRate, AudioFormat.CHANNEL_OUT_MONO, AUDIO_FORMAT);
+    StreamPool.Streams streams = null;
+    LatencyBackend backend;
+    if (mStreamPool != null) {
+      streams = mStreamPool.acquire(settings);
+      backend = streams.getBackend();
+    } else {
+      backend = new AudioTrackBackend(settings);
+    }
+    runLoop(settings, backend, streams);
+    // stop both recorder and player
+    backend.stop();
+    Trace.endSection();
+    Trace.endSection();
+    if (streams != null) {
+      // left open for the next run
+      mStreamPool.recycle(streams);
+    } else {
+      backend.release();
+    }
+  }
 
+  // run the java loop against a simulated device: the latency is known, so
+  // this measures the harness itself
+  public void runSimulated(final TestSettings settings) {
+    Log.d(LOG_ID, "Start simulated experiment");
+    int burstSizeInFrames = (settings.burstSizeInFrames > 0)
+        ? settings.burstSizeInFrames : settings.sampleRate / 100;
+    SimulatedBackend backend = new SimulatedBackend(settings.sampleRate, burstSizeInFrames);
+    backend.setSampleFormat(settings.sampleFormat);
+    int bytesPerSample = SampleFormat.getBytesPerSample(settings.sampleFormat);
     if (settings.playoutBufferSizeInBytes > 0) {
-      Log.d(LOG_ID, "Playback min buffer size is " + playbackBufferSizeInBytes_  +
-              " change to:"+settings.playoutBufferSizeInBytes );
-      playbackBufferSizeInBytes_ = settings.playoutBufferSizeInBytes;
-    }
-
-    Log.e(LOG_ID, "playback buffer size:" + playbackBufferSizeInBytes_);
-
-
-    // create player object
-    final AudioTrack player =
-            new AudioTrack.Builder()
-                    .setAudioAttributes(new AudioAttributes.Builder()
-                            .setUsage(settings.usage)
-                            .setContentType(settings.contentType)
-                            .build())
-                    .setAudioFormat(new AudioFormat.Builder()
-                            .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
-                            .setSampleRate(settings.sampleRate)
-                            .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
-                            .build())
-                    .setTransferMode(AudioTrack.MODE_STREAM)
-                    .setBufferSizeInBytes(playbackBufferSizeInBytes_)
-                    .setPerformanceMode(settings.javaaudioPerformanceMode)
-                    .build();
-
-    if (settings.recordBufferSizeInBytes > 0){
-      Log.d(LOG_ID, "Recording min size is " + recordBufferSizeInBytes_  +
-                 " change to:"+settings.recordBufferSizeInBytes );
-      recordBufferSizeInBytes_ = settings.recordBufferSizeInBytes;
-
-    }
-    final ByteBuffer recordData = ByteBuffer.allocateDirect(recordBufferSizeInBytes_ * 4);
-
-    // create record object
-    final AudioRecord recorder =
-        new AudioRecord.Builder()
-            .setAudioSource(settings.inputPreset)
-            .setAudioFormat(new AudioFormat.Builder()
-                                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
-                                .setSampleRate(settings.sampleRate)
-                                .setChannelMask(AudioFormat.CHANNEL_IN_MONO)
-                                .build())
-                                .setBufferSizeInBytes(recordBufferSizeInBytes_)
-                .build();
-
-    final int recordBufferSizeInBytes = recordBufferSizeInBytes_;
-    final int playbackBufferSizeInByte = playbackBufferSizeInBytes_;
-    final byte audioData[] = recordData.array();
+      backend.setOutputBufferSizeInFrames(settings.playoutBufferSizeInBytes / bytesPerSample);
+    }
+    if (settings.recordBufferSizeInBytes > 0) {
+      backend.setInputBufferSizeInFrames(settings.recordBufferSizeInBytes
+          / (bytesPerSample * LatencyLoop.getInputChannelCount(settings)));
+    }
+    backend.setOutputDelayInFrames(msToFrames(SIMULATED_OUTPUT_DELAY_MS, settings.sampleRate));
+    backend.setInputDelayInFrames(msToFrames(SIMULATED_INPUT_DELAY_MS, settings.sampleRate));
+    backend.setJitterInFrames(msToFrames(SIMULATED_JITTER_MS, settings.sampleRate));
+    backend.setNoiseLevel(SIMULATED_NOISE_LEVEL);
+    if (settings.referenceChannel > 0) {
+      // the reference channel skips the acoustic path
+      backend.setAcousticDelayInFrames(
+          msToFrames(SIMULATED_ACOUSTIC_DELAY_MS, settings.sampleRate));
+      backend.setReferenceChannel(settings.referenceChannel);
+    }
+    runLoop(settings, backend, null);
+    Log.d(LOG_ID,
+        "simulated: underruns: " + backend.getUnderrunCount()
+            + " overruns: " + backend.getOverrunCount()
+            + " dropouts: " + backend.getDropoutCount());
+    backend.stop();
+    backend.release();
+  }
+
+  private static int msToFrames(float ms, int sampleRate) {
+    return Math.round(ms * sampleRate / 1000);
+  }
+
+  // `streams` (null to allocate them) holds the buffers of the loop
+  // the detector for the captures of `settings`, as written by this class
+  static LatencyDetector createDetector(
+      TestSettings settings, LatencyDetector.Listener listener) {
+    // markers are at least 100 ms apart, unless the signals are closer
+    int holdFrames = settings.sampleRate / 10;
+    long intervalMs = LatencyLoop.getSignalIntervalMs(settings);
+    if (intervalMs > 0) {
+      holdFrames = (int) Math.min(holdFrames, intervalMs * settings.sampleRate / 2000);
+    }
+    LatencyDetector detector;
+    if (settings.referenceChannel > 0) {
+      // the delay from the reference channel to the acoustic one
+      detector = new LatencyDetector(settings.endSignal, settings.endSignalSizeInBytes,
+          settings.referenceChannel - 1, settings.sampleRate, LatencyDetector.DEFAULT_THRESHOLD,
+          MAX_DELAY_MS, holdFrames, listener);
+    } else {
+      detector = new LatencyDetector(settings.beginSignal, settings.beginSignalSizeInBytes,
+          settings.endSignal, settings.endSignalSizeInBytes, settings.sampleRate,
+          LatencyDetector.DEFAULT_THRESHOLD, MAX_DELAY_MS, holdFrames, listener);
+    }
+    detector.setSampleFormat(settings.sampleFormat);
+    return detector;
+  }
 
+  private static void closeChannel(WritableByteChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void runLoop(final TestSettings settings, final LatencyBackend backend,
+      StreamPool.Streams streams) {
     // open the record file path
-    BufferedOutputStream os = null;
+    WritableByteChannel os = null;
     Log.d(LOG_ID, settings.outputFilePath);
+    final int channelCount = LatencyLoop.getInputChannelCount(settings);
+    final int frameSizeInBytes =
+        SampleFormat.getBytesPerSample(settings.sampleFormat) * channelCount;
     try {
-      os = new BufferedOutputStream(new FileOutputStream(settings.outputFilePath));
-    } catch (FileNotFoundException e) {
-      Log.e(LOG_ID, "File not found for recording ", e);
+      if (settings.soakFileSeconds > 0) {
+        os = new RotatingChannel(settings.outputFilePath, settings.sampleRate, channelCount,
+            settings.sampleFormat, settings.wavOutput, getRunMetadata(settings, backend),
+            settings.soakFileSeconds, settings.soakKeepFiles);
+      } else if (settings.wavOutput) {
+        // preallocate the whole run (unless only the pulse windows are kept)
+        WavFileWriter wav = new WavFileWriter(settings.outputFilePath, settings.sampleRate,
+            channelCount, SampleFormat.getBitsPerSample(settings.sampleFormat),
+            SampleFormat.getWavFormatTag(settings.sampleFormat), (settings.pulseWindowMs > 0)
+                ? 0 : (long) settings.sampleRate * settings.timeout * frameSizeInBytes);
+        wav.setMetadata(getRunMetadata(settings, backend));
+        os = wav;
+      } else {
+        os = new FileOutputStream(settings.outputFilePath).getChannel();
+      }
+    } catch (IOException e) {
+      Log.e(LOG_ID, "Cannot open file for recording ", e);
       return;
     }
-    final BufferedOutputStream fos = os;
-
-    recorder.setNotificationMarkerPosition(settings.sampleRate * settings.timeout);
-    recorder.setPositionNotificationPeriod(settings.sampleRate / 2);
-    AudioTimestamp ts1 = new AudioTimestamp();
-    AudioTimestamp ts2 = new AudioTimestamp();
+    PulseWindowChannel pulseWindows = null;
+    if (settings.pulseWindowMs > 0) {
+      // keep the begin signal, the end signal (both s16), and the expected
+      // delay (plus margin) between them
+      int windowFrames = (settings.beginSignalSizeInBytes + settings.endSignalSizeInBytes) / 2
+          + msToFrames(settings.pulseWindowMs, settings.sampleRate);
+      try {
+        pulseWindows = new PulseWindowChannel(os,
+            new PrintWriter(new BufferedOutputStream(
+                new FileOutputStream(settings.outputFilePath + ".windows.csv"))),
+            frameSizeInBytes, msToFrames(PULSE_PREROLL_MS, settings.sampleRate), windowFrames);
+      } catch (FileNotFoundException e) {
+        Log.e(LOG_ID, "Cannot open the pulse window index ", e);
+        closeChannel(os);
+        return;
+      }
+      os = pulseWindows;
+    }
+    final WritableByteChannel fos = os;
 
-    // create thread
-    Thread rec = new Thread(new Runnable() {
+    // the audio thread pushes the recorded data into a ring, and a low
+    // priority thread writes it into the file (and runs the on-line
+    // detector)
+    CaptureRing captureRing = new CaptureRing(CAPTURE_RING_SLOTS, CAPTURE_RING_SLOT_SIZE_IN_BYTES);
+    final CaptureWriter captureWriter = new CaptureWriter(captureRing, fos);
+    Thread writer = new Thread(new Runnable() {
       @Override
       public void run() {
-        midi_timestamp = 0;
-        int written_frames = 0;
-        float last_ts = -settings.timeBetweenSignals;
-        int rec_buffer_index = 0;
-        int player_offset = 0;
-        float time_sec = 0;
-        byte[] endSignal = settings.endSignal.array();
-        byte[] silence = new byte[playbackBufferSizeInByte];
-
-        recorder.startRecording();
-        player.play();
-        while (recorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
-          int diff_sec = (int)(time_sec - last_ts);
-          if ((settings.timeBetweenSignals > 0 && diff_sec >= settings.timeBetweenSignals) || (midi_timestamp > 0)  || player_offset > 0) {
-            // Either we have a midi timestamp or there is sufficient time from last signal
-            long nano = System.nanoTime();
-            int written = player.write(endSignal, player_offset, endSignal.length - player_offset, AudioTrack.WRITE_NON_BLOCKING);
-            if (midi_timestamp > 0 && player_offset == 0) {
-              Log.d(LOG_ID,
-                      String.format("midi triggered: %d curr time: %d MS, delay: %d MS", midi_timestamp, nano/1000000,
-                              (nano - midi_timestamp)/1000000));
-            }
-            if (written > 0) {
-              player_offset += written;
-            }
-            if (written == AudioTrack.ERROR_BAD_VALUE) {
-              Log.e(LOG_ID, "Failed to write: offset =  " + player_offset + ", len = "+endSignal.length);
-            }
-            if (player_offset >= endSignal.length || written == 0) {
-              // Written everything, reset and wait for next trigger
-              player_offset = 0;
-              midi_timestamp = 0;
-            }
-
-          } else {
-            player.write(silence, 0, silence.length, AudioTrack.WRITE_NON_BLOCKING);
-          }
-          int read_bytes = recorder.read(audioData, 0, audioData.length, AudioRecord.READ_NON_BLOCKING);
-          if (read_bytes > 0) {
-            try {
-              if (((settings.timeBetweenSignals > 0)
-                      && (diff_sec >= settings.timeBetweenSignals))
-                  || (rec_buffer_index > 0)) {
-                // An timed event has been triggered, write the dirac start signal
-                // signal size in bytes
-                int signal_size_in_bytes =
-                        (read_bytes > settings.beginSignalSizeInBytes - rec_buffer_index)
-                                ? settings.beginSignalSizeInBytes - rec_buffer_index
-                                : read_bytes;
-
-                if (rec_buffer_index > 0) {
-                  // Write tail
-                  fos.write(settings.beginSignal.array(), rec_buffer_index, signal_size_in_bytes);
-                  fos.write(audioData, signal_size_in_bytes, read_bytes - signal_size_in_bytes);
-                } else {
-                  // Write the beginning of the signal, the recorded data to be written could be 0
-                  fos.write(audioData, 0, read_bytes - signal_size_in_bytes);
-                  fos.write(settings.beginSignal.array(), 0, signal_size_in_bytes);
-                }
-                rec_buffer_index += signal_size_in_bytes;
-                last_ts = time_sec;
-              } else {
-                fos.write(audioData, 0, read_bytes);
-              }
-            } catch (IOException e) {
-              e.printStackTrace();
-            }
-
-            written_frames += read_bytes / 2;
-            time_sec = (float) written_frames / (float) settings.sampleRate;
-
-            if (rec_buffer_index >= settings.beginSignalSizeInBytes) {
-              rec_buffer_index = 0;
-            }
-
-            if (time_sec > settings.timeout) {
-              break;
-            }
-
-          } else {
-            Log.e(LOG_ID, "Error reading audio data! ret: " + read_bytes);
-          }
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        captureWriter.run();
+      }
+    });
+    final LatencyLoop loop = (streams != null)
+        ? new LatencyLoop(settings, backend, captureRing, streams.getSilence(),
+            streams.getAudioData())
+        : new LatencyLoop(settings, backend, captureRing);
+    loop.setTriggerHub(mTriggerHub);
+    loop.setPulseWindows(pulseWindows);
 
-          try {
-            Thread.sleep(40);
-          } catch (InterruptedException e) {
-            e.printStackTrace();
+    // on-line latency analysis
+    PrintWriter pw = null;
+    PrintWriter spw = null;
+    try {
+      if (settings.onlineAnalysis) {
+        pw = new PrintWriter(new BufferedOutputStream(
+            new FileOutputStream(settings.outputFilePath + ".latency.csv")));
+        pw.println("begin_frame,end_frame,delay_ms,correlation,snr_db,glitch");
+      }
+      if (settings.soakFileSeconds > 0) {
+        // one stats window per capture file
+        spw = new PrintWriter(new BufferedOutputStream(
+            new FileOutputStream(settings.outputFilePath + ".soak.csv")));
+      }
+    } catch (FileNotFoundException e) {
+      Log.e(LOG_ID, "File not found for latency results ", e);
+      if (pw != null) {
+        pw.close();
+      }
+      // with the pulse window index, if any
+      closeChannel(fos);
+      return;
+    }
+    final PrintWriter results = pw;
+    final SoakStats soakStats = (spw != null)
+        ? new SoakStats(settings.sampleRate, settings.soakFileSeconds, MAX_DELAY_MS, spw) : null;
+    final GlitchMonitor glitchMonitor = loop.getGlitchMonitor();
+    final long glitchGuardFrames = msToFrames(GLITCH_GUARD_MS, settings.sampleRate);
+    if (results != null || soakStats != null) {
+      LatencyDetector.Listener listener = new LatencyDetector.Listener() {
+        @Override
+        public void onLatency(
+            long beginFrame, long endFrame, double delayMs, float score, double snrDb) {
+          // the detector runs in the capture writer thread, behind the
+          // glitch checks of the audio thread
+          boolean glitch =
+              glitchMonitor.flagMeasurement(beginFrame, endFrame, glitchGuardFrames);
+          if (results != null) {
+            Log.d(LOG_ID, "latency: begin: " + beginFrame + " end: " + endFrame
+                    + " delay: " + delayMs + " MS, score: " + score + " snr: " + snrDb + " dB"
+                    + (glitch ? " (glitch)" : ""));
+            results.println(beginFrame + "," + endFrame + "," + delayMs + "," + score + ","
+                + snrDb + "," + (glitch ? 1 : 0));
+          }
+          // measurements around a glitch are left out of the stats
+          if (soakStats != null && !glitch && soakStats.add(endFrame, delayMs)) {
+            LatencyHistogram total = soakStats.getTotal();
+            Log.d(LOG_ID, "soak: window: " + (soakStats.getWindowIndex() - 1)
+                    + " total events: " + total.getCount()
+                    + " p50: " + total.getPercentile(50) + " MS"
+                    + " p99: " + total.getPercentile(99) + " MS");
           }
         }
+      };
+      captureWriter.setDetector(createDetector(settings, listener));
+    }
+    final PrintWriter latencyResults = pw;
+    final PrintWriter soakResults = spw;
+    Log.d(LOG_ID, "scheduler: " + settings.javaaudioScheduler
+            + " burst: " + loop.getBurstSizeInFrames() + " frames");
+
+    // create thread
+    Thread rec = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        loop.run();
       }
     });
 
+    writer.start();
     rec.start();
 
     try {
@@ -207,18 +290,131 @@ public class JavaAudio {
     } catch (InterruptedException e) {
       e.printStackTrace();
     }
-    int res = recorder.getTimestamp(ts2, AudioTimestamp.TIMEBASE_MONOTONIC);
+    // let the writer drain the ring
+    captureRing.finish();
+    captureWriter.stop();
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    }
+    if (loop.getWriteErrors() > 0 || loop.getReadErrors() > 0) {
+      Log.e(LOG_ID, "Audio errors: write: " + loop.getWriteErrors()
+              + " read: " + loop.getReadErrors());
+    }
+    if (loop.getTriggerCount() > 0) {
+      Log.d(LOG_ID,
+          "trigger: events: " + loop.getTriggerCount()
+              + " trigger-to-write delay (us) min: " + loop.getTriggerDelayMinNs() / 1000
+              + " avg: " + loop.getTriggerDelayAvgNs() / 1000
+              + " max: " + loop.getTriggerDelayMaxNs() / 1000);
+    }
+    if (mTriggerHub != null) {
+      for (int i = 0; i < mTriggerHub.getNumSources(); i++) {
+        TimestampLatencyEstimator.LatencyStats playout = mTriggerHub.getPlayoutLatency(i);
+        Log.d(LOG_ID,
+            "trigger: source: " + i + " (" + mTriggerHub.getSourceName(i) + ")"
+                + " events: " + mTriggerHub.getPostedCount(i)
+                + " dropped: " + mTriggerHub.getDroppedCount(i)
+                + " trigger-to-playout (ms) avg: " + playout.getMean()
+                + " min: " + playout.getMin() + " max: " + playout.getMax()
+                + " samples: " + playout.getCount());
+      }
+    }
+    Log.d(LOG_ID, "glitch: " + getGlitchSummary(glitchMonitor)
+            + " rejected latency samples: " + glitchMonitor.getFlaggedCount());
+    if (glitchMonitor.getTotalCount() > 0) {
+      try {
+        glitchMonitor.writeCsv(settings.outputFilePath + ".glitches.csv");
+      } catch (IOException e) {
+        Log.e(LOG_ID, "Error writing the glitch events ", e);
+      }
+    }
+    EventJournal journal = loop.getJournal();
+    if (journal.size() > 0) {
+      try {
+        journal.flush(settings.outputFilePath + ".journal");
+      } catch (IOException e) {
+        Log.e(LOG_ID, "Error writing the event journal ", e);
+      }
+      if (journal.getDropped() > 0) {
+        Log.e(LOG_ID, "trigger: journal full, dropped events: " + journal.getDropped());
+      }
+    }
+    if (captureWriter.getError() != null) {
+      Log.e(LOG_ID, "Error writing the recording ", captureWriter.getError());
+    }
+    if (captureWriter.getDetectorError() != null) {
+      Log.e(LOG_ID, "On-line analysis stopped ", captureWriter.getDetectorError());
+    }
     Log.d(LOG_ID,
-        "res: " + res + " ts1: " + (ts1.framePosition) + " ts2: " + (ts2.framePosition)
-            + " diff: " + (float) (ts2.nanoTime - ts1.nanoTime) / 1000000);
+        "capture: written: " + captureWriter.getBytesWritten()
+            + " bytes, overflows: " + captureRing.getOverflowCount()
+            + " dropped: " + captureRing.getDroppedBytes()
+            + " bytes (written as silence), max pending slots: " + captureRing.getMaxPendingSlots()
+            + "/" + captureRing.getNumSlots());
+    if (pulseWindows != null) {
+      Log.d(LOG_ID,
+          "capture: pulse windows: " + pulseWindows.getWindowCount()
+              + " kept: " + pulseWindows.getOutputBytes() + " bytes"
+              + " dropped markers: " + pulseWindows.getDroppedMarkers());
+    }
+    TimestampLatencyEstimator estimator = loop.getTimestampEstimator();
+    if (estimator != null) {
+      TimestampLatencyEstimator.LatencyStats output = estimator.getOutputLatency();
+      TimestampLatencyEstimator.LatencyStats input = estimator.getInputLatency();
+      Log.d(LOG_ID,
+          "tslat: output latency (ms) avg: " + output.getMean() + " min: " + output.getMin()
+              + " max: " + output.getMax() + " samples: " + output.getCount());
+      Log.d(LOG_ID,
+          "tslat: input latency (ms) avg: " + input.getMean() + " min: " + input.getMin()
+              + " max: " + input.getMax() + " samples: " + input.getCount());
+      Log.d(LOG_ID,
+          "tslat: round-trip latency (ms): " + estimator.getRoundTripLatencyMs()
+              + " drift (ppm) output: " + estimator.getOutputDriftPpm()
+              + " input: " + estimator.getInputDriftPpm());
+    }
 
-    // stop both recorder and player
-    recorder.stop();
-    Trace.endSection();
+    closeChannel(fos);
+    if (latencyResults != null) {
+      latencyResults.close();
+    }
+    if (soakStats != null) {
+      soakStats.finish();
+      LatencyHistogram total = soakStats.getTotal();
+      Log.d(LOG_ID, "soak: events: " + total.getCount()
+              + " latency (ms) p50: " + total.getPercentile(50)
+              + " p90: " + total.getPercentile(90) + " p99: " + total.getPercentile(99)
+              + " max: " + total.getMax());
+      soakResults.close();
+    }
+  }
 
-    recorder.release();
-    player.stop();
-    Trace.endSection();
-    player.release();
+  private static String getGlitchSummary(GlitchMonitor monitor) {
+    StringBuilder summary = new StringBuilder();
+    for (int i = 0; i < GlitchMonitor.NUM_TYPES; i++) {
+      summary.append(GlitchMonitor.getTypeName(i)).append(": ").append(monitor.getCount(i))
+          .append(" ");
+    }
+    return summary.append("dropped events: ").append(monitor.getDropped()).toString();
+  }
+
+  private static String getRunMetadata(TestSettings settings, LatencyBackend backend) {
+    return "audiolat api: " + ((backend instanceof SimulatedBackend) ? "simulated" : "javaaudio")
+        + " sr: " + settings.sampleRate
+        + " t: " + settings.timeout
+        + " rbs: " + settings.recordBufferSizeInBytes
+        + " pbs: " + settings.playoutBufferSizeInBytes
+        + " usage: " + settings.usage
+        + " ctype: " + settings.contentType
+        + " iprst: " + settings.inputPreset
+        + " tbs: " + settings.timeBetweenSignals
+        + " tbsms: " + settings.timeBetweenSignalsMs
+        + " tbsjitter: " + settings.signalJitterMs
+        + " tssplice: " + (settings.timestampSplice ? 1 : 0)
+        + " refch: " + settings.referenceChannel
+        + " format: " + SampleFormat.getName(settings.sampleFormat)
+        + " atpm: " + settings.javaaudioPerformanceMode
+        + " jsched: " + settings.javaaudioScheduler;
   }
 }
@@ -0,0 +1,59 @@
+package com.facebook.audiolat;
+
+import java.nio.ByteBuffer;
+
+// A duplex audio device as seen by the java experiment loop: mono output,
+// mono or stereo input, little-endian samples in the sample format of the
+// settings (see SampleFormat).
+// Sizes are in bytes, as in AudioTrack/AudioRecord. write() never blocks,
+// read() blocks only when asked to. Negative return values are errors.
+//
+// Data goes through (direct) ByteBuffers, from/to their position, which is
+// advanced past the bytes written/read, so there are no copies on the java
+// heap.
+public interface LatencyBackend {
+  // position of a stream at a given time (AudioTimestamp-like). Positions
+  // count from the start() of the current run, as the frames written and
+  // read, even when the device streams are reused across runs.
+  class Timestamp {
+    public long framePosition;
+    public long nanoTime;
+  }
+
+  int getSampleRate();
+
+  int getOutputBufferSizeInBytes();
+
+  int getInputBufferSizeInBytes();
+
+  void start();
+
+  void stop();
+
+  void release();
+
+  boolean isRunning();
+
+  // clock used for the trigger and timestamp times
+  long getNanoTime();
+
+  // false if the device has no real clock, and only runs when the loop reads
+  // from it (SimulatedBackend): there is then nothing to wait for
+  boolean isRealTime();
+
+  int write(ByteBuffer data, int sizeInBytes);
+
+  int read(ByteBuffer data, int sizeInBytes, boolean blocking);
+
+  boolean getOutputTimestamp(Timestamp timestamp);
+
+  boolean getInputTimestamp(Timestamp timestamp);
+
+  // xrun counts since the start, -1 if the device does not report them
+  long getUnderrunCount();
+
+  long getOverrunCount();
+
+  // `listener` is run every `periodInFrames` frames of input
+  void setInputPositionListener(int periodInFrames, Runnable listener);
+}
@@ -0,0 +1,280 @@
+package com.facebook.audiolat;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+// On-line version of the begin/end marker matching done by
+// `scripts/find_pulses.py`. The recorded (s16le) stream is correlated against
+// both the begin and the end signal, and every end signal found after a begin
+// signal is reported as a latency event.
+//
+// The delay is measured to a fraction of a sample (from the interpolated
+// correlation peaks), and each event carries the SNR of its end signal.
+// Signals with a sharp autocorrelation (MLS, golay pairs) get the best
+// resolution, and tolerate more noise than a chirp of the same length.
+//
+// In reference mode, the stream is stereo, with the output looped back
+// (electrically) into a reference channel. There is no begin signal: the end
+// signal is looked for in both channels, and its arrival in the reference
+// channel is the begin marker of its arrival in the other (acoustic) one.
+public class LatencyDetector {
+  public interface Listener {
+    // `beginFrame`/`endFrame` are the nearest frames to the peaks, while
+    // `delayMs` is interpolated
+    void onLatency(long beginFrame, long endFrame, double delayMs, float score, double snrDb);
+  }
+
+  public static final float DEFAULT_THRESHOLD = 0.5f;
+  // the begin signal is spliced digitally into the capture, so it matches
+  // almost perfectly. Its template is very short, so a low threshold would
+  // also match plain noise.
+  public static final float BEGIN_THRESHOLD = 0.95f;
+  // number of begin markers remembered while waiting for their end signal
+  private static final int MAX_PENDING_BEGINS = 16;
+  private static final int SCRATCH_SIZE = 1024;
+
+  private final int mSampleRate;
+  private final long mMaxDelayFrames;
+  private final Listener mListener;
+  private final StreamingCorrelator mBeginCorrelator;
+  private final StreamingCorrelator mEndCorrelator;
+  private final long[] mBeginFrames = new long[MAX_PENDING_BEGINS];
+  private final double[] mBeginFractions = new double[MAX_PENDING_BEGINS];
+  private int mBeginCount = 0;
+  private int mBeginIndex = 0;
+  private final float[] mScratch = new float[SCRATCH_SIZE];
+  // 0 or 1 in reference mode, -1 for a mono stream
+  private final int mReferenceChannel;
+  private int mSampleFormat = SampleFormat.PCM_16;
+  private int mBytesPerSample = 2;
+  private int mFrameSizeInBytes;
+  // bytes of a frame split across two process() calls (a stereo s24 frame
+  // at most)
+  private final ByteBuffer mPartialFrame = ByteBuffer.allocate(8);
+  private int mPartialSize = 0;
+
+  public LatencyDetector(ByteBuffer beginSignal, int beginSignalSizeInBytes, ByteBuffer endSignal,
+      int endSignalSizeInBytes, int sampleRate, float threshold, double maxDelayMs,
+      Listener listener) {
+    // do not report the same marker twice within 100 ms (as find_markers())
+    this(beginSignal, beginSignalSizeInBytes, endSignal, endSignalSizeInBytes, sampleRate,
+        threshold, maxDelayMs, sampleRate / 10, listener);
+  }
+
+  // `holdFrames` is the shortest distance between two markers of the same
+  // kind
+  public LatencyDetector(ByteBuffer beginSignal, int beginSignalSizeInBytes, ByteBuffer endSignal,
+      int endSignalSizeInBytes, int sampleRate, float threshold, double maxDelayMs,
+      int holdFrames, Listener listener) {
+    this(toFloats(beginSignal, beginSignalSizeInBytes), Math.max(threshold, BEGIN_THRESHOLD),
+        toFloats(endSignal, endSignalSizeInBytes), threshold, -1, sampleRate, maxDelayMs,
+        holdFrames, listener);
+  }
+
+  // reference mode: `referenceChannel` (0 or 1) of the stereo stream is the
+  // loopback of the output
+  public LatencyDetector(ByteBuffer endSignal, int endSignalSizeInBytes, int referenceChannel,
+      int sampleRate, float threshold, double maxDelayMs, int holdFrames, Listener listener) {
+    this(toFloats(endSignal, endSignalSizeInBytes), threshold,
+        toFloats(endSignal, endSignalSizeInBytes), threshold, referenceChannel, sampleRate,
+        maxDelayMs, holdFrames, listener);
+  }
+
+  private LatencyDetector(float[] beginTemplate, float beginThreshold, float[] endTemplate,
+      float threshold, int referenceChannel, int sampleRate, double maxDelayMs, int holdFrames,
+      Listener listener) {
+    mReferenceChannel = referenceChannel;
+    mFrameSizeInBytes = (referenceChannel < 0) ? 2 : 4;
+    mSampleRate = sampleRate;
+    mMaxDelayFrames = (long) (maxDelayMs * sampleRate / 1000.0);
+    mListener = listener;
+    StreamingCorrelator.PeakListener peakListener = new StreamingCorrelator.PeakListener() {
+      @Override
+      public void onPeak(
+          StreamingCorrelator correlator, long frame, double fraction, float score) {
+        if (correlator == mBeginCorrelator) {
+          onBeginPeak(frame, fraction);
+        } else {
+          onEndPeak(frame, fraction, score);
+        }
+      }
+    };
+    mBeginCorrelator = new StreamingCorrelator(
+        beginTemplate, beginTemplate.length, beginThreshold, holdFrames, peakListener);
+    mEndCorrelator = new StreamingCorrelator(
+        endTemplate, endTemplate.length, threshold, holdFrames, peakListener);
+  }
+
+  private static float[] toFloats(ByteBuffer signal, int sizeInBytes) {
+    // signals are stored from position 0, regardless of the current position
+    ByteBuffer buffer = signal.duplicate();
+    buffer.clear();
+    ShortBuffer shorts = buffer.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    float[] samples = new float[sizeInBytes / 2];
+    for (int i = 0; i < samples.length; i++) {
+      samples[i] = (float) (shorts.get(i) / utils.MAX);
+    }
+    return samples;
+  }
+
+  // format of the processed samples (s16 by default). The signals are
+  // always s16.
+  public void setSampleFormat(int format) {
+    mSampleFormat = format;
+    mBytesPerSample = SampleFormat.getBytesPerSample(format);
+    mFrameSizeInBytes = mBytesPerSample * ((mReferenceChannel < 0) ? 1 : 2);
+  }
+
+  public void reset() {
+    mBeginCorrelator.reset();
+    mEndCorrelator.reset();
+    mBeginCount = 0;
+    mBeginIndex = 0;
+    mPartialSize = 0;
+  }
+
+  // process samples (stereo frames in reference mode), in the same order
+  // they are written to the capture
+  public void process(byte[] data, int offset, int length) {
+    if (mReferenceChannel >= 0 || mSampleFormat != SampleFormat.PCM_16) {
+      process(ByteBuffer.wrap(data), offset, length);
+      return;
+    }
+    int numSamples = length / 2;
+    while (numSamples > 0) {
+      int count = Math.min(numSamples, SCRATCH_SIZE);
+      utils.convertBytesToFloats(data, offset, 2 * count, mScratch, 0, true);
+      mBeginCorrelator.write(mScratch, 0, count);
+      mEndCorrelator.write(mScratch, 0, count);
+      offset += 2 * count;
+      numSamples -= count;
+    }
+  }
+
+  // same, from byte `offset` of a buffer (the buffer position is not used).
+  // `length` does not need to be a whole number of frames: a partial frame
+  // is completed by the next call.
+  public void process(ByteBuffer data, int offset, int length) {
+    if (mPartialSize > 0) {
+      int count = Math.min(mFrameSizeInBytes - mPartialSize, length);
+      for (int i = 0; i < count; i++) {
+        mPartialFrame.put(mPartialSize + i, data.get(offset + i));
+      }
+      mPartialSize += count;
+      offset += count;
+      length -= count;
+      if (mPartialSize < mFrameSizeInBytes) {
+        return;
+      }
+      processFrames(mPartialFrame, 0, 1);
+      mPartialSize = 0;
+    }
+    int numFrames = length / mFrameSizeInBytes;
+    processFrames(data, offset, numFrames);
+    offset += numFrames * mFrameSizeInBytes;
+    for (int i = 0; i < length - numFrames * mFrameSizeInBytes; i++) {
+      mPartialFrame.put(i, data.get(offset + i));
+    }
+    mPartialSize = length - numFrames * mFrameSizeInBytes;
+  }
+
+  private void processFrames(ByteBuffer data, int offset, int numFrames) {
+    while (numFrames > 0) {
+      int count = Math.min(numFrames, SCRATCH_SIZE);
+      if (mReferenceChannel < 0) {
+        SampleFormat.toFloats(
+            mSampleFormat, data, offset, count, mFrameSizeInBytes, mScratch, 0);
+        mBeginCorrelator.write(mScratch, 0, count);
+        mEndCorrelator.write(mScratch, 0, count);
+      } else {
+        SampleFormat.toFloats(mSampleFormat, data, offset + mBytesPerSample * mReferenceChannel,
+            count, mFrameSizeInBytes, mScratch, 0);
+        mBeginCorrelator.write(mScratch, 0, count);
+        SampleFormat.toFloats(mSampleFormat, data,
+            offset + mBytesPerSample * (1 - mReferenceChannel), count, mFrameSizeInBytes,
+            mScratch, 0);
+        mEndCorrelator.write(mScratch, 0, count);
+      }
+      offset += mFrameSizeInBytes * count;
+      numFrames -= count;
+    }
+  }
+
+  // process a whole capture file (in the sample format), either raw or a wav
+  // file written by WavFileWriter
+  public void processFile(String path) throws IOException {
+    FileInputStream fis = new FileInputStream(path);
+    try {
+      FileChannel channel = fis.getChannel();
+      long start = 0;
+      long end = channel.size();
+      ByteBuffer header = ByteBuffer.allocate(WavFileWriter.HEADER_SIZE)
+                              .order(ByteOrder.LITTLE_ENDIAN);
+      channel.read(header, 0);
+      if (header.position() == WavFileWriter.HEADER_SIZE
+          && (header.getInt(0) == 0x46464952 || header.getInt(0) == 0x34364652)) {
+        // "RIFF" or "RF64": skip the header and any trailing chunk
+        start = WavFileWriter.HEADER_SIZE;
+        long dataSize = header.getInt(WavFileWriter.HEADER_SIZE - 4) & 0xffffffffL;
+        if (dataSize == 0xffffffffL) {
+          // RF64: the data size is in the ds64 chunk
+          dataSize = header.getLong(28);
+        }
+        end = Math.min(end, start + dataSize);
+      }
+      byte[] data = new byte[2 * SCRATCH_SIZE * 16];
+      ByteBuffer buffer = ByteBuffer.wrap(data);
+      long position = start;
+      while (position < end) {
+        buffer.clear();
+        if (end - position < data.length) {
+          buffer.limit((int) (end - position));
+        }
+        // only whole frames
+        int read = channel.read(buffer, position) / mFrameSizeInBytes * mFrameSizeInBytes;
+        if (read <= 0) {
+          break;
+        }
+        process(buffer, 0, read);
+        position += read;
+      }
+    } finally {
+      fis.close();
+    }
+  }
+
+  private void onBeginPeak(long frame, double fraction) {
+    mBeginFrames[mBeginIndex] = frame;
+    mBeginFractions[mBeginIndex] = fraction;
+    mBeginIndex = (mBeginIndex + 1) % MAX_PENDING_BEGINS;
+    mBeginCount = Math.min(mBeginCount + 1, MAX_PENDING_BEGINS);
+  }
+
+  private void onEndPeak(long frame, double fraction, float score) {
+    // pair with the closest begin marker before the end signal
+    int index = -1;
+    long begin = -1;
+    for (int i = 0; i < mBeginCount; i++) {
+      long candidate = mBeginFrames[i];
+      if (candidate >= 0 && candidate <= frame && frame - candidate <= mMaxDelayFrames
+          && candidate > begin) {
+        index = i;
+        begin = candidate;
+      }
+    }
+    if (index < 0) {
+      return;
+    }
+    // a begin marker is only used once
+    mBeginFrames[index] = -1;
+    if (mListener != null) {
+      double delay = (frame - begin) + (fraction - mBeginFractions[index]);
+      mListener.onLatency(begin, frame, delay * 1000.0 / mSampleRate, score,
+          StreamingCorrelator.getSnrDb(score));
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package com.facebook.audiolat;
+
+import java.util.Arrays;
+
+// Collects latency samples (in ms) and reports percentiles.
+public class LatencyDistribution {
+  private double[] mValues;
+  private int mCount = 0;
+
+  public LatencyDistribution() {
+    this(64);
+  }
+
+  public LatencyDistribution(int initialCapacity) {
+    mValues = new double[Math.max(initialCapacity, 1)];
+  }
+
+  public void add(double value) {
+    if (mCount == mValues.length) {
+      mValues = Arrays.copyOf(mValues, 2 * mValues.length);
+    }
+    mValues[mCount++] = value;
+  }
+
+  public int getCount() {
+    return mCount;
+  }
+
+  public void clear() {
+    mCount = 0;
+  }
+
+  // nearest-rank percentile, `percentile` in [0, 100]. NaN if there are no
+  // samples.
+  public double getPercentile(double percentile) {
+    if (mCount == 0) {
+      return Double.NaN;
+    }
+    double[] sorted = Arrays.copyOf(mValues, mCount);
+    Arrays.sort(sorted);
+    int rank = (int) Math.ceil(percentile / 100.0 * mCount);
+    return sorted[Math.max(0, Math.min(mCount - 1, rank - 1))];
+  }
+
+  public double getMax() {
+    return getPercentile(100);
+  }
+}
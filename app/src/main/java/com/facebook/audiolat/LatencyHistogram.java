@@ -0,0 +1,82 @@
+package com.facebook.audiolat;
+
+import java.util.Arrays;
+
+// Latency histogram (in ms) with fixed-width bins, so the memory use does not
+// depend on the number of samples (e.g. for runs of several hours). Values
+// past the last bin go into an overflow bin. Percentiles are approximated
+// by the upper edge of their bin.
+public class LatencyHistogram {
+  private final double mBinWidthMs;
+  private final long[] mBins;
+  private long mCount = 0;
+  private double mSum = 0;
+  private double mMin = Double.MAX_VALUE;
+  private double mMax = -Double.MAX_VALUE;
+
+  public LatencyHistogram(double binWidthMs, double maxMs) {
+    mBinWidthMs = binWidthMs;
+    // the last bin is the overflow bin
+    mBins = new long[(int) Math.ceil(maxMs / binWidthMs) + 1];
+  }
+
+  public void add(double valueMs) {
+    int bin = (int) (Math.max(valueMs, 0) / mBinWidthMs);
+    mBins[Math.min(bin, mBins.length - 1)]++;
+    mCount++;
+    mSum += valueMs;
+    mMin = Math.min(mMin, valueMs);
+    mMax = Math.max(mMax, valueMs);
+  }
+
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < mBins.length && i < other.mBins.length; i++) {
+      mBins[i] += other.mBins[i];
+    }
+    mCount += other.mCount;
+    mSum += other.mSum;
+    mMin = Math.min(mMin, other.mMin);
+    mMax = Math.max(mMax, other.mMax);
+  }
+
+  public long getCount() {
+    return mCount;
+  }
+
+  public double getMean() {
+    return (mCount > 0) ? mSum / mCount : Double.NaN;
+  }
+
+  public double getMin() {
+    return (mCount > 0) ? mMin : Double.NaN;
+  }
+
+  public double getMax() {
+    return (mCount > 0) ? mMax : Double.NaN;
+  }
+
+  // `percentile` in [0, 100]. NaN if there are no samples.
+  public double getPercentile(double percentile) {
+    if (mCount == 0) {
+      return Double.NaN;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * mCount));
+    long seen = 0;
+    for (int i = 0; i < mBins.length - 1; i++) {
+      seen += mBins[i];
+      if (seen >= rank) {
+        // never past the largest value seen
+        return Math.min((i + 1) * mBinWidthMs, mMax);
+      }
+    }
+    return mMax;
+  }
+
+  public void clear() {
+    Arrays.fill(mBins, 0);
+    mCount = 0;
+    mSum = 0;
+    mMin = Double.MAX_VALUE;
+    mMax = -Double.MAX_VALUE;
+  }
+}
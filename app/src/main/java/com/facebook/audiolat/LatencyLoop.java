@@ -0,0 +1,487 @@
+package com.facebook.audiolat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+// The java experiment loop: plays the end signal on a trigger (timer or
+// midi), and captures the input with the begin signal spliced in at the
+// trigger. It only talks to a LatencyBackend, so it runs the same on a
+// device (AudioTrackBackend) and on a JVM (SimulatedBackend).
+//
+// run() executes the loop in the calling thread until the timeout. It does
+// not allocate nor log: the capture goes to a CaptureRing (and the optional
+// detector), and errors are counted. All the audio goes through direct
+// buffers: the signals are read in place from the settings buffers, and the
+// recorded data is copied only into the capture ring.
+public class LatencyLoop {
+  // loop scheduling modes (settings.javaaudioScheduler)
+  // * legacy: sleep a fixed 40 ms per iteration
+  public static final int SCHEDULER_SLEEP = 0;
+  // * blocking reads of one burst pace the loop
+  public static final int SCHEDULER_BLOCKING = 1;
+  // * sleep until an input position notification (every burst) or a trigger
+  public static final int SCHEDULER_CALLBACK = 2;
+
+  // timestamp-based latency estimation, sampled 10 times per second
+  private static final int TIMESTAMP_SAMPLES_PER_SEC = 10;
+  // per-event trigger journal
+  private static final int JOURNAL_CAPACITY = 4096;
+  // glitch events kept (later ones are only counted)
+  private static final int GLITCH_CAPACITY = 4096;
+  // the signal interval jitter is the same on every run
+  private static final long JITTER_SEED = 1;
+
+  private final TestSettings mSettings;
+  private final LatencyBackend mBackend;
+  private final CaptureRing mCaptureRing;
+  private final int mBurstSizeInFrames;
+  // bytes per played frame, and per captured frame (stereo with a reference
+  // channel), in the selected sample format
+  private final int mOutputFrameSize;
+  private final int mInputFrameSize;
+  // the settings signals (the loop moves their positions), in the sample
+  // format
+  private final ByteBuffer mBeginSignal;
+  private final ByteBuffer mEndSignal;
+  private final ByteBuffer mSilence;
+  private final ByteBuffer mAudioData;
+  // timed signals: interval and jitter, in frames (no timed signals if the
+  // interval is 0)
+  private final long mIntervalFrames;
+  private final long mJitterFrames;
+  private final Random mJitterRandom = new Random(JITTER_SEED);
+  private long mSignalGridFrame = 0;
+  // capture frame where the begin signal being spliced in starts (-1 if none)
+  private long mSpliceFrame = -1;
+  // journal record of the last trigger, until its splice frame is known
+  private int mJournalIndex = -1;
+  private TriggerHub mTriggerHub = null;
+  private PulseWindowChannel mPulseWindows = null;
+  // frames pushed into the capture
+  private long mCaptureFrames = 0;
+  private final LoopWaker mWaker = new LoopWaker();
+
+  // harness-induced delay between a trigger and the end signal write
+  private long mTriggerCount = 0;
+  private long mTriggerDelaySumNs = 0;
+  private long mTriggerDelayMinNs = Long.MAX_VALUE;
+  private long mTriggerDelayMaxNs = 0;
+  private final EventJournal mJournal = new EventJournal(JOURNAL_CAPACITY);
+  private final LatencyBackend.Timestamp mOutputTimestamp = new LatencyBackend.Timestamp();
+  private final LatencyBackend.Timestamp mInputTimestamp = new LatencyBackend.Timestamp();
+  private TimestampLatencyEstimator mTimestampEstimator = null;
+  private final GlitchMonitor mGlitchMonitor;
+  private long mWriteErrors = 0;
+  private long mReadErrors = 0;
+
+  public LatencyLoop(TestSettings settings, LatencyBackend backend, CaptureRing captureRing) {
+    this(settings, backend, captureRing, newSilenceBuffer(backend), newInputBuffer(backend));
+  }
+
+  // `silence` and `audioData` as returned by newSilenceBuffer() and
+  // newInputBuffer() for `backend` (e.g. kept across runs by a StreamPool)
+  public LatencyLoop(TestSettings settings, LatencyBackend backend, CaptureRing captureRing,
+      ByteBuffer silence, ByteBuffer audioData) {
+    mSettings = settings;
+    mBackend = backend;
+    mCaptureRing = captureRing;
+    mBurstSizeInFrames = (settings.burstSizeInFrames > 0)
+        ? settings.burstSizeInFrames : settings.sampleRate / 100;
+    mOutputFrameSize = SampleFormat.getBytesPerSample(settings.sampleFormat);
+    mInputFrameSize = mOutputFrameSize * getInputChannelCount(settings);
+    mBeginSignal = getSignal(
+        settings.beginSignal, settings.beginSignalSizeInBytes, settings.sampleFormat);
+    mEndSignal =
+        getSignal(settings.endSignal, settings.endSignalSizeInBytes, settings.sampleFormat);
+    mSilence = silence;
+    mAudioData = audioData;
+    mIntervalFrames = getSignalIntervalMs(settings) * settings.sampleRate / 1000;
+    mJitterFrames = Math.min((long) settings.signalJitterMs * settings.sampleRate / 1000,
+        mIntervalFrames / 2);
+    if (settings.timestampLatency) {
+      mTimestampEstimator = new TimestampLatencyEstimator(settings.sampleRate);
+    }
+    // timestamp positions are precise to about a burst
+    mGlitchMonitor = new GlitchMonitor(backend, settings.sampleRate, mOutputFrameSize,
+        mInputFrameSize, GLITCH_CAPACITY, mBurstSizeInFrames);
+  }
+
+  public static ByteBuffer newSilenceBuffer(LatencyBackend backend) {
+    return ByteBuffer.allocateDirect(backend.getOutputBufferSizeInBytes());
+  }
+
+  public static ByteBuffer newInputBuffer(LatencyBackend backend) {
+    return ByteBuffer.allocateDirect(backend.getInputBufferSizeInBytes() * 4)
+        .order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  // time between timed signals, 0 if there are none
+  public static long getSignalIntervalMs(TestSettings settings) {
+    long intervalMs = (settings.timeBetweenSignalsMs != 0)
+        ? settings.timeBetweenSignalsMs : 1000L * settings.timeBetweenSignals;
+    return Math.max(intervalMs, 0);
+  }
+
+  // with a reference channel, the capture is stereo, and there is no begin
+  // signal
+  public static int getInputChannelCount(TestSettings settings) {
+    return (settings.referenceChannel > 0) ? 2 : 1;
+  }
+
+  // the first `sizeInBytes` of a (shared) signal buffer, with its own
+  // position and limit
+  private static ByteBuffer getView(ByteBuffer signal, int sizeInBytes) {
+    ByteBuffer view = signal.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    view.clear();
+    view.limit(sizeInBytes);
+    return view;
+  }
+
+  // the (s16) settings signals are converted here, once, if the loop runs in
+  // another sample format
+  private static ByteBuffer getSignal(ByteBuffer signal, int sizeInBytes, int sampleFormat) {
+    if (sampleFormat == SampleFormat.PCM_16) {
+      return getView(signal, sizeInBytes);
+    }
+    return SampleFormat.fromPcm16(signal, sizeInBytes, sampleFormat);
+  }
+
+  // external (midi/usb) triggers are taken from `hub`, one at a time: a
+  // trigger that comes while the end signal is being played waits for it
+  public void setTriggerHub(TriggerHub hub) {
+    mTriggerHub = hub;
+    if (hub != null) {
+      hub.setListener(new Runnable() {
+        @Override
+        public void run() {
+          mWaker.wake();
+        }
+      });
+    }
+  }
+
+  // pulse-window capture: mark the start of every pulse (the begin signal,
+  // or the time of a midi trigger)
+  public void setPulseWindows(PulseWindowChannel pulseWindows) {
+    mPulseWindows = pulseWindows;
+  }
+
+  public int getBurstSizeInFrames() {
+    return mBurstSizeInFrames;
+  }
+
+  public void run() {
+    final TestSettings settings = mSettings;
+    final LatencyBackend backend = mBackend;
+    final int burstSizeInFrames = mBurstSizeInFrames;
+    final long burstPeriodNs = 1000000000L * burstSizeInFrames / settings.sampleRate;
+    final boolean real_time = backend.isRealTime();
+    if (settings.javaaudioScheduler == SCHEDULER_CALLBACK) {
+      backend.setInputPositionListener(burstSizeInFrames, new Runnable() {
+        @Override
+        public void run() {
+          mWaker.wake();
+        }
+      });
+    }
+
+    // pending external trigger
+    long midi_timestamp = 0;
+    int midi_source = TriggerHub.SOURCE_NONE;
+    mSpliceFrame = -1;
+    mCaptureFrames = 0;
+    // long/double, so multi-hour (soak) runs neither overflow nor lose
+    // precision
+    long written_frames = 0;
+    // capture frame at which the next timed signal is due
+    long next_signal_frame = 0;
+    mSignalGridFrame = 0;
+    // the begin signal of the last end signal written goes into the next burst
+    boolean begin_pending = false;
+    double time_sec = 0;
+    // the end signal is being played while its position is not 0
+    final ByteBuffer endSignal = mEndSignal;
+    endSignal.rewind();
+    final ByteBuffer audioData = mAudioData;
+    final ByteBuffer silence = mSilence;
+    // time at which the current trigger became due
+    long trigger_nanotime = 0;
+    // frames written into the player
+    long played_frames = 0;
+    long next_timestamp_frame = 0;
+    int read_size = audioData.capacity();
+    boolean read_blocking = false;
+    if (settings.javaaudioScheduler == SCHEDULER_BLOCKING) {
+      read_size = Math.min(audioData.capacity(), burstSizeInFrames * mInputFrameSize);
+      read_blocking = true;
+    }
+    mWaker.register();
+    mGlitchMonitor.reset();
+
+    backend.start();
+    while (backend.isRunning()) {
+      if (mTriggerHub != null && midi_timestamp == 0 && endSignal.position() == 0
+          && mTriggerHub.poll()) {
+        midi_timestamp = mTriggerHub.getPolledNanotime();
+        midi_source = mTriggerHub.getPolledSource();
+      }
+      // a timed signal waits for the end signal being played
+      boolean signal_due = mIntervalFrames > 0 && endSignal.position() == 0
+          && written_frames >= next_signal_frame;
+      if (signal_due || (midi_timestamp > 0) || endSignal.position() > 0) {
+        // Either we have a midi timestamp or there is sufficient time from last signal
+        long nano = backend.getNanoTime();
+        boolean signal_start = endSignal.position() == 0;
+        int requested = endSignal.remaining();
+        int written = backend.write(endSignal, requested);
+        mGlitchMonitor.onWrite(written, requested, true, mCaptureFrames);
+        if (signal_start) {
+          mJournalIndex = -1;
+          if (midi_timestamp > 0) {
+            trigger_nanotime = midi_timestamp;
+          }
+          if (trigger_nanotime > 0) {
+            onTriggerWrite(trigger_nanotime, nano, midi_timestamp > 0,
+                (midi_timestamp > 0) ? midi_source : TriggerHub.SOURCE_NONE, played_frames);
+          }
+          trigger_nanotime = 0;
+          if (signal_due) {
+            if (settings.referenceChannel > 0) {
+              // no begin signal: the pulse starts with the end signal write
+              if (mPulseWindows != null) {
+                mPulseWindows.mark(mCaptureFrames);
+              }
+            } else {
+              begin_pending = !spliceAtTimestamp(nano);
+            }
+            next_signal_frame = nextSignalFrame(written_frames);
+          }
+        }
+        if (written > 0) {
+          played_frames += written / mOutputFrameSize;
+        }
+        if (written < 0) {
+          mWriteErrors++;
+        }
+        if (!endSignal.hasRemaining() || written == 0) {
+          // Written everything, reset and wait for next trigger
+          endSignal.rewind();
+          midi_timestamp = 0;
+        }
+
+      } else {
+        silence.clear();
+        int written = backend.write(silence, silence.capacity());
+        mGlitchMonitor.onWrite(written, silence.capacity(), false, mCaptureFrames);
+        if (written > 0) {
+          played_frames += written / mOutputFrameSize;
+        }
+      }
+      audioData.clear();
+      int read_bytes = backend.read(audioData, read_size, read_blocking);
+      mGlitchMonitor.onRead(read_bytes, read_size, read_blocking, mCaptureFrames);
+      if (read_bytes > 0) {
+        captureBurst(audioData, read_bytes, begin_pending);
+        begin_pending = false;
+
+        written_frames += read_bytes / mInputFrameSize;
+        time_sec = (double) written_frames / settings.sampleRate;
+        mGlitchMonitor.check(mCaptureFrames, written_frames);
+        if (mTimestampEstimator != null && written_frames >= next_timestamp_frame) {
+          sampleTimestamps(played_frames, written_frames);
+          next_timestamp_frame = written_frames + settings.sampleRate / TIMESTAMP_SAMPLES_PER_SEC;
+        }
+        if (mIntervalFrames > 0 && trigger_nanotime == 0 && written_frames >= next_signal_frame) {
+          // the next timed signal is due now
+          trigger_nanotime = backend.getNanoTime();
+        }
+
+        if (time_sec > settings.timeout) {
+          break;
+        }
+
+      } else if (read_bytes < 0) {
+        mReadErrors++;
+      }
+
+      // the simulated clock only advances with the reads: there is nothing to
+      // wait for
+      if (real_time && settings.javaaudioScheduler == SCHEDULER_SLEEP) {
+        try {
+          Thread.sleep(40);
+        } catch (InterruptedException e) {
+          e.printStackTrace();
+        }
+      } else if (real_time && settings.javaaudioScheduler == SCHEDULER_CALLBACK) {
+        // the timeout covers missed notifications
+        mWaker.await(2 * burstPeriodNs);
+      }
+    }
+    mWaker.unregister();
+  }
+
+  // signals are scheduled on a fixed grid of mIntervalFrames, plus a random
+  // jitter for each signal, so the burst granularity does not accumulate. If
+  // the loop fell behind (e.g. a signal had to wait), due signals are skipped.
+  private long nextSignalFrame(long currentFrame) {
+    do {
+      mSignalGridFrame += mIntervalFrames;
+    } while (mSignalGridFrame <= currentFrame);
+    if (mJitterFrames == 0) {
+      return mSignalGridFrame;
+    }
+    return mSignalGridFrame + (long) ((2 * mJitterRandom.nextDouble() - 1) * mJitterFrames);
+  }
+
+  // account for the delay between a trigger (midi or timer) and the write of
+  // the end signal, which is the latency added by the harness itself. This
+  // runs in the audio thread, so it only appends to the (preallocated) journal.
+  private void onTriggerWrite(long triggerNanotime, long writeNanotime, boolean midi,
+      int source, long framesWritten) {
+    long delay = writeNanotime - triggerNanotime;
+    mTriggerCount++;
+    mTriggerDelaySumNs += delay;
+    mTriggerDelayMinNs = Math.min(mTriggerDelayMinNs, delay);
+    mTriggerDelayMaxNs = Math.max(mTriggerDelayMaxNs, delay);
+    long framePosition = -1;
+    long timestampNanotime = -1;
+    if (mBackend.getOutputTimestamp(mOutputTimestamp)) {
+      framePosition = mOutputTimestamp.framePosition;
+      timestampNanotime = mOutputTimestamp.nanoTime;
+      if (mTriggerHub != null && source != TriggerHub.SOURCE_NONE) {
+        // the first frame of the end signal is frame `framesWritten`
+        long playoutNanotime = timestampNanotime
+            + (framesWritten - framePosition) * 1000000000L / mSettings.sampleRate;
+        mTriggerHub.addPlayoutLatency(source, playoutNanotime - triggerNanotime);
+      }
+    }
+    if (midi && mPulseWindows != null) {
+      // the pad hit is being captured around now (the pre-roll covers the
+      // input latency)
+      mPulseWindows.mark(mCaptureFrames);
+    }
+    if (mJournal.append(midi ? EventJournal.TYPE_MIDI : EventJournal.TYPE_TIMER,
+            triggerNanotime, writeNanotime, framesWritten, framePosition, timestampNanotime,
+            source)
+        && !midi) {
+      mJournalIndex = mJournal.size() - 1;
+    }
+  }
+
+  // timestamp splice: the begin signal starts at the capture frame that was
+  // being recorded at the microphone when the end signal was written (at
+  // `writeNanotime`), according to the input timestamp, instead of at the
+  // end of the next burst read. That removes the read block size (and the
+  // input buffer fill level) from the measurement. Returns false if the
+  // begin signal has to be spliced in the legacy way.
+  private boolean spliceAtTimestamp(long writeNanotime) {
+    if (!mSettings.timestampSplice || mSpliceFrame >= 0
+        || !mBackend.getInputTimestamp(mInputTimestamp)) {
+      return false;
+    }
+    long frame = mInputTimestamp.framePosition
+        + Math.round((writeNanotime - mInputTimestamp.nanoTime) * (double) mSettings.sampleRate
+            / 1e9);
+    // frames already in the capture cannot be changed
+    startSplice(Math.max(frame, mCaptureFrames));
+    return true;
+  }
+
+  private void startSplice(long frame) {
+    mSpliceFrame = frame;
+    if (mJournalIndex >= 0) {
+      mJournal.set(mJournalIndex, EventJournal.FIELD_SPLICE_FRAME, frame);
+      mJournalIndex = -1;
+    }
+  }
+
+  private void sampleTimestamps(long playedFrames, long readFrames) {
+    long nanotime = mBackend.getNanoTime();
+    if (mBackend.getOutputTimestamp(mOutputTimestamp)) {
+      mTimestampEstimator.addOutputSample(
+          playedFrames, nanotime, mOutputTimestamp.framePosition, mOutputTimestamp.nanoTime);
+    }
+    if (mBackend.getInputTimestamp(mInputTimestamp)) {
+      mTimestampEstimator.addInputSample(
+          readFrames, nanotime, mInputTimestamp.framePosition, mInputTimestamp.nanoTime);
+    }
+  }
+
+  // write a burst of recorded data into the capture, splicing the begin
+  // signal in at mSpliceFrame (the signal may span several bursts). When
+  // `beginDue` and no splice is pending, the begin signal ends with the burst
+  // (or starts it, if longer). Returns true if any part of the begin signal
+  // was written.
+  boolean captureBurst(ByteBuffer audioData, int read_bytes, boolean beginDue) {
+    if (beginDue && mSpliceFrame < 0) {
+      int signal_size_in_bytes = Math.min(read_bytes, mBeginSignal.limit());
+      startSplice(mCaptureFrames + (read_bytes - signal_size_in_bytes) / mInputFrameSize);
+    }
+    if (mSpliceFrame < 0 || mSpliceFrame >= mCaptureFrames + read_bytes / mInputFrameSize) {
+      writeCapture(audioData, 0, read_bytes);
+      return false;
+    }
+    // the begin signal replaces the recorded data from `start` (in bytes of
+    // the burst), from `signal_offset` (in bytes of the signal) on
+    int start = (int) Math.max(mSpliceFrame - mCaptureFrames, 0) * mInputFrameSize;
+    int signal_offset = (int) (mCaptureFrames - mSpliceFrame) * mInputFrameSize + start;
+    int size = Math.min(read_bytes - start, mBeginSignal.limit() - signal_offset);
+    writeCapture(audioData, 0, start);
+    if (signal_offset == 0 && mPulseWindows != null) {
+      mPulseWindows.mark(mCaptureFrames);
+    }
+    writeCapture(mBeginSignal, signal_offset, size);
+    writeCapture(audioData, start + size, read_bytes - start - size);
+    if (signal_offset + size >= mBeginSignal.limit()) {
+      mSpliceFrame = -1;
+    }
+    return true;
+  }
+
+  // push recorded data (`length` bytes from byte `offset`) to the capture
+  // ring (the on-line detector is fed by the CaptureWriter)
+  private void writeCapture(ByteBuffer data, int offset, int length) {
+    mCaptureFrames += length / mInputFrameSize;
+    if (mCaptureRing != null) {
+      mCaptureRing.offer(data, offset, length);
+    }
+  }
+
+  public long getTriggerCount() {
+    return mTriggerCount;
+  }
+
+  public long getTriggerDelayMinNs() {
+    return mTriggerDelayMinNs;
+  }
+
+  public long getTriggerDelayAvgNs() {
+    return (mTriggerCount > 0) ? mTriggerDelaySumNs / mTriggerCount : 0;
+  }
+
+  public long getTriggerDelayMaxNs() {
+    return mTriggerDelayMaxNs;
+  }
+
+  public EventJournal getJournal() {
+    return mJournal;
+  }
+
+  public GlitchMonitor getGlitchMonitor() {
+    return mGlitchMonitor;
+  }
+
+  // null unless settings.timestampLatency
+  public TimestampLatencyEstimator getTimestampEstimator() {
+    return mTimestampEstimator;
+  }
+
+  public long getWriteErrors() {
+    return mWriteErrors;
+  }
+
+  public long getReadErrors() {
+    return mReadErrors;
+  }
+}
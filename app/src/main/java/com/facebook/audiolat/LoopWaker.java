@@ -0,0 +1,41 @@
+package com.facebook.audiolat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Lets an audio loop sleep until there is something to do: a stream position
+// notification, an external trigger (midi), or a timeout. Waking up is
+// allocation-free, and a wake() that happens before await() is not lost.
+// wake() can be called from any thread (midi, usb, position listener).
+//
+// Only await() can be woken up: a loop blocked in a stream read (blocking
+// scheduler) sees the wake-ups once the read returns.
+public class LoopWaker {
+  private volatile Thread mWaiter = null;
+  private final AtomicLong mWakeCount = new AtomicLong(0);
+
+  // must be called from the thread that will call await()
+  public void register() {
+    mWaiter = Thread.currentThread();
+  }
+
+  public void unregister() {
+    mWaiter = null;
+  }
+
+  public void await(long timeoutNs) {
+    LockSupport.parkNanos(this, timeoutNs);
+  }
+
+  public void wake() {
+    mWakeCount.incrementAndGet();
+    Thread waiter = mWaiter;
+    if (waiter != null) {
+      LockSupport.unpark(waiter);
+    }
+  }
+
+  public long getWakeCount() {
+    return mWakeCount.get();
+  }
+}
@@ -27,11 +27,13 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Vector;
 
 public class MainActivity extends AppCompatActivity {
@@ -47,13 +49,23 @@ public class MainActivity extends AppCompatActivity {
   int mBeginSignal = R.raw.begin_signal;
   int mEndSignal = R.raw.chirp2_16k_300ms;
   String mSignal = "chirp";
+  // end signal duration. Signals with no raw resource (sample rate and
+  // duration) are generated.
+  int mSignalDurationMs = 300;
+  final SignalBank mSignalBank = new SignalBank();
   int mUsage = AudioAttributes.USAGE_VOICE_COMMUNICATION;
   int mContentType = AudioAttributes.CONTENT_TYPE_SPEECH;
   int mInputPreset = MediaRecorder.AudioSource.UNPROCESSED;
   int mTimeBetweenSignals = 2;
+  // java loop only: time between signals in ms (0 to use
+  // mTimeBetweenSignals), and random jitter of each interval
+  int mTimeBetweenSignalsMs = 0;
+  int mSignalJitterMs = 0;
   public String AAUDIO = "aaudio";
   public String JAVAAUDIO = "javaaudio";
   public String OBOE = "oboe";
+  // java loop on a simulated device (no audio hardware)
+  public String SIMULATED = "simulated";
 
   String mWorkDirectory = "";
 
@@ -61,16 +73,52 @@ public class MainActivity extends AppCompatActivity {
   String mApi = AAUDIO;
   JavaAudio mJavaAudio;
   int mJavaaudioPerformanceMode = 0;
+  // javaaudio loop scheduling (see LatencyLoop.SCHEDULER_*)
+  int mJavaaudioScheduler = LatencyLoop.SCHEDULER_SLEEP;
+  // on-line latency analysis (javaaudio only)
+  boolean mOnlineAnalysis = false;
+  // soak mode (javaaudio only): capture file rotation period (0 to disable),
+  // and number of capture files kept
+  int mSoakFileSeconds = 0;
+  int mSoakKeepFiles = 10;
+  // pulse-window capture (javaaudio only): time kept after each begin signal
+  // (0 to capture everything)
+  int mPulseWindowMs = 0;
+  // timestamp-based latency estimation (javaaudio only)
+  boolean mTimestampLatency = false;
+  boolean mTimestampSplice = false;
+  int mReferenceChannel = 0;
+  int mSampleFormat = SampleFormat.PCM_16;
+  // write the capture as a wav file (javaaudio only)
+  boolean mWavOutput = false;
+  // batch mode: list of runs separated by ';'. Each run is a comma-separated
+  // list of key=value overrides of the CLI arguments (api, sr, rbs, pbs, usage,
+  // iprst, atpm). E.g. "api=aaudio,pbs=192;api=javaaudio,rbs=256"
+  String mBatch = null;
   // experiment type
   // * true: downlink-only experiment (either midi- or usb-based)
   // * false: full (downlink+uplink) experiment
   boolean mMidiMode = false;
   // midi device id (-2 to use plain USB)
   int mMidiId = -1;
+  // several midi device ids, to open them all
+  List<Integer> mMidiIds = null;
+  // trigger events from all the midi/usb devices
+  private static final int TRIGGER_QUEUE_SIZE = 256;
+  final TriggerHub mTriggerHub = new TriggerHub(TRIGGER_QUEUE_SIZE);
   MidiDeviceInfo mMidiDeviceInfo;
   UsbMidi mUsbMidi;
+  // usb midi input: number of queued UsbRequests (0 to poll with bulkTransfer)
+  int mUsbRequests = 0;
   boolean mUsbAudioInput = false;
   boolean mUsbAudioOutput = false;
+  // burst size and devices, found before the first run
+  boolean mDevicesFound = false;
+  int mOutputFramesPerBuffer = 0;
+  int mPlayoutDeviceId = 0;
+  int mRecordDeviceId = 0;
+  // javaaudio streams, kept open across the runs of a batch
+  final StreamPool mStreamPool = new StreamPool();
 
   static {
     if (Build.VERSION.SDK_INT >= 29) {
@@ -182,6 +230,9 @@ public class MainActivity extends AppCompatActivity {
       if (extras.containsKey("signal")) {
         mSignal = extras.getString("signal");
       }
+      if (extras.containsKey("sigms")) {
+        mSignalDurationMs = Integer.parseInt(extras.getString("sigms"));
+      }
       if (extras.containsKey("usage")) {
         String usage = extras.getString("usage");
         Log.d(LOG_ID, "main: set usage" + usage);
@@ -201,10 +252,19 @@ public class MainActivity extends AppCompatActivity {
         String tbs = extras.getString("tbs");
         mTimeBetweenSignals = Integer.parseInt(tbs);
       }
+      if (extras.containsKey("tbsms")) {
+        mTimeBetweenSignalsMs = Integer.parseInt(extras.getString("tbsms"));
+        // the native apis only support whole seconds
+        mTimeBetweenSignals = (mTimeBetweenSignalsMs + 999) / 1000;
+      }
+      if (extras.containsKey("tbsjitter")) {
+        mSignalJitterMs = Integer.parseInt(extras.getString("tbsjitter"));
+      }
       if (extras.containsKey("api")) {
         mApi = extras.getString("api");
         // check the value
-        if (!mApi.equals(AAUDIO) && !mApi.equals(OBOE) && !mApi.equals(JAVAAUDIO)) {
+        if (!mApi.equals(AAUDIO) && !mApi.equals(OBOE) && !mApi.equals(JAVAAUDIO)
+            && !mApi.equals(SIMULATED)) {
           Log.e(LOG_ID, "main: invalid API type: \"" + mApi + "\"");
           System.exit(-1);
         }
@@ -213,6 +273,51 @@ public class MainActivity extends AppCompatActivity {
         String atpm = extras.getString("atpm");
         mJavaaudioPerformanceMode = Integer.parseInt(atpm);
       }
+      if (extras.containsKey("jsched")) {
+        String jsched = extras.getString("jsched");
+        mJavaaudioScheduler = Integer.parseInt(jsched);
+      }
+      if (extras.containsKey("soak")) {
+        mSoakFileSeconds = Integer.parseInt(extras.getString("soak"));
+      }
+      if (extras.containsKey("soakkeep")) {
+        mSoakKeepFiles = Integer.parseInt(extras.getString("soakkeep"));
+      }
+      if (extras.containsKey("pulsewin")) {
+        mPulseWindowMs = Integer.parseInt(extras.getString("pulsewin"));
+      }
+      if (extras.containsKey("analyze")) {
+        mOnlineAnalysis = Integer.parseInt(extras.getString("analyze")) != 0;
+      }
+      if (extras.containsKey("tslat")) {
+        mTimestampLatency = Integer.parseInt(extras.getString("tslat")) != 0;
+      }
+      if (extras.containsKey("tssplice")) {
+        mTimestampSplice = Integer.parseInt(extras.getString("tssplice")) != 0;
+      }
+      if (extras.containsKey("refch")) {
+        mReferenceChannel = Integer.parseInt(extras.getString("refch"));
+      }
+      if (extras.containsKey("format")) {
+        int format = SampleFormat.getFormat(extras.getString("format"));
+        if (format < 0) {
+          Log.d(LOG_ID, "main: unsupported format: " + extras.getString("format"));
+        } else if (format == SampleFormat.PCM_24_PACKED
+            && Build.VERSION.SDK_INT < AudioTrackBackend.PCM_24_PACKED_MIN_SDK) {
+          Log.e(LOG_ID, "main: format \"" + extras.getString("format") + "\" needs API "
+              + AudioTrackBackend.PCM_24_PACKED_MIN_SDK + ", running on "
+              + Build.VERSION.SDK_INT);
+          System.exit(-1);
+        } else {
+          mSampleFormat = format;
+        }
+      }
+      if (extras.containsKey("batch")) {
+        mBatch = extras.getString("batch");
+      }
+      if (extras.containsKey("wav")) {
+        mWavOutput = Integer.parseInt(extras.getString("wav")) != 0;
+      }
       if (extras.containsKey("midi")) {
         mMidiMode = true;
       }
@@ -220,6 +325,15 @@ public class MainActivity extends AppCompatActivity {
         String midiid = extras.getString("midiid");
         mMidiId = Integer.parseInt(midiid);
       }
+      if (extras.containsKey("midiids")) {
+        mMidiIds = new ArrayList<>();
+        for (String midiid : extras.getString("midiids").split(",")) {
+          mMidiIds.add(Integer.parseInt(midiid.trim()));
+        }
+      }
+      if (extras.containsKey("usbreq")) {
+        mUsbRequests = Integer.parseInt(extras.getString("usbreq"));
+      }
       if (extras.containsKey("usb_input")) {
          mUsbAudioInput = Boolean.valueOf(extras.getString("usb-input"));
       }
@@ -257,7 +371,24 @@ public class MainActivity extends AppCompatActivity {
     settings.inputPreset = mInputPreset;
     settings.contentType = mContentType;
     settings.timeBetweenSignals = mTimeBetweenSignals;
+    // no timed signals in midi mode
+    settings.timeBetweenSignalsMs = (mTimeBetweenSignals > 0) ? mTimeBetweenSignalsMs : 0;
+    settings.signalJitterMs = mSignalJitterMs;
     settings.javaaudioPerformanceMode = mJavaaudioPerformanceMode;
+    settings.javaaudioScheduler = mJavaaudioScheduler;
+    settings.onlineAnalysis = mOnlineAnalysis;
+    settings.soakFileSeconds = mSoakFileSeconds;
+    settings.soakKeepFiles = mSoakKeepFiles;
+    settings.pulseWindowMs = mPulseWindowMs;
+    settings.timestampLatency = mTimestampLatency;
+    settings.timestampSplice = mTimestampSplice;
+    settings.referenceChannel = mReferenceChannel;
+    settings.sampleFormat = mSampleFormat;
+    settings.wavOutput = mWavOutput && (mApi.equals(JAVAAUDIO) || mApi.equals(SIMULATED));
+    if (settings.wavOutput && recFilePath.endsWith(".raw")) {
+      settings.outputFilePath =
+          recFilePath.substring(0, recFilePath.length() - ".raw".length()) + ".wav";
+    }
     return settings;
   }
 
@@ -284,45 +415,65 @@ public class MainActivity extends AppCompatActivity {
     }
   }
 
-  protected void createMidiConnection() {
+  // returns false if there is no midi device to open
+  protected boolean createMidiConnection() {
     Log.d(LOG_ID, "midi: create midi connection");
     MidiManager midiManager = (MidiManager) this.getSystemService(Context.MIDI_SERVICE);
     mHandler = Handler.createAsync(getMainLooper());
-    getMidiId(midiManager, mHandler);
+    List<MidiDeviceInfo> infos = new ArrayList<>();
+    if (mMidiIds != null) {
+      for (MidiDeviceInfo info : midiManager.getDevices()) {
+        if (mMidiIds.contains(info.getId()) && info.getOutputPortCount() > 0) {
+          infos.add(info);
+        }
+      }
+    } else if (getMidiId(midiManager, mHandler)) {
+      infos.add(mMidiDeviceInfo);
+    }
+    if (infos.isEmpty()) {
+      return false;
+    }
 
-    // open the midi device
-    midiManager.openDevice(mMidiDeviceInfo, new MidiManager.OnDeviceOpenedListener() {
-      @Override
-      public void onDeviceOpened(MidiDevice device) {
-        // Just open the first port (and in most cases the only one)
-        MidiOutputPort output = device.openOutputPort(0);
-        if (output != null) {
-          if (Build.VERSION.SDK_INT >= 29 && mApi.equals(AAUDIO)) {
-            startReadingMidi(device, 0);
-          } else {
-            output.onConnect(new MidiReceiver() {
-              long mLastEventTs = 0;
-              @Override
-              public void onSend(byte[] msg, int offset, int count, long timestamp)
-                  throws IOException {
-                if (timestamp - mLastEventTs / 1000000 > 1000) {
-                  triggerMidi(timestamp);
-                  long nanoTime = System.nanoTime();
-                  Log.d(LOG_ID,
-                      "midi: received midi data: "
-                          + "timestamp: " + timestamp + " "
-                          + "nanoTime: " + nanoTime + " "
-                          + "diff: " + (nanoTime - timestamp));
+    for (final MidiDeviceInfo info : infos) {
+      final String product = String.valueOf(info.getProperties().get("product"));
+      final int source = mTriggerHub.registerSource("midi:" + info.getId() + " " + product);
+      Log.d(LOG_ID, "midi: source: " + source + " midiid: " + info.getId() + " product: " + product);
+      // open the midi device
+      midiManager.openDevice(info, new MidiManager.OnDeviceOpenedListener() {
+        @Override
+        public void onDeviceOpened(MidiDevice device) {
+          // Just open the first port (and in most cases the only one)
+          MidiOutputPort output = device.openOutputPort(0);
+          if (output != null) {
+            if (Build.VERSION.SDK_INT >= 29 && mApi.equals(AAUDIO)) {
+              startReadingMidi(device, 0);
+            } else {
+              output.onConnect(new MidiReceiver() {
+                long mLastEventTs = 0;
+                @Override
+                public void onSend(byte[] msg, int offset, int count, long timestamp)
+                    throws IOException {
+                  if ((timestamp - mLastEventTs) / 1000000 > 1000) {
+                    triggerMidi(source, timestamp);
+                    long nanoTime = System.nanoTime();
+                    Log.d(LOG_ID,
+                        "midi: received midi data: "
+                            + "source: " + source + " "
+                            + "timestamp: " + timestamp + " "
+                            + "nanoTime: " + nanoTime + " "
+                            + "diff: " + (nanoTime - timestamp));
+                  }
+                  mLastEventTs = timestamp;
                 }
-                mLastEventTs = timestamp;
-              }
-            });
+              });
+            }
+          } else {
+            Log.d(LOG_ID, "midi: failed to first port");
           }
-        } else {
-          Log.d(LOG_ID, "midi: failed to first port");
         }
-      }
-    }, mHandler);
+      }, mHandler);
+    }
+    return true;
   }
 
   @Override
@@ -360,35 +511,26 @@ public class MainActivity extends AppCompatActivity {
           return;
       }
       Log.d(LOG_ID, "Setup signal");
-      String filePath = setupSignalSource(primaryExternalStorage.getAbsolutePath());
-
-      // choose end signal file
-      // read the end signal into endSignal
-      // TODO(chema): move to a `readSignal()` function
-      InputStream is = this.getResources().openRawResource(mEndSignal);
-      final int endSignalSizeInBytes = is.available();
-      byte[] endSignalBuffer = new byte[endSignalSizeInBytes];
-
-      int read_bytes = is.read(endSignalBuffer);
-      utils.gain(endSignalBuffer, mGain);
-      final ByteBuffer endSignal = ByteBuffer.allocateDirect(read_bytes);
-      endSignal.put(endSignalBuffer); // Small files only :)
-      is.close();
-
-      // read the begin signal into beginSignal
-      // TODO(chema): move to a `readSignal()` function
-      is = this.getResources().openRawResource(mBeginSignal);
-      final int beginSignalSizeInBytes = is.available();
-      byte[] beginSignalBuffer = new byte[beginSignalSizeInBytes];
-      utils.gain(beginSignalBuffer, mGain);
-
-      read_bytes = is.read(beginSignalBuffer);
-      final ByteBuffer beginSignal = ByteBuffer.allocateDirect(read_bytes);
-      beginSignal.put(beginSignalBuffer);
+      final String workDirectory = primaryExternalStorage.getAbsolutePath();
+      String filePath = setupSignalSource(workDirectory, mSampleRate);
+
+      final ByteBuffer endSignal = getEndSignal(workDirectory, mSampleRate, mEndSignal);
+      final int endSignalSizeInBytes = endSignal.capacity();
+      final ByteBuffer beginSignal = getResourceSignal(mBeginSignal);
+      final int beginSignalSizeInBytes = beginSignal.capacity();
 
       // begin a thread that implements the experiment
       final String recFilePath = filePath;
-      if (!mMidiMode) {
+      if (!mMidiMode && mBatch != null) {
+        Thread t = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            runBatch(mBatch, workDirectory, endSignal, endSignalSizeInBytes, beginSignal,
+                beginSignalSizeInBytes);
+          }
+        });
+        t.start();
+      } else if (!mMidiMode) {
         Thread t = new Thread(new Runnable() {
           @Override
           public void run() {
@@ -410,84 +552,9 @@ public class MainActivity extends AppCompatActivity {
 
         if (mMidiId == -2) {
           createUsbConnection();
-
-          (new Thread(new Runnable() {
-            @Override
-            public void run() {
-              runExperiment(mApi, settings);
-            }
-          })).start();
-          return;
-        } else {
-          createMidiConnection();
-
-          (new Thread(new Runnable() {
-            @Override
-            public void run() {
-              runExperiment(mApi, settings);
-            }
-          })).start();
-        }
-
-        MidiManager midiManager = (MidiManager) this.getSystemService(Context.MIDI_SERVICE);
-        mHandler = Handler.createAsync(getMainLooper());
-        if (getMidiId(midiManager, mHandler)) {
-          // open the midi device
-          midiManager.openDevice(mMidiDeviceInfo, new MidiManager.OnDeviceOpenedListener() {
-            @Override
-            public void onDeviceOpened(MidiDevice device) {
-              // Just open the first port (and in most cases the only one)
-              MidiOutputPort output = device.openOutputPort(0);
-              if (output != null) {
-                if (Build.VERSION.SDK_INT >= 29 && mApi.equals(AAUDIO)) {
-                  startReadingMidi(device, 0);
-                } else {
-                  output.onConnect(new MidiReceiver() {
-                    long mLastEventTs = 0;
-
-                    @Override
-                    public void onSend(byte[] msg, int offset, int count, long timestamp)
-                            throws IOException {
-                      if (timestamp - mLastEventTs / 1000000 > 1000) {
-                        triggerMidi(timestamp);
-                        long nanoTime = System.nanoTime();
-                        Log.d(LOG_ID,
-                                "received midi data: "
-                                        + "timestamp: " + timestamp + " "
-                                        + "nanoTime: " + nanoTime + " "
-                                        + "diff: " + (nanoTime - timestamp));
-                      }
-                      mLastEventTs = timestamp;
-                    }
-                  });
-                }
-              } else {
-                Log.d(LOG_ID, "Failed to first port");
-              }
-            }
-          }, mHandler);
-        } else {
+        } else if (!createMidiConnection()) {
           Log.d(LOG_ID, "No system midi device available, try to create a usb connection");
-
-          mPermissionIntent = PendingIntent.getBroadcast(this, 0, new Intent(ACTION_USB_PERMISSION), 0);
-          IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
-          registerReceiver(usbReceiver, filter);
-
-          UsbManager manager = (UsbManager) getSystemService(Context.USB_SERVICE);
-          UsbAccessory[] accs = manager.getAccessoryList();
-          HashMap<String, UsbDevice> devices = manager.getDeviceList();
-          Vector<UsbDeviceConnection> connected = new Vector<>();
-
-          java.util.Set<String> keys = devices.keySet();
-          if (keys.size() == 0) {
-            Log.d(LOG_ID, "No device");
-            System.exit(-1);
-          }
-          for (String key : keys) {
-            Log.d(LOG_ID, String.format("Device: %s \n---- %s", key, devices.get(key)));
-            UsbDevice device = devices.get(key);
-            manager.requestPermission(device, mPermissionIntent);
-          }
+          createUsbConnection();
         }
         (new Thread(new Runnable() {
           @Override
@@ -503,58 +570,104 @@ public class MainActivity extends AppCompatActivity {
   }
 
   public void startUsbMidi(UsbDevice device) {
-    UsbMidi midi = new UsbMidi(this);
+    UsbMidi midi = new UsbMidi(this, mTriggerHub, mUsbRequests);
     midi.openDevice(device, this);
   }
 
-  public void triggerMidi(long timestamp) {
+  // `source` is the TriggerHub source id of the device
+  public void triggerMidi(int source, long timestamp) {
     if (mApi.equals(OBOE)) { // TODO: native oboe midi
       oboeMidiSignal(timestamp);
-    } else if (mApi.equals(JAVAAUDIO) && mJavaAudio != null) {
-      mJavaAudio.javaMidiSignal(timestamp);
+    } else if (mApi.equals(JAVAAUDIO)) {
+      mTriggerHub.post(source, timestamp);
     } else if (mApi.equals(AAUDIO)) {
       aaudioMidiSignal(timestamp);
     }
   }
 
-  private String setupSignalSource(String filePath) {
-    filePath += "/audiolat";
+  // a raw signal resource, with the gain applied (cached)
+  private ByteBuffer getResourceSignal(final int resId) throws IOException {
+    return mSignalBank.get(resId, mGain, new SignalBank.Loader() {
+      @Override
+      public InputStream open() throws IOException {
+        return getResources().openRawResource(resId);
+      }
+    });
+  }
+
+  // the end signal: the raw resource `resId`, or a generated signal at
+  // `sampleRate` if `resId` is 0 (cached). A generated signal is also written
+  // as a wav file in `workDirectory`, for the off-line analysis.
+  private ByteBuffer getEndSignal(String workDirectory, int sampleRate, int resId)
+      throws IOException {
+    if (resId != 0) {
+      return getResourceSignal(resId);
+    }
+    int type = SignalBank.getType(mSignal);
+    ByteBuffer signal = mSignalBank.get(type, sampleRate, mSignalDurationMs, mGain);
+    String referencePath = workDirectory + "/audiolat_ref_" + getGeneratedSignalName(sampleRate)
+        + ".wav";
+    WavFileWriter reference = new WavFileWriter(referencePath, sampleRate, 1, 16,
+        signal.capacity());
+    ByteBuffer data = signal.duplicate();
+    data.clear();
+    reference.write(data);
+    reference.close();
+    Log.d(LOG_ID, "main: generated " + mSignal + " signal, reference: " + referencePath);
+    return signal;
+  }
+
+  private String getGeneratedSignalName(int sampleRate) {
+    return mSignal + "_" + sampleRate + "_" + mSignalDurationMs + "ms";
+  }
+
+  // raw resource of the end signal at `sampleRate` (the raw resources are
+  // 300 ms long): 0 if the signal is generated, -1 if there is no such signal
+  private int getEndSignalResource(int sampleRate) {
+    if (SignalBank.getType(mSignal) < 0 || sampleRate <= 0) {
+      return -1;
+    }
+    if (mSignalDurationMs != 300) {
+      return 0;
+    }
     if (mSignal.equals("chirp")) {
-      // choose end signal file
-      switch (mSampleRate) {
+      switch (sampleRate) {
         case 48000:
-          mEndSignal = R.raw.chirp_48k_300ms;
-          filePath += "_chirp_48k_300ms.raw";
-          break;
+          return R.raw.chirp_48k_300ms;
         case 16000:
-          mEndSignal = R.raw.chirp_16k_300ms;
-          filePath += "_chirp2_16k_300ms.raw";
-          break;
+          return R.raw.chirp_16k_300ms;
         case 8000:
-          mEndSignal = R.raw.chirp_8k_300ms;
-          filePath += "_chirp_8k_300ms.raw";
-          break;
-        default:
-          Log.d(LOG_ID, "main: unsupported sample rate:" + mSampleRate);
+          return R.raw.chirp_8k_300ms;
       }
     } else if (mSignal.equals("noise")) {
-      switch (mSampleRate) {
+      switch (sampleRate) {
         case 48000:
-          mEndSignal = R.raw.bp_noise2_48k_300ms;
-          filePath += "_bp_noise2_48k_300ms.raw";
-          break;
+          return R.raw.bp_noise2_48k_300ms;
         case 16000:
-          mEndSignal = R.raw.bp_noise2_16k_300ms;
-          filePath += "_bp_noise2_16k_300ms.raw";
-          break;
+          return R.raw.bp_noise2_16k_300ms;
         case 8000:
-          mEndSignal = R.raw.bp_noise2_8k_300ms;
-          filePath += "_bp_noise2_8k_300ms.raw";
-          break;
-        default:
-          Log.d(LOG_ID, "main: unsupported sample rate:" + mSampleRate);
+          return R.raw.bp_noise2_8k_300ms;
       }
     }
+    return 0;
+  }
+
+  private String setupSignalSource(String filePath, int sampleRate) {
+    filePath += "/audiolat";
+    int resId = getEndSignalResource(sampleRate);
+    if (resId < 0) {
+      Log.d(LOG_ID, "main: unsupported signal: " + mSignal);
+      return filePath;
+    }
+    mEndSignal = resId;
+    if (resId == 0) {
+      filePath += "_" + getGeneratedSignalName(sampleRate) + ".raw";
+    } else if (resId == R.raw.chirp_16k_300ms) {
+      // the name the analysis scripts expect
+      filePath += "_chirp2_16k_300ms.raw";
+    } else {
+      filePath += "_" + getResources().getResourceEntryName(resId) + ".raw";
+    }
     return filePath;
   }
 
@@ -583,11 +696,136 @@ public class MainActivity extends AppCompatActivity {
   }
 
   private void runExperiment(String api, TestSettings settings) {
+    runBackend(api, settings);
+    mStreamPool.releaseAll();
+    System.exit(0);
+  }
+
+  // run all the batch configurations back-to-back, and write a single table
+  // with the latency distribution of each one
+  private void runBatch(String batch, String workDirectory, ByteBuffer endSignal,
+      int endSignalSizeInBytes, ByteBuffer beginSignal, int beginSignalSizeInBytes) {
+    String[] runs = batch.split(";");
+    StringBuilder table = new StringBuilder(
+        "run,api,sr,rbs,pbs,usage,iprst,atpm,count,p50_ms,p90_ms,p99_ms,max_ms\n");
+    for (int i = 0; i < runs.length; i++) {
+      String api = mApi;
+      TestSettings settings = buildTestSettings(
+          endSignal, endSignalSizeInBytes, beginSignal, beginSignalSizeInBytes, "");
+      try {
+        for (String override : runs[i].split(",")) {
+          String[] kv = override.trim().split("=");
+          if (kv.length != 2) {
+            continue;
+          }
+          String key = kv[0].trim();
+          String value = kv[1].trim();
+          if (key.equals("api")) {
+            api = value;
+          } else if (key.equals("sr")) {
+            settings.sampleRate = Integer.parseInt(value);
+          } else if (key.equals("rbs")) {
+            settings.recordBufferSizeInBytes = Integer.parseInt(value);
+          } else if (key.equals("pbs")) {
+            settings.playoutBufferSizeInBytes = Integer.parseInt(value);
+          } else if (key.equals("usage")) {
+            settings.usage = Integer.parseInt(value);
+          } else if (key.equals("iprst")) {
+            settings.inputPreset = Integer.parseInt(value);
+          } else if (key.equals("atpm")) {
+            settings.javaaudioPerformanceMode = Integer.parseInt(value);
+          } else {
+            Log.e(LOG_ID, "batch: unsupported key: \"" + key + "\"");
+          }
+        }
+        if (!api.equals(AAUDIO) && !api.equals(OBOE) && !api.equals(JAVAAUDIO)
+            && !api.equals(SIMULATED)) {
+          Log.e(LOG_ID, "batch: invalid API type: \"" + api + "\"");
+          continue;
+        }
+        if (settings.sampleRate != mSampleRate) {
+          // the end signal depends on the sample rate: it is selected for
+          // this run only
+          int resId = getEndSignalResource(settings.sampleRate);
+          if (resId < 0) {
+            Log.e(LOG_ID, "batch: run " + i + ": no \"" + mSignal + "\" signal at "
+                + settings.sampleRate + " Hz");
+            continue;
+          }
+          settings.endSignal = getEndSignal(workDirectory, settings.sampleRate, resId);
+          settings.endSignalSizeInBytes = settings.endSignal.capacity();
+        }
+      } catch (NumberFormatException | IOException e) {
+        Log.e(LOG_ID, "batch: invalid run: \"" + runs[i] + "\"", e);
+        continue;
+      }
+      settings.wavOutput = mWavOutput && (api.equals(JAVAAUDIO) || api.equals(SIMULATED));
+      settings.outputFilePath = workDirectory + "/audiolat_batch_" + i
+          + (settings.wavOutput ? ".wav" : ".raw");
+      Log.d(LOG_ID, "batch: run " + i + ": " + runs[i]);
+      runBackend(api, settings);
+
+      // analyze the capture
+      final LatencyDistribution latencies = new LatencyDistribution();
+      LatencyDetector.Listener listener = new LatencyDetector.Listener() {
+        @Override
+        public void onLatency(
+            long beginFrame, long endFrame, double delayMs, float score, double snrDb) {
+          latencies.add(delayMs);
+        }
+      };
+      LatencyDetector detector;
+      if (api.equals(JAVAAUDIO) || api.equals(SIMULATED)) {
+        // the same detector (sample format, reference channel) as on-line
+        detector = JavaAudio.createDetector(settings, listener);
+      } else {
+        // the native backends always capture mono s16
+        detector = new LatencyDetector(settings.beginSignal, settings.beginSignalSizeInBytes,
+            settings.endSignal, settings.endSignalSizeInBytes, settings.sampleRate,
+            LatencyDetector.DEFAULT_THRESHOLD, 1000.0, listener);
+      }
+      try {
+        detector.processFile(settings.outputFilePath);
+      } catch (IOException e) {
+        Log.e(LOG_ID, "batch: cannot analyze " + settings.outputFilePath, e);
+      }
+      String row = i + "," + api + "," + settings.sampleRate + ","
+          + settings.recordBufferSizeInBytes + "," + settings.playoutBufferSizeInBytes + ","
+          + settings.usage + "," + settings.inputPreset + ","
+          + settings.javaaudioPerformanceMode + "," + latencies.getCount() + ","
+          + latencies.getPercentile(50) + "," + latencies.getPercentile(90) + ","
+          + latencies.getPercentile(99) + "," + latencies.getMax();
+      Log.d(LOG_ID, "batch: result: " + row);
+      table.append(row).append("\n");
+    }
+
+    String resultsPath = workDirectory + "/audiolat_batch.csv";
+    try {
+      FileOutputStream fos = new FileOutputStream(resultsPath);
+      fos.write(table.toString().getBytes());
+      fos.close();
+    } catch (IOException e) {
+      Log.e(LOG_ID, "batch: cannot write " + resultsPath, e);
+    }
+    Log.d(LOG_ID, "batch: done, streams opened: " + mStreamPool.size());
+    mStreamPool.releaseAll();
+    System.exit(0);
+  }
+
+  // the audio properties and devices are looked up once, before the first
+  // run, instead of on every run of a batch
+  private void findDevices() {
+    if (mDevicesFound) {
+      return;
+    }
     AudioManager aman = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
     String outputSampleRate = aman.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE);
     Log.d(LOG_ID, "main: outputSampleRate: " + outputSampleRate);
     String outputFramesPerBuffer = aman.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER);
     Log.d(LOG_ID, "main: outputFramesPerBuffer: " + outputFramesPerBuffer);
+    if (outputFramesPerBuffer != null) {
+      mOutputFramesPerBuffer = Integer.parseInt(outputFramesPerBuffer);
+    }
 
     AudioDeviceInfo[] adevs = aman.getDevices(AudioManager.GET_DEVICES_INPUTS);
     for (AudioDeviceInfo info : adevs) {
@@ -605,21 +843,31 @@ public class MainActivity extends AppCompatActivity {
       }
 
       if (!mUsbAudioOutput && info.isSink() && info.getType() == AudioDeviceInfo.TYPE_BUILTIN_SPEAKER) {
-        settings.playoutDeviceId = info.getId();
+        mPlayoutDeviceId = info.getId();
       }  else if (mUsbAudioOutput && info.isSink() && info.getType() == AudioDeviceInfo.TYPE_USB_DEVICE) {
         Log.d(LOG_ID, "Usb output device: " + info.getId());
-        settings.playoutDeviceId = info.getId();
+        mPlayoutDeviceId = info.getId();
       } else if (!mUsbAudioInput && info.isSource() && info.getType() == AudioDeviceInfo.TYPE_BUILTIN_MIC) {
-        settings.recordDeviceId = info.getId();
+        mRecordDeviceId = info.getId();
       } else if (mUsbAudioInput && info.isSource() && info.getType() == AudioDeviceInfo.TYPE_USB_DEVICE) {
         Log.d(LOG_ID, "Usb input device: " + info.getId());
-        settings.recordDeviceId = info.getId();
+        mRecordDeviceId = info.getId();
       }
 
-      if (settings.playoutDeviceId != 0 && settings.recordDeviceId != 0) {
+      if (mPlayoutDeviceId != 0 && mRecordDeviceId != 0) {
         break;
       }
     }
+    mDevicesFound = true;
+  }
+
+  private void runBackend(String api, TestSettings settings) {
+    findDevices();
+    if (mOutputFramesPerBuffer > 0) {
+      settings.burstSizeInFrames = mOutputFramesPerBuffer;
+    }
+    settings.playoutDeviceId = mPlayoutDeviceId;
+    settings.recordDeviceId = mRecordDeviceId;
 
     if (api.equals(AAUDIO)) {
       Log.d(LOG_ID, "main: calling native (AAudio) API");
@@ -631,10 +879,13 @@ public class MainActivity extends AppCompatActivity {
     } else if (api.equals(JAVAAUDIO)) {
       Log.d(LOG_ID, "main: calling java (JavaAudio) API");
       mJavaAudio = new JavaAudio();
+      mJavaAudio.setTriggerHub(mTriggerHub);
+      mJavaAudio.setStreamPool(mStreamPool);
       mJavaAudio.runJavaAudio(this, settings);
+    } else if (api.equals(SIMULATED)) {
+      Log.d(LOG_ID, "main: calling java (JavaAudio) API on a simulated device");
+      new JavaAudio().runSimulated(settings);
     }
     Log.d(LOG_ID, "main: done");
-
-    System.exit(0);
   }
 }
@@ -0,0 +1,206 @@
+package com.facebook.audiolat;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Capture sink that only keeps the parts of a capture around
+// each pulse, instead of the whole stream: a window from `prerollFrames`
+// before each marked begin signal until `windowFrames` after it (the
+// expected arrival of the end signal, plus some margin). Everything else is
+// discarded, which cuts the storage written by a long run to a few KB per
+// pulse.
+//
+// The last `prerollFrames` of the stream are kept in memory, so the window
+// can start before the marker. Windows that overlap are merged. Each window
+// is written as a line of the index (window number, first capture frame,
+// first frame in the output, and length in frames), so times in the output
+// can be mapped back to the capture.
+//
+// mark() is called from the audio thread, before the data that contains the
+// marked frame is pushed into the capture, and never blocks nor allocates.
+// write() is called from the capture writer thread.
+public class PulseWindowChannel implements WritableByteChannel {
+  public static final String INDEX_HEADER = "window,capture_frame,output_frame,frames";
+  // pending markers. Markers that do not fit are dropped (and counted).
+  private static final int MARKER_QUEUE_SIZE = 64;
+
+  private final WritableByteChannel mChannel;
+  private final PrintWriter mIndex;
+  private final int mFrameSizeInBytes;
+  private final long mPrerollBytes;
+  private final long mWindowBytes;
+  // pre-roll ring (last mPrerollBytes of the stream)
+  private final byte[] mPreroll;
+  private final long[] mMarkers = new long[MARKER_QUEUE_SIZE];
+  private final AtomicLong mMarkerHead = new AtomicLong(0);
+  private final AtomicLong mMarkerTail = new AtomicLong(0);
+  private volatile long mDroppedMarkers = 0;
+  // bytes of the stream received, and written to the output
+  private long mStreamBytes = 0;
+  private long mOutputBytes = 0;
+  // current window: [mWindowStart, mWindowEnd) in stream bytes
+  private long mWindowStart = 0;
+  private long mWindowEnd = 0;
+  private long mWindowOutputStart = 0;
+  private boolean mInWindow = false;
+  private int mWindowCount = 0;
+  private boolean mOpen = true;
+
+  public PulseWindowChannel(WritableByteChannel channel, PrintWriter index,
+      int frameSizeInBytes, int prerollFrames, int windowFrames) {
+    mChannel = channel;
+    mIndex = index;
+    mFrameSizeInBytes = frameSizeInBytes;
+    mPrerollBytes = (long) mFrameSizeInBytes * prerollFrames;
+    mWindowBytes = (long) mFrameSizeInBytes * windowFrames;
+    mPreroll = new byte[(int) Math.max(mPrerollBytes, mFrameSizeInBytes)];
+    mIndex.println(INDEX_HEADER);
+  }
+
+  // audio thread: a pulse begins at capture frame `frame`
+  public void mark(long frame) {
+    long tail = mMarkerTail.get();
+    if (tail - mMarkerHead.get() >= MARKER_QUEUE_SIZE) {
+      mDroppedMarkers++;
+      return;
+    }
+    mMarkers[(int) (tail % MARKER_QUEUE_SIZE)] = frame;
+    mMarkerTail.lazySet(tail + 1);
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    int received = src.remaining();
+    while (src.hasRemaining()) {
+      long next = openWindows();
+      int size = src.remaining();
+      if (next > mStreamBytes) {
+        // stop at the start of the next window
+        size = (int) Math.min(size, next - mStreamBytes);
+      }
+      boolean inWindow = mInWindow;
+      if (inWindow) {
+        size = (int) Math.min(size, mWindowEnd - mStreamBytes);
+      }
+      int limit = src.limit();
+      int position = src.position();
+      src.limit(position + size);
+      if (inWindow) {
+        writeFully(src);
+        mOutputBytes += size;
+        if (mStreamBytes + size == mWindowEnd) {
+          closeWindow();
+        }
+      }
+      src.limit(position + size);
+      src.position(position);
+      keepPreroll(src);
+      src.limit(limit);
+      mStreamBytes += size;
+    }
+    return received;
+  }
+
+  // take the markers whose window starts at or before the current position,
+  // and return the start of the next pending window (-1 if none)
+  private long openWindows() throws IOException {
+    while (true) {
+      long head = mMarkerHead.get();
+      if (head == mMarkerTail.get()) {
+        return -1;
+      }
+      long begin = mMarkers[(int) (head % MARKER_QUEUE_SIZE)] * mFrameSizeInBytes;
+      long start = Math.max(begin - mPrerollBytes, 0);
+      if (mInWindow && start <= mWindowEnd) {
+        // overlaps the current window (or continues it right away)
+        mWindowEnd = Math.max(mWindowEnd, begin + mWindowBytes);
+      } else if (start <= mStreamBytes) {
+        // new window, starting with the pre-roll (but not before the end of
+        // the previous one)
+        start = Math.max(start, Math.max(mStreamBytes - mPrerollBytes, mWindowEnd));
+        mWindowStart = start;
+        mWindowEnd = begin + mWindowBytes;
+        mWindowOutputStart = mOutputBytes;
+        mInWindow = true;
+        writePreroll(start);
+      } else {
+        return start;
+      }
+      mMarkerHead.lazySet(head + 1);
+    }
+  }
+
+  // write the stream bytes [start, mStreamBytes) from the pre-roll ring
+  private void writePreroll(long start) throws IOException {
+    long end = Math.min(mStreamBytes, mWindowEnd);
+    for (long position = start; position < end; ) {
+      int offset = (int) (position % mPreroll.length);
+      int size = (int) Math.min(end - position, mPreroll.length - offset);
+      writeFully(ByteBuffer.wrap(mPreroll, offset, size));
+      mOutputBytes += size;
+      position += size;
+    }
+    if (end == mWindowEnd) {
+      closeWindow();
+    }
+  }
+
+  private void keepPreroll(ByteBuffer src) {
+    // only the last mPreroll.length bytes matter
+    long position = mStreamBytes;
+    int skip = Math.max(src.remaining() - mPreroll.length, 0);
+    src.position(src.position() + skip);
+    position += skip;
+    while (src.hasRemaining()) {
+      int offset = (int) (position % mPreroll.length);
+      int size = Math.min(src.remaining(), mPreroll.length - offset);
+      src.get(mPreroll, offset, size);
+      position += size;
+    }
+  }
+
+  private void closeWindow() {
+    mIndex.println(mWindowCount + "," + mWindowStart / mFrameSizeInBytes + ","
+        + mWindowOutputStart / mFrameSizeInBytes + ","
+        + (mOutputBytes - mWindowOutputStart) / mFrameSizeInBytes);
+    mWindowCount++;
+    mInWindow = false;
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      mChannel.write(buffer);
+    }
+  }
+
+  public int getWindowCount() {
+    return mWindowCount;
+  }
+
+  public long getOutputBytes() {
+    return mOutputBytes;
+  }
+
+  public long getDroppedMarkers() {
+    return mDroppedMarkers;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return mOpen;
+  }
+
+  @Override
+  public void close() throws IOException {
+    mOpen = false;
+    if (mInWindow) {
+      // the run ended inside a window
+      closeWindow();
+    }
+    mIndex.close();
+    mChannel.close();
+  }
+}
@@ -0,0 +1,113 @@
+package com.facebook.audiolat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+// Writes a capture into a sequence of files of
+// `secondsPerFile` each, so a long run does not end up in a single file.
+// Only the last `keepFiles` files are kept (0 to keep all), which bounds the
+// storage used by the run.
+//
+// Files are named after `path` with a 4-digit sequence number before the
+// extension (audiolat.raw -> audiolat.0000.raw, audiolat.0001.raw, ...).
+// File N starts at capture frame N * sampleRate * secondsPerFile.
+public class RotatingChannel implements WritableByteChannel {
+  private final String mPrefix;
+  private final String mExtension;
+  private final int mSampleRate;
+  private final int mChannelCount;
+  private final int mSampleFormat;
+  private final boolean mWav;
+  private final String mMetadata;
+  private final long mBytesPerFile;
+  private final int mKeepFiles;
+  private WritableByteChannel mChannel = null;
+  private long mFileBytes = 0;
+  private int mFileIndex = -1;
+  private boolean mOpen = true;
+
+  public RotatingChannel(String path, int sampleRate, int channelCount, int sampleFormat,
+      boolean wav, String metadata, int secondsPerFile, int keepFiles) throws IOException {
+    int dot = path.lastIndexOf('.');
+    mPrefix = (dot > path.lastIndexOf('/')) ? path.substring(0, dot) : path;
+    mExtension = (dot > path.lastIndexOf('/')) ? path.substring(dot) : "";
+    mSampleRate = sampleRate;
+    mChannelCount = channelCount;
+    mSampleFormat = sampleFormat;
+    mWav = wav;
+    mMetadata = metadata;
+    mBytesPerFile = (long) sampleRate * secondsPerFile * channelCount
+        * SampleFormat.getBytesPerSample(sampleFormat);
+    mKeepFiles = keepFiles;
+    nextFile();
+  }
+
+  public String getFilePath(int index) {
+    return String.format("%s.%04d%s", mPrefix, index, mExtension);
+  }
+
+  public int getFileIndex() {
+    return mFileIndex;
+  }
+
+  private void nextFile() throws IOException {
+    if (mChannel != null) {
+      mChannel.close();
+    }
+    mFileIndex++;
+    String path = getFilePath(mFileIndex);
+    if (mWav) {
+      WavFileWriter wav = new WavFileWriter(path, mSampleRate, mChannelCount,
+          SampleFormat.getBitsPerSample(mSampleFormat), SampleFormat.getWavFormatTag(mSampleFormat),
+          mBytesPerFile);
+      wav.setMetadata(mMetadata + " file: " + mFileIndex);
+      mChannel = wav;
+    } else {
+      mChannel = new FileOutputStream(path).getChannel();
+    }
+    mFileBytes = 0;
+    if (mKeepFiles > 0 && mFileIndex >= mKeepFiles) {
+      new File(getFilePath(mFileIndex - mKeepFiles)).delete();
+    }
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    int written = 0;
+    while (src.hasRemaining()) {
+      if (mFileBytes == mBytesPerFile) {
+        nextFile();
+      }
+      int limit = src.limit();
+      int size = (int) Math.min(src.remaining(), mBytesPerFile - mFileBytes);
+      src.limit(src.position() + size);
+      try {
+        while (src.hasRemaining()) {
+          int bytes = mChannel.write(src);
+          mFileBytes += bytes;
+          written += bytes;
+        }
+      } finally {
+        src.limit(limit);
+      }
+    }
+    return written;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return mOpen;
+  }
+
+  @Override
+  public void close() throws IOException {
+    mOpen = false;
+    if (mChannel != null) {
+      mChannel.close();
+      mChannel = null;
+    }
+  }
+}
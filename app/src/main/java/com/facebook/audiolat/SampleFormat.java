@@ -0,0 +1,86 @@
+package com.facebook.audiolat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Sample formats of the java audio path (settings.sampleFormat): s16, float
+// and packed s24, all little-endian. The backend buffers, the signals played
+// and spliced by the loop, and the capture all use the selected format, so
+// the loop itself only moves bytes. Samples are converted once when the
+// signals are prepared, and by the detector, with one loop per format.
+public class SampleFormat {
+  public static final int PCM_16 = 0;
+  public static final int PCM_FLOAT = 1;
+  public static final int PCM_24_PACKED = 2;
+  private static final String[] NAMES = {"s16", "float", "s24"};
+  private static final int[] BYTES_PER_SAMPLE = {2, 4, 3};
+
+  // -1 if `name` is not a sample format
+  public static int getFormat(String name) {
+    for (int i = 0; i < NAMES.length; i++) {
+      if (NAMES[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public static String getName(int format) {
+    return NAMES[format];
+  }
+
+  public static int getBytesPerSample(int format) {
+    return BYTES_PER_SAMPLE[format];
+  }
+
+  public static int getBitsPerSample(int format) {
+    return 8 * BYTES_PER_SAMPLE[format];
+  }
+
+  public static int getWavFormatTag(int format) {
+    return (format == PCM_FLOAT) ? WavFileWriter.WAVE_FORMAT_IEEE_FLOAT
+                                 : WavFileWriter.WAVE_FORMAT_PCM;
+  }
+
+  // `numSamples` samples from byte `index`, one every `stride` bytes, into
+  // floats in [-1, 1]
+  public static void toFloats(int format, ByteBuffer input, int index, int numSamples,
+      int stride, float[] output, int outputOffset) {
+    switch (format) {
+      case PCM_FLOAT:
+        utils.convertFloatBytesToFloats(input, index, numSamples, stride, output, outputOffset);
+        break;
+      case PCM_24_PACKED:
+        utils.convertInt24BytesToFloats(input, index, numSamples, stride, output, outputOffset);
+        break;
+      default:
+        utils.convertBytesToFloats(input, index, numSamples, stride, output, outputOffset);
+        break;
+    }
+  }
+
+  // the first `sizeInBytes` of a s16le signal, converted into `format`, in a
+  // new direct buffer
+  public static ByteBuffer fromPcm16(ByteBuffer signal, int sizeInBytes, int format) {
+    int numSamples = sizeInBytes / 2;
+    int bytesPerSample = getBytesPerSample(format);
+    ByteBuffer converted = ByteBuffer.allocateDirect(numSamples * bytesPerSample)
+                               .order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < numSamples; i++) {
+      short sample = utils.getShort(signal, 2 * i);
+      int index = bytesPerSample * i;
+      switch (format) {
+        case PCM_FLOAT:
+          utils.putFloat(converted, index, (float) (sample / utils.MAX));
+          break;
+        case PCM_24_PACKED:
+          utils.putInt24(converted, index, sample << 8);
+          break;
+        default:
+          utils.putShort(converted, index, sample);
+          break;
+      }
+    }
+    return converted;
+  }
+}
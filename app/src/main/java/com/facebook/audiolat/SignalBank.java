@@ -0,0 +1,247 @@
+package com.facebook.audiolat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Random;
+
+// Test signals (mono s16, little-endian) in direct buffers, with the gain
+// already applied. Signals are either generated, at any sample rate, or read
+// from raw resources.
+//
+// Signals are cached, keyed by (type, rate, duration, gain), so runs that
+// use the same signal (e.g. in batch mode) share the buffer. The buffers are
+// shared: consumers must read them through duplicate().
+public class SignalBank {
+  // generated signal types
+  public static final int TYPE_CHIRP = 0;
+  public static final int TYPE_NOISE = 1;
+  public static final int TYPE_MLS = 2;
+  public static final int TYPE_GOLAY = 3;
+  private static final String[] TYPE_NAMES = {"chirp", "noise", "mls", "golay"};
+
+  // peak amplitude of the generated signals (before the gain)
+  private static final double PEAK = 0.9;
+  // band of the chirp and the noise (capped below nyquist)
+  private static final double LOW_HZ = 200;
+  private static final double HIGH_HZ = 8000;
+  private static final double MAX_NYQUIST_FRACTION = 0.9;
+  // fade in/out of the chirp and the noise
+  private static final double FADE_MS = 5;
+  // the noise is the same on every run
+  private static final long NOISE_SEED = 1;
+  // Galois LFSR feedback masks of maximum-length sequences, by order
+  private static final int MLS_MIN_ORDER = 2;
+  private static final int[] MLS_TAPS = {0x3, 0x6, 0xc, 0x14, 0x30, 0x60, 0xb8, 0x110, 0x240,
+      0x500, 0xe08, 0x1c80, 0x3802, 0x6000, 0xd008, 0x12000, 0x20400, 0x72000, 0x90000};
+
+  public interface Loader {
+    InputStream open() throws IOException;
+  }
+
+  private final HashMap<String, ByteBuffer> mCache = new HashMap<>();
+
+  // -1 if `name` is not a generated signal type
+  public static int getType(String name) {
+    for (int i = 0; i < TYPE_NAMES.length; i++) {
+      if (TYPE_NAMES[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public static String getTypeName(int type) {
+    return TYPE_NAMES[type];
+  }
+
+  // generated signal
+  public synchronized ByteBuffer get(int type, int sampleRate, int durationMs, float gainDb) {
+    String key = getTypeName(type) + ":" + sampleRate + ":" + durationMs + ":" + gainDb;
+    ByteBuffer signal = mCache.get(key);
+    if (signal == null) {
+      signal = toBuffer(generate(type, sampleRate, durationMs), gainDb);
+      mCache.put(key, signal);
+    }
+    return signal;
+  }
+
+  // signal read from a resource (through `loader`, only the first time)
+  public synchronized ByteBuffer get(int resId, float gainDb, Loader loader) throws IOException {
+    String key = "res:" + resId + ":" + gainDb;
+    ByteBuffer signal = mCache.get(key);
+    if (signal == null) {
+      InputStream is = loader.open();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] block = new byte[4096];
+      try {
+        int read_bytes;
+        while ((read_bytes = is.read(block)) > 0) {
+          bytes.write(block, 0, read_bytes);
+        }
+      } finally {
+        is.close();
+      }
+      signal = toBuffer(bytes.toByteArray(), gainDb);
+      mCache.put(key, signal);
+    }
+    return signal;
+  }
+
+  public synchronized int size() {
+    return mCache.size();
+  }
+
+  public synchronized void clear() {
+    mCache.clear();
+  }
+
+  private static ByteBuffer toBuffer(float[] samples, float gainDb) {
+    byte[] data = new byte[samples.length * 2];
+    utils.convertFloatsToBytes(samples, 0, samples.length, data, 0, true);
+    return toBuffer(data, gainDb);
+  }
+
+  private static ByteBuffer toBuffer(byte[] data, float gainDb) {
+    utils.gain(data, gainDb);
+    ByteBuffer signal = ByteBuffer.allocateDirect(data.length).order(ByteOrder.LITTLE_ENDIAN);
+    signal.put(data);
+    return signal;
+  }
+
+  // samples in [-1, 1]
+  public static float[] generate(int type, int sampleRate, int durationMs) {
+    int frames = (int) ((long) sampleRate * durationMs / 1000);
+    switch (type) {
+      case TYPE_CHIRP:
+        return chirp(sampleRate, frames);
+      case TYPE_NOISE:
+        return noise(sampleRate, frames);
+      case TYPE_MLS:
+        return mls(frames);
+      case TYPE_GOLAY:
+        return golay(frames);
+      default:
+        throw new IllegalArgumentException("unknown signal type: " + type);
+    }
+  }
+
+  private static double getHighHz(int sampleRate) {
+    return Math.min(HIGH_HZ, MAX_NYQUIST_FRACTION * sampleRate / 2);
+  }
+
+  // linear sweep from LOW_HZ to HIGH_HZ
+  static float[] chirp(int sampleRate, int frames) {
+    float[] samples = new float[frames];
+    double low = LOW_HZ;
+    double high = getHighHz(sampleRate);
+    double duration = (double) frames / sampleRate;
+    for (int i = 0; i < frames; i++) {
+      double t = (double) i / sampleRate;
+      double phase = 2 * Math.PI * (low * t + (high - low) * t * t / (2 * duration));
+      samples[i] = (float) (PEAK * Math.sin(phase));
+    }
+    fade(samples, sampleRate);
+    return samples;
+  }
+
+  // white noise, band-limited to [LOW_HZ, HIGH_HZ] in the frequency domain
+  static float[] noise(int sampleRate, int frames) {
+    int size = Fft.nextPowerOfTwo(Math.max(frames, 2));
+    double[] re = new double[size];
+    double[] im = new double[size];
+    Random random = new Random(NOISE_SEED);
+    int low = (int) Math.ceil(LOW_HZ * size / sampleRate);
+    int high = (int) Math.floor(getHighHz(sampleRate) * size / sampleRate);
+    for (int k = Math.max(low, 1); k <= high && k < size / 2; k++) {
+      double phase = 2 * Math.PI * random.nextDouble();
+      re[k] = Math.cos(phase);
+      im[k] = Math.sin(phase);
+      // hermitian, for a real signal
+      re[size - k] = re[k];
+      im[size - k] = -im[k];
+    }
+    new Fft(size).inverse(re, im);
+    double peak = 0;
+    for (int i = 0; i < frames; i++) {
+      peak = Math.max(peak, Math.abs(re[i]));
+    }
+    float[] samples = new float[frames];
+    for (int i = 0; i < frames; i++) {
+      samples[i] = (float) ((peak > 0) ? PEAK * re[i] / peak : 0);
+    }
+    fade(samples, sampleRate);
+    return samples;
+  }
+
+  // one period of the longest maximum-length sequence that fits, followed by
+  // silence
+  static float[] mls(int frames) {
+    int order = MLS_MIN_ORDER;
+    while (order + 1 < MLS_MIN_ORDER + MLS_TAPS.length && (1 << (order + 1)) - 1 <= frames) {
+      order++;
+    }
+    int taps = MLS_TAPS[order - MLS_MIN_ORDER];
+    int length = Math.min((1 << order) - 1, frames);
+    float[] samples = new float[frames];
+    int lfsr = 1;
+    for (int i = 0; i < length; i++) {
+      int bit = lfsr & 1;
+      lfsr >>>= 1;
+      if (bit != 0) {
+        lfsr ^= taps;
+      }
+      samples[i] = (float) ((bit != 0) ? PEAK : -PEAK);
+    }
+    return samples;
+  }
+
+  // length of each sequence of the golay pair in a `frames` signal
+  public static int getGolayLength(int frames) {
+    int length = 1;
+    while (6 * length <= frames) {
+      length <<= 1;
+    }
+    return length;
+  }
+
+  // complementary golay pair: a, as much silence, and b, followed by silence.
+  // The sum of the autocorrelations of a and b is a single peak, with no
+  // sidelobes. Thanks to the gap, a plain correlation against the whole
+  // signal computes that sum (for lags within the sequence length), so it
+  // works as the matched filter of the pair.
+  static float[] golay(int frames) {
+    int length = getGolayLength(frames);
+    float[] a = new float[length];
+    float[] b = new float[length];
+    a[0] = 1;
+    b[0] = 1;
+    for (int size = 1; size < length; size <<= 1) {
+      // (a, b) -> (a|b, a|-b)
+      for (int i = 0; i < size; i++) {
+        a[size + i] = b[i];
+        b[size + i] = -b[i];
+        b[i] = a[i];
+      }
+    }
+    float[] samples = new float[frames];
+    for (int i = 0; i < length && 3 * length <= frames; i++) {
+      samples[i] = (float) (PEAK * a[i]);
+      samples[2 * length + i] = (float) (PEAK * b[i]);
+    }
+    return samples;
+  }
+
+  // raised-cosine fade in and out
+  private static void fade(float[] samples, int sampleRate) {
+    int fade = Math.min((int) (FADE_MS * sampleRate / 1000), samples.length / 2);
+    for (int i = 0; i < fade; i++) {
+      float value = (float) (0.5 - 0.5 * Math.cos(Math.PI * i / fade));
+      samples[i] *= value;
+      samples[samples.length - 1 - i] *= value;
+    }
+  }
+}
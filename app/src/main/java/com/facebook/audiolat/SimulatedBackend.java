@@ -0,0 +1,370 @@
+package com.facebook.audiolat;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+// LatencyBackend that simulates a device and an acoustic loop, so the
+// experiment loop and the analysis can run (deterministically) on a JVM.
+//
+// The device runs in bursts of `burstSizeInFrames`. On every burst it
+// * takes a burst from the output buffer (an underrun if there is not
+//   enough data),
+// * plays it into the air, where it reaches the microphone after the output
+//   delay, the acoustic delay, the input delay, and a random jitter (0 to
+//   jitter frames, drawn per burst),
+// * captures a burst into the input buffer (an overrun if it is full). A
+//   captured burst is lost (silence) with the dropout probability.
+//
+// With a reference channel, the capture is stereo: the output is also looped
+// back electrically into the reference channel, after the output and input
+// delays only (no acoustic delay, jitter, noise nor dropouts).
+//
+// The device works in s16: samples in another sample format are converted
+// when they are written and read.
+//
+// There is no real time: the clock only advances when the loop reads. A
+// blocking read runs the device until enough frames are available, and a
+// non-blocking read runs it one burst if there is nothing to read.
+// Timestamps and getNanoTime() use the simulated clock.
+public class SimulatedBackend implements LatencyBackend {
+  public static final int ERROR_INVALID_OPERATION = -3;
+  // the simulated clock starts at 1 sec (0 means "no time" in the loop)
+  private static final long START_NANOTIME = 1000000000L;
+
+  private final int mSampleRate;
+  private final int mBurstSizeInFrames;
+  private int mOutputBufferSizeInFrames;
+  private int mInputBufferSizeInFrames;
+  private int mOutputDelayInFrames = 0;
+  private int mInputDelayInFrames = 0;
+  private int mAcousticDelayInFrames = 0;
+  // 1 or 2 for a stereo capture with that reference channel, 0 for mono
+  private int mReferenceChannel = 0;
+  private int mSampleFormat = SampleFormat.PCM_16;
+  private int mBytesPerSample = 2;
+  private int mJitterInFrames = 0;
+  private double mDropoutProbability = 0;
+  private float mNoiseLevel = 0;
+  private long mSeed = 0;
+
+  private Random mRandom;
+  private short[] mOutput;
+  private int mOutputHead;
+  private int mOutputCount;
+  private short[] mInput;
+  private int mInputHead;
+  private int mInputCount;
+  // signal in flight between the speaker and the microphone, indexed by
+  // capture frame
+  private int[] mAir;
+  private int mAirMask;
+  // same, for the loopback into the reference channel
+  private int[] mReferenceAir;
+
+  private volatile boolean mRunning = false;
+  private long mFrames;
+  private long mPlayedFrames;
+  private long mCapturedFrames;
+  private long mUnderrunCount;
+  private long mOverrunCount;
+  private long mDropoutCount;
+  private int mListenerPeriodInFrames = 0;
+  private Runnable mListener = null;
+
+  public SimulatedBackend(int sampleRate, int burstSizeInFrames) {
+    mSampleRate = sampleRate;
+    mBurstSizeInFrames = burstSizeInFrames;
+    mOutputBufferSizeInFrames = 2 * burstSizeInFrames;
+    mInputBufferSizeInFrames = 4 * burstSizeInFrames;
+  }
+
+  // configuration, takes effect on start()
+  public void setOutputDelayInFrames(int frames) {
+    mOutputDelayInFrames = frames;
+  }
+
+  public void setInputDelayInFrames(int frames) {
+    mInputDelayInFrames = frames;
+  }
+
+  public void setAcousticDelayInFrames(int frames) {
+    mAcousticDelayInFrames = frames;
+  }
+
+  public void setReferenceChannel(int channel) {
+    mReferenceChannel = channel;
+  }
+
+  public void setSampleFormat(int format) {
+    mSampleFormat = format;
+    mBytesPerSample = SampleFormat.getBytesPerSample(format);
+  }
+
+  private int getInputChannelCount() {
+    return (mReferenceChannel > 0) ? 2 : 1;
+  }
+
+  public void setOutputBufferSizeInFrames(int frames) {
+    mOutputBufferSizeInFrames = Math.max(frames, mBurstSizeInFrames);
+  }
+
+  public void setInputBufferSizeInFrames(int frames) {
+    mInputBufferSizeInFrames = Math.max(frames, mBurstSizeInFrames);
+  }
+
+  public void setJitterInFrames(int frames) {
+    mJitterInFrames = frames;
+  }
+
+  public void setDropoutProbability(double probability) {
+    mDropoutProbability = probability;
+  }
+
+  // peak level of the (uniform) noise added to the capture, in [0, 1]
+  public void setNoiseLevel(float level) {
+    mNoiseLevel = level;
+  }
+
+  public void setSeed(long seed) {
+    mSeed = seed;
+  }
+
+  @Override
+  public int getSampleRate() {
+    return mSampleRate;
+  }
+
+  @Override
+  public int getOutputBufferSizeInBytes() {
+    return mOutputBufferSizeInFrames * mBytesPerSample;
+  }
+
+  @Override
+  public int getInputBufferSizeInBytes() {
+    return mInputBufferSizeInFrames * mBytesPerSample * getInputChannelCount();
+  }
+
+  @Override
+  public void start() {
+    mRandom = new Random(mSeed);
+    mOutput = new short[mOutputBufferSizeInFrames];
+    mInput = new short[mInputBufferSizeInFrames * getInputChannelCount()];
+    mAir = new int[Fft.nextPowerOfTwo(mOutputDelayInFrames + mAcousticDelayInFrames
+        + mInputDelayInFrames + mJitterInFrames + 2 * mBurstSizeInFrames)];
+    mAirMask = mAir.length - 1;
+    mReferenceAir = (mReferenceChannel > 0) ? new int[mAir.length] : null;
+    mOutputHead = 0;
+    mOutputCount = 0;
+    mInputHead = 0;
+    mInputCount = 0;
+    mFrames = 0;
+    mPlayedFrames = 0;
+    mCapturedFrames = 0;
+    mUnderrunCount = 0;
+    mOverrunCount = 0;
+    mDropoutCount = 0;
+    mRunning = true;
+  }
+
+  @Override
+  public void stop() {
+    mRunning = false;
+  }
+
+  @Override
+  public void release() {
+    mRunning = false;
+    mListener = null;
+  }
+
+  @Override
+  public boolean isRunning() {
+    return mRunning;
+  }
+
+  @Override
+  public long getNanoTime() {
+    return START_NANOTIME + mFrames * 1000000000L / mSampleRate;
+  }
+
+  @Override
+  public boolean isRealTime() {
+    return false;
+  }
+
+  @Override
+  public int write(ByteBuffer data, int sizeInBytes) {
+    if (!mRunning) {
+      return ERROR_INVALID_OPERATION;
+    }
+    int frames = Math.min(sizeInBytes / mBytesPerSample, mOutput.length - mOutputCount);
+    int tail = (mOutputHead + mOutputCount) % mOutput.length;
+    int offsetInBytes = data.position();
+    for (int i = 0; i < frames; i++) {
+      mOutput[tail] = getSample(data, offsetInBytes + mBytesPerSample * i);
+      tail = (tail + 1 == mOutput.length) ? 0 : tail + 1;
+    }
+    mOutputCount += frames;
+    data.position(offsetInBytes + frames * mBytesPerSample);
+    return frames * mBytesPerSample;
+  }
+
+  @Override
+  public int read(ByteBuffer data, int sizeInBytes, boolean blocking) {
+    if (!mRunning) {
+      return ERROR_INVALID_OPERATION;
+    }
+    int channels = getInputChannelCount();
+    int frameSize = mBytesPerSample * channels;
+    int frames = Math.min(sizeInBytes / frameSize, mInputBufferSizeInFrames);
+    if (blocking) {
+      while (mInputCount < frames) {
+        runBurst();
+      }
+    } else if (mInputCount == 0) {
+      runBurst();
+    }
+    frames = Math.min(frames, mInputCount);
+    int offsetInBytes = data.position();
+    for (int i = 0; i < frames; i++) {
+      for (int c = 0; c < channels; c++) {
+        putSample(data, offsetInBytes + frameSize * i + mBytesPerSample * c,
+            mInput[channels * mInputHead + c]);
+      }
+      mInputHead = (mInputHead + 1 == mInputBufferSizeInFrames) ? 0 : mInputHead + 1;
+    }
+    mInputCount -= frames;
+    data.position(offsetInBytes + frames * frameSize);
+    return frames * frameSize;
+  }
+
+  private short getSample(ByteBuffer data, int index) {
+    switch (mSampleFormat) {
+      case SampleFormat.PCM_FLOAT:
+        return utils.clampToShort((float) (utils.getFloat(data, index) * utils.MAX));
+      case SampleFormat.PCM_24_PACKED:
+        return (short) (utils.getInt24(data, index) >> 8);
+      default:
+        return utils.getShort(data, index);
+    }
+  }
+
+  private void putSample(ByteBuffer data, int index, short sample) {
+    switch (mSampleFormat) {
+      case SampleFormat.PCM_FLOAT:
+        utils.putFloat(data, index, (float) (sample / utils.MAX));
+        break;
+      case SampleFormat.PCM_24_PACKED:
+        utils.putInt24(data, index, sample << 8);
+        break;
+      default:
+        utils.putShort(data, index, sample);
+        break;
+    }
+  }
+
+  private void runBurst() {
+    // playout
+    int delay = mOutputDelayInFrames + mAcousticDelayInFrames + mInputDelayInFrames
+        + ((mJitterInFrames > 0) ? mRandom.nextInt(mJitterInFrames + 1) : 0);
+    int reference_delay = mOutputDelayInFrames + mInputDelayInFrames;
+    int available = Math.min(mOutputCount, mBurstSizeInFrames);
+    if (available < mBurstSizeInFrames) {
+      mUnderrunCount++;
+    }
+    for (int i = 0; i < available; i++) {
+      mAir[(int) (mFrames + delay + i) & mAirMask] += mOutput[mOutputHead];
+      if (mReferenceAir != null) {
+        mReferenceAir[(int) (mFrames + reference_delay + i) & mAirMask] += mOutput[mOutputHead];
+      }
+      mOutputHead = (mOutputHead + 1 == mOutput.length) ? 0 : mOutputHead + 1;
+    }
+    mOutputCount -= available;
+    mPlayedFrames += available;
+
+    // capture
+    boolean dropout = mDropoutProbability > 0 && mRandom.nextDouble() < mDropoutProbability;
+    if (dropout) {
+      mDropoutCount++;
+    }
+    for (int i = 0; i < mBurstSizeInFrames; i++) {
+      int index = (int) (mFrames + i) & mAirMask;
+      float sample = mAir[index];
+      mAir[index] = 0;
+      if (mNoiseLevel > 0) {
+        sample += mNoiseLevel * Short.MAX_VALUE * (2 * mRandom.nextFloat() - 1);
+      }
+      if (dropout) {
+        sample = 0;
+      }
+      int reference = 0;
+      if (mReferenceAir != null) {
+        reference = mReferenceAir[index];
+        mReferenceAir[index] = 0;
+      }
+      if (mInputCount == mInputBufferSizeInFrames) {
+        mOverrunCount++;
+        continue;
+      }
+      int tail = (mInputHead + mInputCount) % mInputBufferSizeInFrames;
+      if (mReferenceAir == null) {
+        mInput[tail] = utils.clampToShort(sample);
+      } else {
+        mInput[2 * tail + mReferenceChannel - 1] = utils.clampToShort(reference);
+        mInput[2 * tail + 2 - mReferenceChannel] = utils.clampToShort(sample);
+      }
+      mInputCount++;
+    }
+    mCapturedFrames += mBurstSizeInFrames;
+
+    long previous = mFrames;
+    mFrames += mBurstSizeInFrames;
+    if (mListener != null
+        && previous / mListenerPeriodInFrames != mFrames / mListenerPeriodInFrames) {
+      mListener.run();
+    }
+  }
+
+  // AudioTimestamp-like: `framePosition` is the frame being presented (output)
+  // or captured at the microphone (input) at `nanoTime`
+  @Override
+  public boolean getOutputTimestamp(Timestamp timestamp) {
+    long position = mPlayedFrames - mOutputDelayInFrames;
+    if (!mRunning || position <= 0) {
+      return false;
+    }
+    timestamp.framePosition = position;
+    timestamp.nanoTime = getNanoTime();
+    return true;
+  }
+
+  @Override
+  public boolean getInputTimestamp(Timestamp timestamp) {
+    if (!mRunning || mCapturedFrames == 0) {
+      return false;
+    }
+    timestamp.framePosition = mCapturedFrames;
+    timestamp.nanoTime = getNanoTime() - mInputDelayInFrames * 1000000000L / mSampleRate;
+    return true;
+  }
+
+  @Override
+  public void setInputPositionListener(int periodInFrames, Runnable listener) {
+    mListenerPeriodInFrames = Math.max(periodInFrames, 1);
+    mListener = listener;
+  }
+
+  @Override
+  public long getUnderrunCount() {
+    return mUnderrunCount;
+  }
+
+  @Override
+  public long getOverrunCount() {
+    return mOverrunCount;
+  }
+
+  public long getDropoutCount() {
+    return mDropoutCount;
+  }
+}
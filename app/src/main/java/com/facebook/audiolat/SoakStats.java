@@ -0,0 +1,64 @@
+package com.facebook.audiolat;
+
+import java.io.PrintWriter;
+
+// Rolling latency stats for long (soak) runs, in constant memory: a
+// histogram of the current window of `windowFrames` capture frames, and one
+// of the whole run. Every time a window closes, its summary is written as a
+// csv row, so latency drift over the run (e.g. after thermal throttling)
+// shows up as a trend across rows.
+public class SoakStats {
+  public static final String CSV_HEADER = "window,start_sec,count,p50_ms,p90_ms,p99_ms,max_ms";
+  private static final double BIN_WIDTH_MS = 0.1;
+
+  private final long mWindowFrames;
+  private final int mSampleRate;
+  private final PrintWriter mOutput;
+  private final LatencyHistogram mWindow;
+  private final LatencyHistogram mTotal;
+  private long mWindowIndex = 0;
+
+  public SoakStats(int sampleRate, int windowSeconds, double maxMs, PrintWriter output) {
+    mSampleRate = sampleRate;
+    mWindowFrames = (long) sampleRate * windowSeconds;
+    mOutput = output;
+    mWindow = new LatencyHistogram(BIN_WIDTH_MS, maxMs);
+    mTotal = new LatencyHistogram(BIN_WIDTH_MS, maxMs);
+    mOutput.println(CSV_HEADER);
+  }
+
+  // returns true if a window was closed before adding this value
+  public boolean add(long frame, double delayMs) {
+    boolean closed = false;
+    while (frame >= (mWindowIndex + 1) * mWindowFrames) {
+      closeWindow();
+      closed = true;
+    }
+    mWindow.add(delayMs);
+    mTotal.add(delayMs);
+    return closed;
+  }
+
+  private void closeWindow() {
+    mOutput.println(mWindowIndex + "," + mWindowIndex * mWindowFrames / mSampleRate + ","
+        + mWindow.getCount() + "," + mWindow.getPercentile(50) + ","
+        + mWindow.getPercentile(90) + "," + mWindow.getPercentile(99) + "," + mWindow.getMax());
+    mOutput.flush();
+    mWindow.clear();
+    mWindowIndex++;
+  }
+
+  // close the last (partial) window
+  public void finish() {
+    closeWindow();
+  }
+
+  // last closed window (cleared once the next value is added)
+  public long getWindowIndex() {
+    return mWindowIndex;
+  }
+
+  public LatencyHistogram getTotal() {
+    return mTotal;
+  }
+}
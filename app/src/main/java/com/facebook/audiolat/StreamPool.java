@@ -0,0 +1,105 @@
+package com.facebook.audiolat;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+// AudioTrack/AudioRecord pairs kept open across the runs of an app launch
+// (e.g. the runs of a batch), one per stream configuration (sample rate,
+// sample format, channels, buffer sizes, usage, content type, input preset,
+// performance mode, and devices). A run takes the streams of its settings
+// with acquire(), creating them only the first time, and gives them back,
+// stopped but not released, with recycle(). The buffers of the java loop
+// (silence and recorded data) are kept with the streams, so a reused
+// configuration allocates nothing but the per-run state.
+//
+// Only the creation of the streams (and their routing) is saved: they are
+// still stopped, flushed and started again around every run, so every run
+// pays the stream start-up.
+public class StreamPool {
+  public static final String LOG_ID = "audiolat";
+
+  public static class Streams {
+    private final AudioTrackBackend mBackend;
+    private final ByteBuffer mSilence;
+    private final ByteBuffer mAudioData;
+    private boolean mInUse = false;
+    private int mRunCount = 0;
+
+    Streams(AudioTrackBackend backend) {
+      mBackend = backend;
+      mSilence = LatencyLoop.newSilenceBuffer(backend);
+      mAudioData = LatencyLoop.newInputBuffer(backend);
+    }
+
+    public LatencyBackend getBackend() {
+      return mBackend;
+    }
+
+    public ByteBuffer getSilence() {
+      return mSilence;
+    }
+
+    public ByteBuffer getAudioData() {
+      return mAudioData;
+    }
+
+    // runs that used these streams, including the current one
+    public int getRunCount() {
+      return mRunCount;
+    }
+  }
+
+  private final HashMap<String, Streams> mStreams = new HashMap<>();
+
+  public static String getKey(TestSettings settings) {
+    return "sr: " + settings.sampleRate
+        + " format: " + SampleFormat.getName(settings.sampleFormat)
+        + " ich: " + LatencyLoop.getInputChannelCount(settings)
+        + " rbs: " + settings.recordBufferSizeInBytes
+        + " pbs: " + settings.playoutBufferSizeInBytes
+        + " usage: " + settings.usage
+        + " ctype: " + settings.contentType
+        + " iprst: " + settings.inputPreset
+        + " atpm: " + settings.javaaudioPerformanceMode
+        + " odev: " + settings.playoutDeviceId
+        + " idev: " + settings.recordDeviceId;
+  }
+
+  // the (stopped) streams for `settings`, created if there are none. The
+  // streams cannot be shared by concurrent runs.
+  public synchronized Streams acquire(TestSettings settings) {
+    String key = getKey(settings);
+    Streams streams = mStreams.get(key);
+    if (streams == null) {
+      Log.d(LOG_ID, "streams: new: " + key);
+      streams = new Streams(new AudioTrackBackend(settings));
+      mStreams.put(key, streams);
+    } else if (streams.mInUse) {
+      throw new IllegalStateException("streams already in use: " + key);
+    } else {
+      Log.d(LOG_ID, "streams: reused: " + key + " runs: " + streams.mRunCount);
+      // the timeout is not part of the key
+      streams.mBackend.setTimeout(settings.timeout);
+    }
+    streams.mInUse = true;
+    streams.mRunCount++;
+    return streams;
+  }
+
+  // `streams` must be stopped
+  public synchronized void recycle(Streams streams) {
+    streams.mInUse = false;
+  }
+
+  public synchronized int size() {
+    return mStreams.size();
+  }
+
+  public synchronized void releaseAll() {
+    for (Streams streams : mStreams.values()) {
+      streams.mBackend.release();
+    }
+    mStreams.clear();
+  }
+}
@@ -0,0 +1,247 @@
+package com.facebook.audiolat;
+
+import java.util.Arrays;
+
+// Streaming normalized cross-correlation of an input signal against a fixed
+// template, using overlap-save FFT convolution. Samples can be pushed in
+// blocks of any size. Every time a full segment is available the correlation
+// is computed for the next `hopSize` lags, and local maxima above the
+// threshold are reported as peaks.
+//
+// Peaks are located to a fraction of a sample: a parabola through the peak
+// and its two neighbors gives a first estimate, which is refined on the
+// windowed-sinc (Lanczos) interpolation of the correlation around the peak.
+// The parabola alone is fine for smooth peaks (chirps), but biased for
+// broadband signals (MLS, golay), whose correlation peak is a sinc.
+//
+// The normalized correlation (score) of a peak also gives its SNR: when the
+// input window is the template plus uncorrelated noise,
+// score^2 / (1 - score^2) is the ratio of their energies (see getSnrDb()).
+//
+// All the buffers are preallocated in the constructor, so `write()` does not
+// allocate and can be called from the audio thread.
+public class StreamingCorrelator {
+  // correlation values kept on each side of a peak, for the interpolation
+  private static final int INTERPOLATION_TAPS = 8;
+  private static final int REFINE_ITERATIONS = 24;
+  public static final double MAX_SNR_DB = 60;
+
+  public interface PeakListener {
+    // `frame` is the position of the first sample of the template match, and
+    // `fraction` the sub-sample offset of the peak, in [-0.5, 0.5]
+    void onPeak(StreamingCorrelator correlator, long frame, double fraction, float score);
+  }
+
+  private final int mTemplateSize;
+  private final int mFftSize;
+  private final int mHopSize;
+  private final Fft mFft;
+  private final double[] mTemplateRe;
+  private final double[] mTemplateIm;
+  private final double mTemplateEnergy;
+  private final double[] mRe;
+  private final double[] mIm;
+  // input segment: (template_size - 1) history samples plus hop_size new ones
+  private final float[] mSegment;
+  private int mSegmentFill = 0;
+  private long mSegmentStartFrame = 0;
+
+  private final float mThreshold;
+  private final int mHoldFrames;
+  private final PeakListener mListener;
+  // peak tracking state. Correlation values are signed, scores are their
+  // absolute value.
+  private long mPeakFrame = -1;
+  private float mPeakScore = 0;
+  private float mPeakValue = 0;
+  // correlation around the peak: [peak - taps, peak + taps]
+  private final float[] mPeakWindow = new float[2 * INTERPOLATION_TAPS + 1];
+  private int mPeakWindowFill = 0;
+  // last INTERPOLATION_TAPS correlation values, by frame
+  private final float[] mHistory = new float[INTERPOLATION_TAPS];
+
+  public StreamingCorrelator(
+      float[] template, int templateSize, float threshold, int holdFrames, PeakListener listener) {
+    mTemplateSize = templateSize;
+    mFftSize = Fft.nextPowerOfTwo(Math.max(2 * templateSize, 256));
+    mHopSize = mFftSize - templateSize + 1;
+    mFft = new Fft(mFftSize);
+    mThreshold = threshold;
+    mHoldFrames = Math.max(holdFrames, templateSize);
+    mListener = listener;
+
+    // correlation is a convolution against the time-reversed template
+    mTemplateRe = new double[mFftSize];
+    mTemplateIm = new double[mFftSize];
+    double energy = 0;
+    for (int i = 0; i < templateSize; i++) {
+      mTemplateRe[i] = template[templateSize - 1 - i];
+      energy += (double) template[i] * template[i];
+    }
+    mTemplateEnergy = energy;
+    mFft.forward(mTemplateRe, mTemplateIm);
+
+    mRe = new double[mFftSize];
+    mIm = new double[mFftSize];
+    mSegment = new float[mFftSize];
+  }
+
+  public int getTemplateSize() {
+    return mTemplateSize;
+  }
+
+  public int getHopSize() {
+    return mHopSize;
+  }
+
+  public void reset() {
+    mSegmentFill = 0;
+    mSegmentStartFrame = 0;
+    mPeakFrame = -1;
+    mPeakScore = 0;
+    Arrays.fill(mHistory, 0);
+  }
+
+  // SNR (in dB) of a match with normalized correlation `score`, up to
+  // MAX_SNR_DB (a perfect match, like the spliced begin signal)
+  public static double getSnrDb(float score) {
+    double power = (double) score * score;
+    if (power >= 1) {
+      return MAX_SNR_DB;
+    }
+    return Math.min(10 * Math.log10(power / (1 - power)), MAX_SNR_DB);
+  }
+
+  public void write(float[] samples, int offset, int length) {
+    while (length > 0) {
+      int count = Math.min(length, mFftSize - mSegmentFill);
+      System.arraycopy(samples, offset, mSegment, mSegmentFill, count);
+      mSegmentFill += count;
+      offset += count;
+      length -= count;
+      if (mSegmentFill == mFftSize) {
+        processSegment();
+        // keep the last (template_size - 1) samples as history
+        System.arraycopy(mSegment, mHopSize, mSegment, 0, mTemplateSize - 1);
+        mSegmentFill = mTemplateSize - 1;
+        mSegmentStartFrame += mHopSize;
+      }
+    }
+  }
+
+  private void processSegment() {
+    for (int i = 0; i < mFftSize; i++) {
+      mRe[i] = mSegment[i];
+      mIm[i] = 0;
+    }
+    mFft.forward(mRe, mIm);
+    for (int i = 0; i < mFftSize; i++) {
+      double re = mRe[i] * mTemplateRe[i] - mIm[i] * mTemplateIm[i];
+      double im = mRe[i] * mTemplateIm[i] + mIm[i] * mTemplateRe[i];
+      mRe[i] = re;
+      mIm[i] = im;
+    }
+    mFft.inverse(mRe, mIm);
+
+    // energy of the input window starting at lag 0
+    double energy = 0;
+    for (int i = 0; i < mTemplateSize; i++) {
+      energy += (double) mSegment[i] * mSegment[i];
+    }
+    for (int lag = 0; lag < mHopSize; lag++) {
+      if (lag > 0) {
+        float out = mSegment[lag - 1];
+        float in = mSegment[lag + mTemplateSize - 1];
+        energy += (double) in * in - (double) out * out;
+      }
+      double norm = Math.sqrt(Math.max(energy, 0) * mTemplateEnergy);
+      float value = (norm > 1e-9) ? (float) (mRe[lag + mTemplateSize - 1] / norm) : 0;
+      trackPeak(mSegmentStartFrame + lag, value);
+    }
+  }
+
+  private void trackPeak(long frame, float value) {
+    float score = Math.abs(value);
+    if (score >= mThreshold && score > mPeakScore) {
+      mPeakFrame = frame;
+      mPeakScore = score;
+      mPeakValue = value;
+      for (int i = 0; i < INTERPOLATION_TAPS; i++) {
+        // there is no correlation before frame 0
+        long history_frame = frame - INTERPOLATION_TAPS + i;
+        mPeakWindow[i] = (history_frame < 0)
+            ? 0 : mHistory[(int) Math.floorMod(history_frame, (long) INTERPOLATION_TAPS)];
+      }
+      mPeakWindow[INTERPOLATION_TAPS] = value;
+      mPeakWindowFill = INTERPOLATION_TAPS + 1;
+    } else if (mPeakFrame >= 0 && mPeakWindowFill < mPeakWindow.length) {
+      mPeakWindow[mPeakWindowFill++] = value;
+    } else if (mPeakFrame >= 0 && frame - mPeakFrame >= mHoldFrames) {
+      // nothing better showed up around the peak: report it
+      if (mListener != null) {
+        double fraction = interpolate();
+        float peak = (float) Math.min(Math.abs(lanczos(fraction)), 1.0);
+        mListener.onPeak(this, mPeakFrame, fraction, Math.max(peak, mPeakScore));
+      }
+      mPeakFrame = -1;
+      mPeakScore = 0;
+    }
+    mHistory[(int) Math.floorMod(frame, (long) INTERPOLATION_TAPS)] = value;
+  }
+
+  // position of the peak, relative to mPeakFrame
+  private double interpolate() {
+    // flip negative peaks, so the vertex is a maximum
+    double sign = (mPeakValue < 0) ? -1 : 1;
+    double left = sign * mPeakWindow[INTERPOLATION_TAPS - 1];
+    double center = sign * mPeakValue;
+    double right = sign * mPeakWindow[INTERPOLATION_TAPS + 1];
+    double den = left - 2 * center + right;
+    if (den >= 0) {
+      // not a maximum
+      return 0;
+    }
+    double fraction = Math.max(-0.5, Math.min(0.5, 0.5 * (left - right) / den));
+    // golden-section search of the interpolated maximum, around the vertex
+    final double ratio = (Math.sqrt(5) - 1) / 2;
+    double low = Math.max(-0.5, fraction - 0.25);
+    double high = Math.min(0.5, fraction + 0.25);
+    double x1 = high - ratio * (high - low);
+    double x2 = low + ratio * (high - low);
+    double y1 = sign * lanczos(x1);
+    double y2 = sign * lanczos(x2);
+    for (int i = 0; i < REFINE_ITERATIONS; i++) {
+      if (y1 < y2) {
+        low = x1;
+        x1 = x2;
+        y1 = y2;
+        x2 = low + ratio * (high - low);
+        y2 = sign * lanczos(x2);
+      } else {
+        high = x2;
+        x2 = x1;
+        y2 = y1;
+        x1 = high - ratio * (high - low);
+        y1 = sign * lanczos(x1);
+      }
+    }
+    return (low + high) / 2;
+  }
+
+  // correlation at `offset` (from the peak), interpolated from mPeakWindow
+  private double lanczos(double offset) {
+    double sum = 0;
+    for (int i = 0; i < mPeakWindowFill; i++) {
+      double x = offset - (i - INTERPOLATION_TAPS);
+      if (Math.abs(x) < 1e-9) {
+        sum += mPeakWindow[i];
+      } else if (Math.abs(x) < INTERPOLATION_TAPS) {
+        double px = Math.PI * x;
+        sum += mPeakWindow[i] * INTERPOLATION_TAPS * Math.sin(px)
+            * Math.sin(px / INTERPOLATION_TAPS) / (px * px);
+      }
+    }
+    return sum;
+  }
+
+}
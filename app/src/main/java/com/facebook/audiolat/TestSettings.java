@@ -19,5 +19,26 @@ public class TestSettings {
   int inputPreset;
   int contentType;
   int timeBetweenSignals;
+  // java loop: time between signals in ms (overrides timeBetweenSignals if
+  // not 0), and random jitter added to each interval
+  int timeBetweenSignalsMs;
+  int signalJitterMs;
   int javaaudioPerformanceMode;
+  boolean onlineAnalysis;
+  boolean wavOutput;
+  int burstSizeInFrames;
+  int javaaudioScheduler;
+  boolean timestampLatency;
+  // java loop: splice the begin signal at the capture frame of the end signal
+  // write, from the input timestamp
+  boolean timestampSplice;
+  // java loop: 1 or 2 to capture in stereo, with the output looped back into
+  // that (reference) channel. 0 for a mono capture.
+  int referenceChannel;
+  // java loop: SampleFormat of the streams and the capture (the signals
+  // stay s16)
+  int sampleFormat;
+  int soakFileSeconds;
+  int soakKeepFiles;
+  int pulseWindowMs;
 }
@@ -0,0 +1,196 @@
+package com.facebook.audiolat;
+
+// Estimates the output, input, and round-trip latency of a pair of streams
+// from their timestamps (AudioTimestamp-like frame position/nanotime pairs),
+// without any acoustic loop.
+//
+// The frame position vs. time of each stream is fit with a linear
+// regression, whose slope gives the actual rate of the stream clock (and its
+// drift against the nominal rate). For each sample, the stream position at
+// the current time is extrapolated from the last timestamp at that rate:
+// * output latency: time until the last frame written gets presented,
+//   (frames_written - position(now)) / rate
+// * input latency: age of the last frame read,
+//   (position(now) - frames_read) / rate
+// The nominal rate is used until there is a fit, or if the fit is further
+// than MAX_DRIFT_PPM from it (timestamp jitter over a short time).
+//
+// No allocations happen after construction.
+public class TimestampLatencyEstimator {
+  // least-squares fit of frame position vs. time. Values are kept relative
+  // to the first point to keep the precision.
+  public static class PositionFit {
+    private long mFirstNanotime = -1;
+    private long mFirstFrame = 0;
+    private long mCount = 0;
+    private double mSumX = 0;
+    private double mSumY = 0;
+    private double mSumXX = 0;
+    private double mSumXY = 0;
+
+    public void add(long framePosition, long nanotime) {
+      if (mFirstNanotime < 0) {
+        mFirstNanotime = nanotime;
+        mFirstFrame = framePosition;
+      }
+      double x = (nanotime - mFirstNanotime) / 1e9;
+      double y = framePosition - mFirstFrame;
+      mCount++;
+      mSumX += x;
+      mSumY += y;
+      mSumXX += x * x;
+      mSumXY += x * y;
+    }
+
+    public long getCount() {
+      return mCount;
+    }
+
+    // fitted rate, in frames per second (0 if not enough data)
+    public double getRate() {
+      double den = mCount * mSumXX - mSumX * mSumX;
+      if (mCount < 2 || den <= 0) {
+        return 0;
+      }
+      return (mCount * mSumXY - mSumX * mSumY) / den;
+    }
+
+    public void reset() {
+      mFirstNanotime = -1;
+      mFirstFrame = 0;
+      mCount = 0;
+      mSumX = 0;
+      mSumY = 0;
+      mSumXX = 0;
+      mSumXY = 0;
+    }
+  }
+
+  // running min/mean/max of a latency value, in ms
+  public static class LatencyStats {
+    private long mCount = 0;
+    private double mSum = 0;
+    private double mMin = Double.MAX_VALUE;
+    private double mMax = -Double.MAX_VALUE;
+
+    public void add(double value) {
+      mCount++;
+      mSum += value;
+      mMin = Math.min(mMin, value);
+      mMax = Math.max(mMax, value);
+    }
+
+    public long getCount() {
+      return mCount;
+    }
+
+    public double getMean() {
+      return (mCount > 0) ? mSum / mCount : 0;
+    }
+
+    public double getMin() {
+      return (mCount > 0) ? mMin : 0;
+    }
+
+    public double getMax() {
+      return (mCount > 0) ? mMax : 0;
+    }
+
+    public void reset() {
+      mCount = 0;
+      mSum = 0;
+      mMin = Double.MAX_VALUE;
+      mMax = -Double.MAX_VALUE;
+    }
+  }
+
+  // fitted rates further than this from the nominal one are not used
+  public static final double MAX_DRIFT_PPM = 1000;
+
+  private final int mSampleRate;
+  private final PositionFit mOutputFit = new PositionFit();
+  private final PositionFit mInputFit = new PositionFit();
+  private final LatencyStats mOutputLatency = new LatencyStats();
+  private final LatencyStats mInputLatency = new LatencyStats();
+
+  public TimestampLatencyEstimator(int sampleRate) {
+    mSampleRate = sampleRate;
+  }
+
+  // `framesWritten` is the number of frames written into the output stream
+  // at `nanotime`
+  public void addOutputSample(
+      long framesWritten, long nanotime, long timestampFrame, long timestampNanotime) {
+    if (timestampFrame <= 0) {
+      // the stream is not running yet
+      return;
+    }
+    mOutputFit.add(timestampFrame, timestampNanotime);
+    double rate = getRate(mOutputFit);
+    double position = timestampFrame + (nanotime - timestampNanotime) * rate / 1e9;
+    mOutputLatency.add((framesWritten - position) * 1000.0 / rate);
+  }
+
+  // `framesRead` is the number of frames read from the input stream at
+  // `nanotime`
+  public void addInputSample(
+      long framesRead, long nanotime, long timestampFrame, long timestampNanotime) {
+    if (timestampFrame <= 0) {
+      return;
+    }
+    mInputFit.add(timestampFrame, timestampNanotime);
+    double rate = getRate(mInputFit);
+    double position = timestampFrame + (nanotime - timestampNanotime) * rate / 1e9;
+    mInputLatency.add((position - framesRead) * 1000.0 / rate);
+  }
+
+  // rate used to extrapolate the positions of a stream, in frames per second
+  private double getRate(PositionFit fit) {
+    double drift = driftPpm(fit);
+    if (drift == 0 || Math.abs(drift) > MAX_DRIFT_PPM) {
+      return mSampleRate;
+    }
+    return fit.getRate();
+  }
+
+  public double getOutputRate() {
+    return getRate(mOutputFit);
+  }
+
+  public double getInputRate() {
+    return getRate(mInputFit);
+  }
+
+  public LatencyStats getOutputLatency() {
+    return mOutputLatency;
+  }
+
+  public LatencyStats getInputLatency() {
+    return mInputLatency;
+  }
+
+  public double getRoundTripLatencyMs() {
+    return mOutputLatency.getMean() + mInputLatency.getMean();
+  }
+
+  // drift of the stream clock against the nominal rate, in ppm
+  public double getOutputDriftPpm() {
+    return driftPpm(mOutputFit);
+  }
+
+  public double getInputDriftPpm() {
+    return driftPpm(mInputFit);
+  }
+
+  private double driftPpm(PositionFit fit) {
+    double rate = fit.getRate();
+    return (rate > 0) ? (rate / mSampleRate - 1.0) * 1e6 : 0;
+  }
+
+  public void reset() {
+    mOutputFit.reset();
+    mInputFit.reset();
+    mOutputLatency.reset();
+    mInputLatency.reset();
+  }
+}
@@ -0,0 +1,157 @@
+package com.facebook.audiolat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Merges trigger events from several sources (midi devices, raw usb
+// devices), each posting from its own thread, into one bounded queue with
+// a single consumer (the audio loop). Events keep the id of their source.
+//
+// The queue is lock-free and allocation-free: producers reserve a slot with
+// a CAS on the tail, and each slot has a sequence number telling whether it
+// is free, or holds an event ready to be consumed. When the queue is full,
+// events are dropped (and counted per source).
+//
+// The consumer also keeps per-source trigger-to-playout latency stats.
+public class TriggerHub {
+  public static final int MAX_SOURCES = 16;
+  // triggers that do not come from a source (e.g. the timer)
+  public static final int SOURCE_NONE = -1;
+
+  private final int mCapacity;
+  private final int mMask;
+  private final AtomicLongArray mSequence;
+  private final long[] mNanotime;
+  private final int[] mSource;
+  private final AtomicLong mTail = new AtomicLong(0);
+  private long mHead = 0;
+  private int mPolledSource = SOURCE_NONE;
+  private long mPolledNanotime = 0;
+  private volatile Runnable mListener = null;
+
+  private final String[] mSourceNames = new String[MAX_SOURCES];
+  private volatile int mNumSources = 0;
+  private final AtomicLongArray mPosted = new AtomicLongArray(MAX_SOURCES);
+  private final AtomicLongArray mDropped = new AtomicLongArray(MAX_SOURCES);
+  private final TimestampLatencyEstimator.LatencyStats[] mPlayoutLatency =
+      new TimestampLatencyEstimator.LatencyStats[MAX_SOURCES];
+
+  // `capacity` must be a power of 2
+  public TriggerHub(int capacity) {
+    if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+      throw new IllegalArgumentException("capacity must be a power of 2: " + capacity);
+    }
+    mCapacity = capacity;
+    mMask = capacity - 1;
+    mSequence = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      mSequence.set(i, i);
+    }
+    mNanotime = new long[capacity];
+    mSource = new int[capacity];
+    for (int i = 0; i < MAX_SOURCES; i++) {
+      mPlayoutLatency[i] = new TimestampLatencyEstimator.LatencyStats();
+    }
+  }
+
+  // returns the source id, or SOURCE_NONE if there are too many sources
+  public synchronized int registerSource(String name) {
+    if (mNumSources == MAX_SOURCES) {
+      return SOURCE_NONE;
+    }
+    mSourceNames[mNumSources] = name;
+    return mNumSources++;
+  }
+
+  // run (in the posting thread) after every event posted, e.g. to wake up the
+  // consumer
+  public void setListener(Runnable listener) {
+    mListener = listener;
+  }
+
+  // can be called from any thread. `source` is a registered source id, or
+  // SOURCE_NONE
+  public boolean post(int source, long nanotime) {
+    long tail;
+    int index;
+    while (true) {
+      tail = mTail.get();
+      index = (int) tail & mMask;
+      long sequence = mSequence.get(index);
+      if (sequence == tail) {
+        if (mTail.compareAndSet(tail, tail + 1)) {
+          break;
+        }
+      } else if (sequence < tail) {
+        // full
+        if (source >= 0) {
+          mDropped.incrementAndGet(source);
+        }
+        return false;
+      }
+      // else another producer got the slot, retry
+    }
+    mNanotime[index] = nanotime;
+    mSource[index] = source;
+    mSequence.lazySet(index, tail + 1);
+    if (source >= 0) {
+      mPosted.incrementAndGet(source);
+    }
+    Runnable listener = mListener;
+    if (listener != null) {
+      listener.run();
+    }
+    return true;
+  }
+
+  // consumer side: returns true if an event was taken, available through
+  // getPolledSource()/getPolledNanotime()
+  public boolean poll() {
+    int index = (int) mHead & mMask;
+    if (mSequence.get(index) != mHead + 1) {
+      return false;
+    }
+    mPolledSource = mSource[index];
+    mPolledNanotime = mNanotime[index];
+    mSequence.lazySet(index, mHead + mCapacity);
+    mHead++;
+    return true;
+  }
+
+  public int getPolledSource() {
+    return mPolledSource;
+  }
+
+  public long getPolledNanotime() {
+    return mPolledNanotime;
+  }
+
+  // consumer side: the end signal of a trigger from `source` was played
+  // `latencyNs` after the trigger
+  public void addPlayoutLatency(int source, long latencyNs) {
+    if (source >= 0 && source < MAX_SOURCES) {
+      mPlayoutLatency[source].add(latencyNs / 1e6);
+    }
+  }
+
+  public int getNumSources() {
+    return mNumSources;
+  }
+
+  public String getSourceName(int source) {
+    return mSourceNames[source];
+  }
+
+  public long getPostedCount(int source) {
+    return mPosted.get(source);
+  }
+
+  public long getDroppedCount(int source) {
+    return mDropped.get(source);
+  }
+
+  // in ms
+  public TimestampLatencyEstimator.LatencyStats getPlayoutLatency(int source) {
+    return mPlayoutLatency[source];
+  }
+}
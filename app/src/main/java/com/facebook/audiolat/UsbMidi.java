@@ -13,21 +13,59 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
+import android.hardware.usb.UsbRequest;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.TimeoutException;
 
 public class UsbMidi {
     static String id = "usbmidi";
     UsbDevice mDevice = null;
     boolean mRunning = true;
+    // note-on events closer than this to the previous one are ignored
+    static final long DEBOUNCE_MS = 1000;
     MainActivity mMain;
     private static final String ACTION_USB_PERMISSION =
             "com.android.example.USB_PERMISSION";
 
-    public UsbMidi(MainActivity main) {
+    // number of UsbRequests kept queued on the input endpoint (0 to poll
+    // with bulkTransfer instead)
+    int mQueuedRequests = 0;
+    // requestWait() timeout, only used to check for stop()
+    static final long REQUEST_WAIT_TIMEOUT_MS = 500;
+
+    TriggerHub mTriggerHub;
+
+    // Note-on debounce of one endpoint: each endpoint thread has its own, as
+    // the state is not shared across threads.
+    public static class Debouncer {
+        private final long mDebounceNs;
+        private long mLastTimeStamp = 0;
+
+        public Debouncer(long debounceMs) {
+            mDebounceNs = debounceMs * 1000000;
+        }
+
+        // whether the event at `nanotime` is a trigger. Every note-on restarts
+        // the debounce, including the ignored ones.
+        public boolean isTrigger(int cin, int velocity, long nanotime) {
+            if (cin != UsbMidiParser.CIN_NOTE_ON || velocity == 0x00) {
+                // note-on with zero velocity is a note-off
+                return false;
+            }
+            boolean trigger = (nanotime - mLastTimeStamp) > mDebounceNs;
+            mLastTimeStamp = nanotime;
+            return trigger;
+        }
+    }
+
+    public UsbMidi(MainActivity main, TriggerHub hub, int queuedRequests) {
         mMain = main;
+        mTriggerHub = hub;
+        mQueuedRequests = queuedRequests;
     }
 
     public void openDevice(UsbDevice device, Context mContext){
@@ -53,6 +91,8 @@ public class UsbMidi {
                     boolean forceClaim = true;
                     UsbManager manager = (UsbManager) mContext.getSystemService(Context.USB_SERVICE);
                     final UsbEndpoint endpoint = ep;
+                    final int source = mTriggerHub.registerSource("usb:" + product + " " + name);
+                    Log.d(id, "source: " + source + " device: " + product + " " + name);
                     final UsbDeviceConnection connection = manager.openDevice(device);
                     connection.claimInterface(interf, forceClaim);
                     (new Thread(new Runnable() {
@@ -60,66 +100,26 @@ public class UsbMidi {
                         public void run() {
                             android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
                             final int maxPacketSize = endpoint.getMaxPacketSize();
-                            final byte[] bulkReadBuffer = new byte[maxPacketSize];
-                            final byte[] readBuffer = new byte[maxPacketSize * 2]; // *2 for safety (BUFFER_LENGTH+4 would be enough)
-                            int readBufferSize = 0;
-                            long lastTimeStamp = 0;
-                            final byte[] read = new byte[maxPacketSize * 2];
-
-                            while (mRunning) {
-                                int length = connection.bulkTransfer(endpoint, bulkReadBuffer, maxPacketSize, 10);
-
-                                if (length <= 0) {
-                                    continue;
-                                }
-
-                                System.arraycopy(bulkReadBuffer, 0, readBuffer, readBufferSize, length);
-                                readBufferSize += length;
-
-                                if (readBufferSize < 4) {
-                                    // more data needed
-                                    continue;
-                                }
-
-                                // USB MIDI data stream: 4 bytes boundary
-                                int readSize = readBufferSize / 4 * 4;
-                                System.arraycopy(readBuffer, 0, read, 0, readSize); // fill the read array
-
-                                // keep unread bytes
-                                int unreadSize = readBufferSize - readSize;
-                                if (unreadSize > 0) {
-                                    System.arraycopy(readBuffer, readSize, readBuffer, 0, unreadSize);
-                                    readBufferSize = unreadSize;
-                                } else {
-                                    readBufferSize = 0;
-                                }
-
-                                for (int i = 0; i < readSize; i += 4) {
-                                    int channel = (read[i] >> 4) & 0xf;
-                                    int event = read[i] & 0xf;
-                                    int byte1 = read[i + 1] & 0xff;
-                                    int byte2 = read[i + 2] & 0xff;
-                                    int byte3 = read[i + 3] & 0xff;
-
-                                    switch (event) {
-                                        case 9:
-                                            if (byte3 == 0x00) {
-
-                                                long timestamp = System.nanoTime();
-                                                long diff = timestamp - lastTimeStamp / 1000000;
-                                            } else {
-                                                long timestamp = System.nanoTime();
-                                                long diff = timestamp - lastTimeStamp / 1000000;
-                                                if (diff > 1000) {
-                                                    mMain.triggerMidi(timestamp);
-                                                }
-                                                lastTimeStamp = timestamp;
-                                            }
-
-                                            break;
+                            final Debouncer debouncer = new Debouncer(DEBOUNCE_MS);
+                            UsbMidiParser parser = new UsbMidiParser(maxPacketSize, new UsbMidiParser.Listener() {
+                                @Override
+                                public void onMidiEvent(int cable, int cin, int status, int data1, int data2,
+                                                        long nanotime, long latencyNs) {
+                                    if (debouncer.isTrigger(cin, data2, nanotime)) {
+                                        mMain.triggerMidi(source, nanotime);
+                                        Log.d(id, "note-on: parse latency: " + latencyNs / 1000 + " us");
                                     }
+                                }
 
+                                @Override
+                                public void onSysEx(int cable, byte[] data, int length, long nanotime,
+                                                    long latencyNs) {
                                 }
+                            });
+                            if (mQueuedRequests > 0) {
+                                readWithRequests(connection, endpoint, parser);
+                            } else {
+                                readWithBulkTransfer(connection, endpoint, parser);
                             }
                             connection.close();
 
@@ -135,6 +135,82 @@ public class UsbMidi {
 
     }
 
+    private void readWithBulkTransfer(UsbDeviceConnection connection, UsbEndpoint endpoint,
+                                      UsbMidiParser parser) {
+        final byte[] buffer = parser.getBuffer();
+        final int maxPacketSize = parser.getMaxPacketSize();
+        while (mRunning) {
+            // transfer straight into the parser buffer, and
+            // stamp the transfer as soon as it returns
+            int length = connection.bulkTransfer(endpoint, buffer, parser.getWriteOffset(),
+                    maxPacketSize, 10);
+            long nanotime = System.nanoTime();
+
+            if (length <= 0) {
+                continue;
+            }
+            parser.onTransfer(length, nanotime);
+        }
+    }
+
+    // keep several requests queued, so the host controller always has a
+    // buffer to complete into, and sleep in requestWait() until one is done.
+    // Requests on an endpoint complete in order, so the stream is parsed in
+    // the order it was received.
+    private void readWithRequests(UsbDeviceConnection connection, UsbEndpoint endpoint,
+                                  UsbMidiParser parser) {
+        final int maxPacketSize = parser.getMaxPacketSize();
+        UsbRequest[] requests = new UsbRequest[mQueuedRequests];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new UsbRequest();
+            if (!requests[i].initialize(connection, endpoint)) {
+                Log.e(id, "Cannot initialize usb request");
+                closeRequests(requests);
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(maxPacketSize);
+            requests[i].setClientData(buffer);
+            if (!requests[i].queue(buffer)) {
+                Log.e(id, "Cannot queue usb request");
+                closeRequests(requests);
+                return;
+            }
+        }
+        Log.d(id, "Reading with " + requests.length + " queued requests");
+
+        while (mRunning) {
+            UsbRequest request;
+            try {
+                request = connection.requestWait(REQUEST_WAIT_TIMEOUT_MS);
+            } catch (TimeoutException e) {
+                continue;
+            }
+            long nanotime = System.nanoTime();
+            if (request == null) {
+                Log.e(id, "Usb request wait failed");
+                break;
+            }
+            // the position is the number of bytes received
+            ByteBuffer buffer = (ByteBuffer) request.getClientData();
+            parser.parse(buffer.array(), 0, buffer.position(), nanotime);
+            buffer.clear();
+            if (!request.queue(buffer)) {
+                Log.e(id, "Cannot queue usb request");
+                break;
+            }
+        }
+        closeRequests(requests);
+    }
+
+    private static void closeRequests(UsbRequest[] requests) {
+        for (UsbRequest request : requests) {
+            if (request != null) {
+                request.cancel();
+                request.close();
+            }
+        }
+    }
+
     public void stop() {
         mRunning = false;
     }
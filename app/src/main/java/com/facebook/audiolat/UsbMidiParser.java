@@ -0,0 +1,223 @@
+package com.facebook.audiolat;
+
+// Decodes a USB MIDI stream (4-byte event packets, as returned by bulk
+// transfers) in place, with no per-transfer copies or allocations.
+//
+// The parser owns the transfer buffer: the reader transfers into
+// getBuffer() at getWriteOffset(), stamps the transfer as soon as it returns,
+// and passes both to onTransfer(). A transfer that is not a multiple of 4
+// bytes leaves at most 3 bytes, which are moved to the start of the buffer
+// for the next transfer to complete.
+//
+// Recorded streams can be replayed with parse(), which decodes directly from
+// the caller's array.
+//
+// Every code index number (CIN) is decoded. SysEx messages (CIN 0x4
+// start/continue, 0x5-0x7 end) are reassembled per cable, and reported once
+// complete.
+public class UsbMidiParser {
+    // code index numbers
+    public static final int CIN_MISC = 0x0;
+    public static final int CIN_CABLE_EVENT = 0x1;
+    public static final int CIN_SYSTEM_COMMON_2 = 0x2;
+    public static final int CIN_SYSTEM_COMMON_3 = 0x3;
+    public static final int CIN_SYSEX_START = 0x4;
+    public static final int CIN_SYSEX_END_1 = 0x5;
+    public static final int CIN_SYSEX_END_2 = 0x6;
+    public static final int CIN_SYSEX_END_3 = 0x7;
+    public static final int CIN_NOTE_OFF = 0x8;
+    public static final int CIN_NOTE_ON = 0x9;
+    public static final int CIN_POLY_KEY_PRESSURE = 0xa;
+    public static final int CIN_CONTROL_CHANGE = 0xb;
+    public static final int CIN_PROGRAM_CHANGE = 0xc;
+    public static final int CIN_CHANNEL_PRESSURE = 0xd;
+    public static final int CIN_PITCH_BEND = 0xe;
+    public static final int CIN_SINGLE_BYTE = 0xf;
+
+    private static final int PACKET_SIZE = 4;
+    private static final int NUM_CABLES = 16;
+    // SysEx bytes kept per message, longer messages are truncated (and
+    // counted)
+    public static final int SYSEX_MAX_SIZE = 256;
+    // number of MIDI bytes in a packet, by CIN (0 for reserved)
+    private static final int[] CIN_SIZE = {0, 0, 2, 3, 3, 1, 2, 3, 3, 3, 3, 3, 2, 2, 3, 1};
+
+    public interface Listener {
+        // `data1`/`data2` are 0 when the message is shorter. `nanotime` is the
+        // time the transfer returned, and `latencyNs` the time from then
+        // until this call.
+        void onMidiEvent(int cable, int cin, int status, int data1, int data2, long nanotime,
+                long latencyNs);
+
+        // `data` is only valid during the call
+        void onSysEx(int cable, byte[] data, int length, long nanotime, long latencyNs);
+    }
+
+    private final Listener mListener;
+    private final int mMaxPacketSize;
+    private final byte[] mBuffer;
+    private int mPending = 0;
+    private final byte[][] mSysEx = new byte[NUM_CABLES][SYSEX_MAX_SIZE];
+    private final int[] mSysExSize = new int[NUM_CABLES];
+    private final boolean[] mInSysEx = new boolean[NUM_CABLES];
+    private final boolean[] mSysExTruncated = new boolean[NUM_CABLES];
+    private long mEventCount = 0;
+    private long mTruncatedSysExCount = 0;
+
+    public UsbMidiParser(int maxPacketSize, Listener listener) {
+        mListener = listener;
+        mMaxPacketSize = maxPacketSize;
+        mBuffer = new byte[maxPacketSize + PACKET_SIZE];
+    }
+
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getWriteOffset() {
+        return mPending;
+    }
+
+    public int getMaxPacketSize() {
+        return mMaxPacketSize;
+    }
+
+    // `length` bytes were transferred into getBuffer() at getWriteOffset(),
+    // returning at `nanotime`
+    public void onTransfer(int length, long nanotime) {
+        if (length <= 0) {
+            return;
+        }
+        int size = mPending + length;
+        int parsed = decode(mBuffer, 0, size, nanotime);
+        mPending = size - parsed;
+        for (int i = 0; i < mPending; i++) {
+            mBuffer[i] = mBuffer[parsed + i];
+        }
+    }
+
+    // decode `length` bytes of a stream from `data`, received at `nanotime`
+    public void parse(byte[] data, int offset, int length, long nanotime) {
+        if (length <= 0) {
+            return;
+        }
+        if (mPending > 0) {
+            // complete the partial packet first
+            int needed = Math.min(PACKET_SIZE - mPending, length);
+            System.arraycopy(data, offset, mBuffer, mPending, needed);
+            mPending += needed;
+            offset += needed;
+            length -= needed;
+            if (mPending < PACKET_SIZE) {
+                return;
+            }
+            decode(mBuffer, 0, PACKET_SIZE, nanotime);
+            mPending = 0;
+        }
+        int parsed = decode(data, offset, length, nanotime);
+        mPending = length - parsed;
+        System.arraycopy(data, offset + parsed, mBuffer, 0, mPending);
+    }
+
+    // returns the number of bytes decoded (a multiple of 4)
+    private int decode(byte[] data, int offset, int length, long nanotime) {
+        int end = offset + length / PACKET_SIZE * PACKET_SIZE;
+        for (int i = offset; i < end; i += PACKET_SIZE) {
+            int cable = (data[i] >> 4) & 0xf;
+            int cin = data[i] & 0xf;
+            int byte1 = data[i + 1] & 0xff;
+            int byte2 = data[i + 2] & 0xff;
+            int byte3 = data[i + 3] & 0xff;
+            int size = CIN_SIZE[cin];
+            if (size == 0) {
+                // reserved, or an empty (padding) packet
+                continue;
+            }
+            mEventCount++;
+
+            switch (cin) {
+                case CIN_SYSEX_START:
+                    if (!mInSysEx[cable]) {
+                        mInSysEx[cable] = true;
+                        mSysExSize[cable] = 0;
+                        mSysExTruncated[cable] = false;
+                    }
+                    appendSysEx(cable, byte1, byte2, byte3, 3);
+                    break;
+                case CIN_SYSEX_END_1:
+                    if (!mInSysEx[cable] && byte1 != 0xf7) {
+                        // single-byte system common message
+                        dispatch(cable, cin, byte1, 0, 0, nanotime);
+                    } else {
+                        endSysEx(cable, byte1, byte2, byte3, size, nanotime);
+                    }
+                    break;
+                case CIN_SYSEX_END_2:
+                case CIN_SYSEX_END_3:
+                    endSysEx(cable, byte1, byte2, byte3, size, nanotime);
+                    break;
+                default:
+                    dispatch(cable, cin, byte1, (size > 1) ? byte2 : 0, (size > 2) ? byte3 : 0,
+                            nanotime);
+                    break;
+            }
+        }
+        return end - offset;
+    }
+
+    private void dispatch(int cable, int cin, int status, int data1, int data2, long nanotime) {
+        mListener.onMidiEvent(cable, cin, status, data1, data2, nanotime,
+                System.nanoTime() - nanotime);
+    }
+
+    private void endSysEx(int cable, int byte1, int byte2, int byte3, int count, long nanotime) {
+        if (!mInSysEx[cable]) {
+            // a complete message in one packet (e.g. F0 7E F7)
+            mSysExSize[cable] = 0;
+            mSysExTruncated[cable] = false;
+        }
+        appendSysEx(cable, byte1, byte2, byte3, count);
+        mInSysEx[cable] = false;
+        if (mSysExTruncated[cable]) {
+            mTruncatedSysExCount++;
+            mSysExTruncated[cable] = false;
+        }
+        mListener.onSysEx(cable, mSysEx[cable], mSysExSize[cable], nanotime,
+                System.nanoTime() - nanotime);
+        mSysExSize[cable] = 0;
+    }
+
+    private void appendSysEx(int cable, int byte1, int byte2, int byte3, int count) {
+        byte[] sysex = mSysEx[cable];
+        int size = mSysExSize[cable];
+        if (size + count > SYSEX_MAX_SIZE) {
+            mSysExTruncated[cable] = true;
+            return;
+        }
+        sysex[size] = (byte) byte1;
+        if (count > 1) {
+            sysex[size + 1] = (byte) byte2;
+        }
+        if (count > 2) {
+            sysex[size + 2] = (byte) byte3;
+        }
+        mSysExSize[cable] = size + count;
+    }
+
+    public long getEventCount() {
+        return mEventCount;
+    }
+
+    public long getTruncatedSysExCount() {
+        return mTruncatedSysExCount;
+    }
+
+    public void reset() {
+        mPending = 0;
+        for (int i = 0; i < NUM_CABLES; i++) {
+            mInSysEx[i] = false;
+            mSysExTruncated[i] = false;
+            mSysExSize[i] = 0;
+        }
+    }
+}
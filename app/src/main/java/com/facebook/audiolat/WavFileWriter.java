@@ -0,0 +1,221 @@
+package com.facebook.audiolat;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+// Capture sink that writes a WAV file through a memory-mapped FileChannel.
+// The expected size is preallocated when the file is opened, so the file
+// system does not need to grow the file during the run. Only the
+// preallocated space is mapped (in windows of up to MAP_WINDOW_SIZE): data
+// past it is written with plain channel writes. The header is finalized on
+// close(). Files larger than 4 GB are written as RF64 (the header reserves a
+// JUNK chunk that is turned into the ds64 chunk).
+//
+// This is fed by the CaptureWriter thread, so the samples are copied from
+// the capture ring into the mapping, and not from the record buffer: writing
+// the mapping from the audio thread would take its page faults there.
+//
+// Run metadata can be added with setMetadata(), and is stored as a LIST/INFO
+// comment (ICMT) after the data chunk.
+public class WavFileWriter implements WritableByteChannel {
+  private static final int MAP_WINDOW_SIZE = 16 * 1024 * 1024;
+  private static final int DS64_SIZE = 28;
+  // RIFF/WAVE (12) + JUNK/ds64 (8 + 28) + fmt (8 + 16) + data (8)
+  public static final int HEADER_SIZE = 80;
+  private static final long MAX_RIFF_SIZE = 0xffffffffL;
+
+  private final RandomAccessFile mFile;
+  private final FileChannel mChannel;
+  private final int mSampleRate;
+  private final int mNumChannels;
+  private final int mBitsPerSample;
+  private final int mFormatTag;
+  private MappedByteBuffer mWindow = null;
+  private long mWindowOffset = HEADER_SIZE;
+  // end of the preallocated space
+  private long mMappableEnd = HEADER_SIZE;
+  private long mDataSize = 0;
+  private String mMetadata = null;
+  private boolean mOpen = true;
+
+  public static final int WAVE_FORMAT_PCM = 1;
+  public static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+
+  public WavFileWriter(String path, int sampleRate, int numChannels, int bitsPerSample,
+      long preallocateSizeInBytes) throws IOException {
+    this(path, sampleRate, numChannels, bitsPerSample, WAVE_FORMAT_PCM, preallocateSizeInBytes);
+  }
+
+  public WavFileWriter(String path, int sampleRate, int numChannels, int bitsPerSample,
+      int formatTag, long preallocateSizeInBytes) throws IOException {
+    mSampleRate = sampleRate;
+    mNumChannels = numChannels;
+    mBitsPerSample = bitsPerSample;
+    mFormatTag = formatTag;
+    mFile = new RandomAccessFile(path, "rw");
+    mFile.setLength(0);
+    mChannel = mFile.getChannel();
+    writeHeader();
+    preallocate(preallocateSizeInBytes);
+  }
+
+  // write zeros so that the blocks are allocated before the run starts
+  private void preallocate(long sizeInBytes) throws IOException {
+    ByteBuffer zeros = ByteBuffer.allocateDirect(64 * 1024);
+    long position = HEADER_SIZE;
+    long end = HEADER_SIZE + sizeInBytes;
+    while (position < end) {
+      zeros.clear();
+      if (end - position < zeros.capacity()) {
+        zeros.limit((int) (end - position));
+      }
+      position += mChannel.write(zeros, position);
+    }
+    mMappableEnd = end;
+  }
+
+  public void setMetadata(String metadata) {
+    mMetadata = metadata;
+  }
+
+  public long getDataSize() {
+    return mDataSize;
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    if (!mOpen) {
+      throw new IOException("writing to a closed WavFileWriter");
+    }
+    int written = 0;
+    while (src.hasRemaining()) {
+      if (mWindow == null || !mWindow.hasRemaining()) {
+        if (!mapNextWindow()) {
+          // past the preallocated space
+          while (src.hasRemaining()) {
+            written += mChannel.write(src, HEADER_SIZE + mDataSize + written);
+          }
+          break;
+        }
+      }
+      int count = Math.min(src.remaining(), mWindow.remaining());
+      if (count == src.remaining()) {
+        mWindow.put(src);
+      } else {
+        ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + count);
+        mWindow.put(slice);
+        src.position(src.position() + count);
+      }
+      written += count;
+    }
+    mDataSize += written;
+    return written;
+  }
+
+  // maps the next window of the preallocated space (never past it, as
+  // mapping grows the file). Returns false if there is none left.
+  private boolean mapNextWindow() throws IOException {
+    if (mWindow != null) {
+      mWindowOffset += mWindow.capacity();
+      mWindow = null;
+    }
+    long size = Math.min(MAP_WINDOW_SIZE, mMappableEnd - mWindowOffset);
+    if (size <= 0) {
+      return false;
+    }
+    mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, mWindowOffset, size);
+    return true;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return mOpen;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!mOpen) {
+      return;
+    }
+    mOpen = false;
+    // there is no unmap: the window is flushed, and never accessed again, before
+    // the file gets truncated under it
+    if (mWindow != null) {
+      mWindow.force();
+      mWindow = null;
+    }
+    // drop the preallocated space that was not used
+    long end = HEADER_SIZE + mDataSize;
+    if ((mDataSize & 1) != 0) {
+      // chunks are word-aligned
+      mChannel.write(ByteBuffer.wrap(new byte[1]), end);
+      end++;
+    }
+    mChannel.truncate(end);
+    if (mMetadata != null) {
+      end += writeInfoChunk(end);
+    }
+    writeHeader(end);
+    mChannel.force(true);
+    mChannel.close();
+    mFile.close();
+  }
+
+  private int writeInfoChunk(long position) throws IOException {
+    byte[] text = (mMetadata + "\0").getBytes(Charset.forName("US-ASCII"));
+    int textSize = text.length + (text.length & 1);
+    ByteBuffer chunk = ByteBuffer.allocate(8 + 4 + 8 + textSize).order(ByteOrder.LITTLE_ENDIAN);
+    chunk.put(fourcc("LIST")).putInt(4 + 8 + textSize).put(fourcc("INFO"));
+    chunk.put(fourcc("ICMT")).putInt(text.length).put(text);
+    chunk.rewind();
+    mChannel.write(chunk, position);
+    return chunk.capacity();
+  }
+
+  private void writeHeader() throws IOException {
+    writeHeader(HEADER_SIZE);
+  }
+
+  private void writeHeader(long fileSize) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    long riffSize = fileSize - 8;
+    boolean rf64 = riffSize > MAX_RIFF_SIZE || mDataSize > MAX_RIFF_SIZE;
+    int frameSize = mNumChannels * mBitsPerSample / 8;
+    header.put(fourcc(rf64 ? "RF64" : "RIFF"));
+    header.putInt(rf64 ? -1 : (int) riffSize);
+    header.put(fourcc("WAVE"));
+    if (rf64) {
+      header.put(fourcc("ds64")).putInt(DS64_SIZE);
+      header.putLong(riffSize);
+      header.putLong(mDataSize);
+      header.putLong(mDataSize / frameSize);
+      // no table entries
+      header.putInt(0);
+    } else {
+      header.put(fourcc("JUNK")).putInt(DS64_SIZE);
+      header.position(header.position() + DS64_SIZE);
+    }
+    header.put(fourcc("fmt ")).putInt(16);
+    header.putShort((short) mFormatTag);
+    header.putShort((short) mNumChannels);
+    header.putInt(mSampleRate);
+    header.putInt(mSampleRate * frameSize);
+    header.putShort((short) frameSize);
+    header.putShort((short) mBitsPerSample);
+    header.put(fourcc("data"));
+    header.putInt(rf64 ? -1 : (int) mDataSize);
+    header.rewind();
+    mChannel.write(header, 0);
+  }
+
+  private static byte[] fourcc(String id) {
+    return id.getBytes(Charset.forName("US-ASCII"));
+  }
+}
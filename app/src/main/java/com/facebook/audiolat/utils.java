@@ -4,10 +4,13 @@ import android.util.Log;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 
 public class utils {
     public static final String LOG_ID = "audiolat";
     public static final double MAX = Math.pow(2, 15) - 1;
+    public static final double MAX_24 = Math.pow(2, 23) - 1;
 
     public static double dBToFloat(double val) {
         return Math.pow(10, val / 20.0);
@@ -22,56 +25,183 @@ public class utils {
 
 
     public static void convertBytesToFloats(byte[] input, float[] output, boolean little_endian) {
+        convertBytesToFloats(input, 0, output.length * 2, output, 0, little_endian);
+    }
+
+    public static void convertFloatesToBytes(float[] input, byte[] output, boolean little_endian) {
+        convertFloatsToBytes(input, 0, input.length, output, 0, little_endian);
+    }
+
+    public static void gain(byte[] input, float gaindB) {
+        if (gaindB > 6) {
+            Log.d(LOG_ID, "No crazy distortion please");
+            return;
+        }
+        float mult = (float) dBToFloat(gaindB);
+        gain(input, 0, input.length, mult, mult, true);
+    }
+
+    // Allocation-free kernels. They work in place on caller-owned buffers, so
+    // they can be used on the audio thread. Byte ranges are given in bytes
+    // (as in AudioTrack/AudioRecord), buffer ranges in samples. Conversions to
+    // integer samples saturate instead of wrapping around.
+
+    public static short clampToShort(float value) {
+        if (value >= Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (value <= Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) Math.round(value);
+    }
 
-        short[] mShorts = new short[output.length];
+    public static short getShort(byte[] data, int offset, boolean little_endian) {
+        if (little_endian) {
+            return (short) ((data[offset + 1] << 8) | (data[offset] & 0xff));
+        }
+        return (short) ((data[offset] << 8) | (data[offset + 1] & 0xff));
+    }
 
+    public static void putShort(byte[] data, int offset, short value, boolean little_endian) {
         if (little_endian) {
-            ByteBuffer.wrap(input).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(mShorts);
+            data[offset] = (byte) value;
+            data[offset + 1] = (byte) (value >> 8);
         } else {
-            ByteBuffer.wrap(input).order(ByteOrder.BIG_ENDIAN).asShortBuffer().get(mShorts);
+            data[offset] = (byte) (value >> 8);
+            data[offset + 1] = (byte) value;
         }
-        int index = 0;
-        for (short s : mShorts) {
-            output[index++] = (float)(s / MAX);
+    }
+
+    // convert `length` bytes of s16 samples into floats in [-1, 1]
+    public static void convertBytesToFloats(byte[] input, int offset, int length,
+                                            float[] output, int outputOffset, boolean little_endian) {
+        int numSamples = length / 2;
+        for (int i = 0; i < numSamples; i++) {
+            output[outputOffset + i] = (float) (getShort(input, offset + 2 * i, little_endian) / MAX);
         }
     }
 
-    public static void convertFloatesToBytes(float[] input, byte[] output, boolean little_endian) {
-        short[] mShorts = new short[output.length];
-        if (mShorts == null || input.length != mShorts.length) {
-            mShorts = new short[input.length];
+    // convert `numSamples` floats in [-1, 1] into s16 samples
+    public static void convertFloatsToBytes(float[] input, int inputOffset, int numSamples,
+                                            byte[] output, int offset, boolean little_endian) {
+        for (int i = 0; i < numSamples; i++) {
+            putShort(output, offset + 2 * i,
+                    clampToShort((float) (input[inputOffset + i] * MAX)), little_endian);
         }
+    }
+
+    // the buffer versions use absolute indices, and do not touch the buffer positions
+
+    // s16le sample at byte `index` of a ByteBuffer, whatever the buffer order
+    public static short getShort(ByteBuffer data, int index) {
+        short value = data.getShort(index);
+        return (data.order() == ByteOrder.LITTLE_ENDIAN) ? value : Short.reverseBytes(value);
+    }
+
+    public static void putShort(ByteBuffer data, int index, short value) {
+        data.putShort(index,
+                (data.order() == ByteOrder.LITTLE_ENDIAN) ? value : Short.reverseBytes(value));
+    }
 
-        int index = 0;
-        for (float f : input) {
-            mShorts[index++] = (short) (f * MAX);
+    // `length` bytes of s16le samples from byte `index`
+    public static void convertBytesToFloats(ByteBuffer input, int index, int length,
+                                            float[] output, int outputOffset) {
+        convertBytesToFloats(input, index, length / 2, 2, output, outputOffset);
+    }
+
+    // `numSamples` s16le samples from byte `index`, one every `stride` bytes
+    // (e.g. one channel of interleaved frames)
+    public static void convertBytesToFloats(ByteBuffer input, int index, int numSamples,
+                                            int stride, float[] output, int outputOffset) {
+        for (int i = 0; i < numSamples; i++) {
+            output[outputOffset + i] = (float) (getShort(input, index + stride * i) / MAX);
         }
+    }
 
+    // s24le (packed) sample at byte `index`, sign-extended
+    public static int getInt24(ByteBuffer data, int index) {
+        return (data.get(index + 2) << 16) | ((data.get(index + 1) & 0xff) << 8)
+                | (data.get(index) & 0xff);
+    }
 
-        if (little_endian) {
-            ByteBuffer buffer = ByteBuffer.wrap(output).order(ByteOrder.LITTLE_ENDIAN);
-            buffer.asShortBuffer().put(mShorts);
-        } else {
-            ByteBuffer buffer = ByteBuffer.wrap(output).order(ByteOrder.BIG_ENDIAN);
-            buffer.asShortBuffer().put(mShorts);
+    public static void putInt24(ByteBuffer data, int index, int value) {
+        data.put(index, (byte) value);
+        data.put(index + 1, (byte) (value >> 8));
+        data.put(index + 2, (byte) (value >> 16));
+    }
+
+    // float32le sample at byte `index`, whatever the buffer order
+    public static float getFloat(ByteBuffer data, int index) {
+        int bits = data.getInt(index);
+        return Float.intBitsToFloat(
+                (data.order() == ByteOrder.LITTLE_ENDIAN) ? bits : Integer.reverseBytes(bits));
+    }
+
+    public static void putFloat(ByteBuffer data, int index, float value) {
+        int bits = Float.floatToRawIntBits(value);
+        data.putInt(index,
+                (data.order() == ByteOrder.LITTLE_ENDIAN) ? bits : Integer.reverseBytes(bits));
+    }
+
+    // `numSamples` s24le samples from byte `index`, one every `stride` bytes
+    public static void convertInt24BytesToFloats(ByteBuffer input, int index, int numSamples,
+                                                 int stride, float[] output, int outputOffset) {
+        for (int i = 0; i < numSamples; i++) {
+            output[outputOffset + i] = (float) (getInt24(input, index + stride * i) / MAX_24);
         }
+    }
 
+    // `numSamples` float32le samples from byte `index`, one every `stride` bytes
+    public static void convertFloatBytesToFloats(ByteBuffer input, int index, int numSamples,
+                                                 int stride, float[] output, int outputOffset) {
+        for (int i = 0; i < numSamples; i++) {
+            output[outputOffset + i] = getFloat(input, index + stride * i);
+        }
+    }
 
+    public static void convertShortsToFloats(ShortBuffer input, int inputIndex,
+                                             FloatBuffer output, int outputIndex, int numSamples) {
+        for (int i = 0; i < numSamples; i++) {
+            output.put(outputIndex + i, (float) (input.get(inputIndex + i) / MAX));
+        }
     }
 
-    public static void gain(byte[] input, float gaindB) {
-        if (gaindB > 6) {
-            Log.d(LOG_ID, "No crazy distortion please");
-            return;
+    public static void convertFloatsToShorts(FloatBuffer input, int inputIndex,
+                                             ShortBuffer output, int outputIndex, int numSamples) {
+        for (int i = 0; i < numSamples; i++) {
+            output.put(outputIndex + i, clampToShort((float) (input.get(inputIndex + i) * MAX)));
         }
-        double mult = dBToFloat(gaindB);
-        float[] data = new float[(int) (input.length / 2)];
-        convertBytesToFloats(input, data, true);
-        for (int i = 0; i < data.length; i++) {
-            data[i] = (float) (data[i] * mult);
+    }
+
+    // Apply a linear gain ramp (from `startGain` to `endGain`, in linear units)
+    // to `length` bytes of s16 samples. Use the same value twice for a flat gain.
+    public static void gain(byte[] data, int offset, int length, float startGain, float endGain,
+                            boolean little_endian) {
+        int numSamples = length / 2;
+        float step = (numSamples > 0) ? (endGain - startGain) / numSamples : 0;
+        for (int i = 0; i < numSamples; i++) {
+            int index = offset + 2 * i;
+            float value = getShort(data, index, little_endian) * (startGain + step * i);
+            putShort(data, index, clampToShort(value), little_endian);
+        }
+    }
+
+    public static void gain(ShortBuffer data, int index, int numSamples, float startGain,
+                            float endGain) {
+        float step = (numSamples > 0) ? (endGain - startGain) / numSamples : 0;
+        for (int i = 0; i < numSamples; i++) {
+            data.put(index + i, clampToShort(data.get(index + i) * (startGain + step * i)));
         }
+    }
 
-        convertFloatesToBytes(data, input, true);
+    public static void gain(FloatBuffer data, int index, int numSamples, float startGain,
+                            float endGain) {
+        float step = (numSamples > 0) ? (endGain - startGain) / numSamples : 0;
+        for (int i = 0; i < numSamples; i++) {
+            float value = data.get(index + i) * (startGain + step * i);
+            data.put(index + i, Math.max(-1.0f, Math.min(1.0f, value)));
+        }
     }
 
 }
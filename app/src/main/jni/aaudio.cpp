@@ -120,17 +120,27 @@ bool checkForXruns(AAudioStream *stream, int &stream_xruns,
   return true;
 }
 
+// data callback state (reset at the beginning of every run)
+static int written_frames = 0;
+static int playout_num_frames_remaining = 0;
+static int record_num_frames_remaining = 0;
+static float last_ts = 0;
+static int64_t last_midi_ts = -1;
+
+static void resetCallbackState() {
+  written_frames = 0;
+  playout_num_frames_remaining = 0;
+  record_num_frames_remaining = 0;
+  last_ts = 0;
+  last_midi_ts = -1;
+}
+
 int RELAXED_PLAYBACK_START = 2;
 int RELAXED_REC_START = 2;
 
 aaudio_data_callback_result_t dataCallback(AAudioStream *stream, void *userData,
                                            void *audioData,
                                            int32_t num_frames) {
-  static int written_frames = 0;
-  static int playout_num_frames_remaining = 0;
-  static int record_num_frames_remaining = 0;
-  static float last_ts = 0;
-  static int64_t last_midi_ts = -1;
   struct callback_data *cb_data = (struct callback_data *)userData;
   aaudio_stream_state_t playout_state =
       AAudioStream_getState(cb_data->playout_stream);
@@ -428,6 +438,7 @@ Java_com_facebook_audiolat_MainActivity_runAAudio(JNIEnv *env,
   fid = env->GetFieldID(cSettings, "contentType", "I");
   jint content_type = env->GetIntField(settings, fid);
   running = true;
+  resetCallbackState();
 
   struct callback_data cb_data;
   memset(&cb_data, 0, sizeof(struct callback_data));
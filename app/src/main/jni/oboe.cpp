@@ -26,6 +26,19 @@ struct callback_data {
   int time_between_signals;
 };
 
+// data callback state (reset at the beginning of every run)
+static int written_frames = 0;
+static int playout_num_frames_remaining = 0;
+static int record_num_frames_remaining = 0;
+static float last_ts = 0;
+
+static void resetCallbackState() {
+  written_frames = 0;
+  playout_num_frames_remaining = 0;
+  record_num_frames_remaining = 0;
+  last_ts = 0;
+}
+
 class AudioCallback : public oboe::AudioStreamCallback {
   struct callback_data *cb_data;
 
@@ -34,10 +47,6 @@ class AudioCallback : public oboe::AudioStreamCallback {
 
   oboe::DataCallbackResult onAudioReady(oboe::AudioStream *stream,
                                         void *audioData, int32_t num_frames) {
-    static int written_frames = 0;
-    static int playout_num_frames_remaining = 0;
-    static int record_num_frames_remaining = 0;
-    static float last_ts = 0;
     float time_sec = (float)written_frames / (float)cb_data->samplerate;
 
     LOGD(
@@ -234,6 +243,7 @@ Java_com_facebook_audiolat_MainActivity_runOboe(JNIEnv *env, jobject /* this */,
   jint time_between_signals = env->GetIntField(settings, fid);
 
   running = true;
+  resetCallbackState();
 
   struct callback_data cb_data;
   memset(&cb_data, 0, sizeof(struct callback_data));
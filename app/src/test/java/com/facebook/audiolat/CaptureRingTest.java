@@ -0,0 +1,221 @@
+package com.facebook.audiolat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.Test;
+
+// CaptureRing and CaptureWriter, with a fake producer that pushes 10 ms
+// bursts of 48 kHz mono s16, as the java loop does.
+public class CaptureRingTest {
+  private static final int SAMPLE_RATE = 48000;
+  private static final int BURST = SAMPLE_RATE / 100;
+  private static final int BURST_SIZE_IN_BYTES = 2 * BURST;
+
+  // channel that keeps everything, and can be stalled (as storage can)
+  private static class MemoryChannel implements WritableByteChannel {
+    final ByteArrayOutputStream mData = new ByteArrayOutputStream();
+    final CountDownLatch mStall;
+
+    MemoryChannel(boolean stalled) {
+      mStall = new CountDownLatch(stalled ? 1 : 0);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      try {
+        mStall.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      int size = src.remaining();
+      byte[] bytes = new byte[size];
+      src.get(bytes);
+      synchronized (mData) {
+        mData.write(bytes, 0, size);
+      }
+      return size;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {}
+
+    byte[] getData() {
+      synchronized (mData) {
+        return mData.toByteArray();
+      }
+    }
+  }
+
+  // never 0, so it can be told apart from the silence of an overflow
+  private static short getSample(long frame) {
+    return (short) (1 + frame % 32000);
+  }
+
+  private static ByteBuffer getBurst(long firstFrame) {
+    ByteBuffer burst =
+        ByteBuffer.allocateDirect(BURST_SIZE_IN_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < BURST; i++) {
+      burst.putShort(2 * i, getSample(firstFrame + i));
+    }
+    return burst;
+  }
+
+  private static Thread startWriter(CaptureWriter writer) {
+    Thread thread = new Thread(writer);
+    thread.start();
+    return thread;
+  }
+
+  private static void stopWriter(CaptureRing ring, CaptureWriter writer, Thread thread)
+      throws InterruptedException {
+    ring.finish();
+    writer.stop();
+    thread.join();
+  }
+
+  // every frame of the capture is either what was offered at that position,
+  // or silence (lost to an overflow). Returns the number of silent frames.
+  private static int checkCapture(byte[] capture, long frames) {
+    assertEquals(2 * frames, capture.length);
+    ByteBuffer data = ByteBuffer.wrap(capture).order(ByteOrder.LITTLE_ENDIAN);
+    int silent = 0;
+    for (int i = 0; i < frames; i++) {
+      short sample = data.getShort(2 * i);
+      if (sample == 0) {
+        silent++;
+      } else if (sample != getSample(i)) {
+        fail("frame " + i + ": " + sample + " instead of " + getSample(i));
+      }
+    }
+    return silent;
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void numberOfSlotsIsAPowerOf2() {
+    new CaptureRing(48, 1024);
+  }
+
+  @Test
+  public void flushPublishesAPartialSlot() {
+    CaptureRing ring = new CaptureRing(4, 4096);
+    ring.offer(getBurst(0), 0, 100);
+    assertNull(ring.poll());
+    assertTrue(ring.flush());
+    assertEquals(100, ring.poll().remaining());
+    ring.release();
+    assertTrue(ring.isEmpty());
+  }
+
+  @Test
+  public void producerAt48kHzIsWrittenInOrder() throws InterruptedException {
+    CaptureRing ring = new CaptureRing(8, 4096);
+    MemoryChannel channel = new MemoryChannel(false);
+    CaptureWriter writer = new CaptureWriter(ring, channel);
+    Thread thread = startWriter(writer);
+    // 1 second, in real time
+    long periodNs = 1000000000L * BURST / SAMPLE_RATE;
+    long start = System.nanoTime();
+    int bursts = SAMPLE_RATE / BURST;
+    for (int i = 0; i < bursts; i++) {
+      LockSupport.parkNanos(start + i * periodNs - System.nanoTime());
+      assertTrue(ring.offer(getBurst((long) i * BURST), 0, BURST_SIZE_IN_BYTES));
+    }
+    stopWriter(ring, writer, thread);
+
+    assertEquals(0, ring.getOverflowCount());
+    assertEquals(0, checkCapture(channel.getData(), (long) bursts * BURST));
+    assertEquals((long) bursts * BURST_SIZE_IN_BYTES, writer.getBytesWritten());
+    assertNull(writer.getError());
+  }
+
+  @Test
+  public void overflowIsWrittenAsSilence() throws InterruptedException {
+    CaptureRing ring = new CaptureRing(4, 4096);
+    MemoryChannel channel = new MemoryChannel(true);
+    CaptureWriter writer = new CaptureWriter(ring, channel);
+    Thread thread = startWriter(writer);
+    // the storage stalls while 40 bursts come in: the ring keeps 16 KB
+    long frame = 0;
+    for (int i = 0; i < 40; i++, frame += BURST) {
+      ring.offer(getBurst(frame), 0, BURST_SIZE_IN_BYTES);
+    }
+    assertTrue(ring.getOverflowCount() > 0);
+    long dropped = ring.getDroppedBytes();
+    assertEquals(40 * BURST_SIZE_IN_BYTES - 4 * 4096, dropped);
+    channel.mStall.countDown();
+    // once the writer catches up, the silence is written before the new data
+    int bursts = 0;
+    while (bursts < 10) {
+      while (!ring.isEmpty()) {
+        Thread.sleep(1);
+      }
+      if (ring.offer(getBurst(frame), 0, BURST_SIZE_IN_BYTES)) {
+        bursts++;
+      }
+      frame += BURST;
+    }
+    stopWriter(ring, writer, thread);
+
+    byte[] capture = channel.getData();
+    int silent = checkCapture(capture, frame);
+    assertEquals(ring.getDroppedBytes() / 2, silent);
+    // the start, and the last bursts, are in place
+    assertEquals(0, checkCapture(Arrays.copyOf(capture, 4 * 4096), 2 * 4096));
+    ByteBuffer data = ByteBuffer.wrap(capture).order(ByteOrder.LITTLE_ENDIAN);
+    for (long i = frame - 10 * BURST; i < frame; i++) {
+      assertEquals(getSample(i), data.getShort((int) (2 * i)));
+    }
+  }
+
+  @Test
+  public void finishWaitsForTheWriter() throws InterruptedException {
+    CaptureRing ring = new CaptureRing(4, 4096);
+    MemoryChannel channel = new MemoryChannel(true);
+    CaptureWriter writer = new CaptureWriter(ring, channel);
+    Thread thread = startWriter(writer);
+    long frame = 0;
+    for (int i = 0; i < 20; i++, frame += BURST) {
+      ring.offer(getBurst(frame), 0, BURST_SIZE_IN_BYTES);
+    }
+    // the ring is full, with silence pending
+    assertFalse(ring.flush());
+    channel.mStall.countDown();
+    stopWriter(ring, writer, thread);
+    checkCapture(channel.getData(), frame);
+  }
+
+  @Test
+  public void producerFasterThanTheWriterKeepsTheTiming() throws InterruptedException {
+    CaptureRing ring = new CaptureRing(4, 1024);
+    MemoryChannel channel = new MemoryChannel(false);
+    CaptureWriter writer = new CaptureWriter(ring, channel);
+    Thread thread = startWriter(writer);
+    // as fast as possible (several times 48 kHz), with odd sizes
+    long frame = 0;
+    for (int i = 0; i < 5000; i++) {
+      int frames = 1 + (i * 37) % BURST;
+      ring.offer(getBurst(frame), 0, 2 * frames);
+      frame += frames;
+    }
+    stopWriter(ring, writer, thread);
+    checkCapture(channel.getData(), frame);
+    assertEquals(2 * frame, ring.getOfferedBytes());
+  }
+}
@@ -0,0 +1,139 @@
+package com.facebook.audiolat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// EventJournal files are written, and parsed back as scripts/parse_journal.py
+// does.
+public class EventJournalTest {
+  private File mFile;
+
+  @Before
+  public void setUp() throws IOException {
+    mFile = File.createTempFile("audiolat", ".raw.journal");
+  }
+
+  @After
+  public void tearDown() {
+    mFile.delete();
+  }
+
+  // the header fields, then the records
+  private static class Parsed {
+    int mFieldCount;
+    int mCount;
+    int mDropped;
+    long[][] mRecords;
+  }
+
+  private Parsed parse() throws IOException {
+    ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(mFile.toPath()))
+                          .order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals('A', data.get(0));
+    assertEquals('L', data.get(1));
+    assertEquals('J', data.get(2));
+    assertEquals('1', data.get(3));
+    Parsed parsed = new Parsed();
+    parsed.mFieldCount = data.getInt(4);
+    parsed.mCount = data.getInt(8);
+    parsed.mDropped = data.getInt(12);
+    assertEquals(16 + 8 * parsed.mCount * parsed.mFieldCount, data.capacity());
+    parsed.mRecords = new long[parsed.mCount][parsed.mFieldCount];
+    data.position(16);
+    for (int i = 0; i < parsed.mCount; i++) {
+      for (int field = 0; field < parsed.mFieldCount; field++) {
+        parsed.mRecords[i][field] = data.getLong();
+      }
+    }
+    return parsed;
+  }
+
+  @Test
+  public void eventsAreWrittenAndParsedBack() throws IOException {
+    EventJournal journal = new EventJournal(16);
+    long start = 123456789012345L;
+    for (int i = 0; i < 10; i++) {
+      int type = (i % 2 == 0) ? EventJournal.TYPE_TIMER : EventJournal.TYPE_MIDI;
+      int source = (type == EventJournal.TYPE_TIMER) ? -1 : i;
+      // no timestamp for the first event
+      long timestampFrame = (i == 0) ? -1 : 480L * i;
+      long timestampNanotime = (i == 0) ? -1 : start + 10000000L * i;
+      assertTrue(journal.append(type, start + 1000000L * i, start + 1000000L * i + 2000,
+          960L * i, timestampFrame, timestampNanotime, source));
+      if (type == EventJournal.TYPE_TIMER) {
+        journal.set(i, EventJournal.FIELD_SPLICE_FRAME, 4800L * i);
+      }
+    }
+    journal.flush(mFile.getPath());
+
+    Parsed parsed = parse();
+    assertEquals(EventJournal.FIELD_COUNT, parsed.mFieldCount);
+    assertEquals(10, parsed.mCount);
+    assertEquals(0, parsed.mDropped);
+    for (int i = 0; i < 10; i++) {
+      long[] record = parsed.mRecords[i];
+      boolean timer = (i % 2 == 0);
+      assertEquals(timer ? EventJournal.TYPE_TIMER : EventJournal.TYPE_MIDI,
+          record[EventJournal.FIELD_TYPE]);
+      assertEquals(start + 1000000L * i, record[EventJournal.FIELD_TRIGGER_NANOTIME]);
+      assertEquals(start + 1000000L * i + 2000, record[EventJournal.FIELD_WRITE_NANOTIME]);
+      assertEquals(960L * i, record[EventJournal.FIELD_FRAMES_WRITTEN]);
+      assertEquals(
+          (i == 0) ? -1 : 480L * i, record[EventJournal.FIELD_TIMESTAMP_FRAME_POSITION]);
+      assertEquals((i == 0) ? -1 : start + 10000000L * i,
+          record[EventJournal.FIELD_TIMESTAMP_NANOTIME]);
+      assertEquals(timer ? -1 : i, record[EventJournal.FIELD_SOURCE]);
+      assertEquals(timer ? 4800L * i : -1, record[EventJournal.FIELD_SPLICE_FRAME]);
+      for (int field = 0; field < EventJournal.FIELD_COUNT; field++) {
+        assertEquals(journal.get(i, field), record[field]);
+      }
+    }
+  }
+
+  @Test
+  public void fullJournalCountsTheDroppedEvents() throws IOException {
+    EventJournal journal = new EventJournal(4);
+    for (int i = 0; i < 7; i++) {
+      boolean appended = journal.append(EventJournal.TYPE_TIMER, i, i, i, i, i, -1);
+      assertEquals(i < 4, appended);
+    }
+    assertEquals(4, journal.size());
+    assertEquals(3, journal.getDropped());
+    journal.flush(mFile.getPath());
+
+    Parsed parsed = parse();
+    assertEquals(4, parsed.mCount);
+    assertEquals(3, parsed.mDropped);
+    // the first events are kept
+    for (int i = 0; i < 4; i++) {
+      assertEquals(i, parsed.mRecords[i][EventJournal.FIELD_TRIGGER_NANOTIME]);
+    }
+  }
+
+  @Test
+  public void clearedJournalIsEmpty() throws IOException {
+    EventJournal journal = new EventJournal(2);
+    journal.append(EventJournal.TYPE_MIDI, 1, 2, 3, 4, 5, 0);
+    journal.append(EventJournal.TYPE_MIDI, 1, 2, 3, 4, 5, 0);
+    assertFalse(journal.append(EventJournal.TYPE_MIDI, 1, 2, 3, 4, 5, 0));
+    journal.clear();
+    assertEquals(0, journal.size());
+    assertEquals(0, journal.getDropped());
+    journal.flush(mFile.getPath());
+
+    Parsed parsed = parse();
+    assertEquals(EventJournal.FIELD_COUNT, parsed.mFieldCount);
+    assertEquals(0, parsed.mCount);
+    assertEquals(0, parsed.mDropped);
+  }
+}
@@ -0,0 +1,119 @@
+package com.facebook.audiolat;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+// LatencyDetector fed as by the capture writer: in ring slots, which do not
+// hold a whole number of frames.
+public class LatencyDetectorTest {
+  private static final int SAMPLE_RATE = 48000;
+  private static final int DELAY_FRAMES = 4800;
+  private static final int PULSES = 4;
+  private static final int INTERVAL_FRAMES = SAMPLE_RATE / 2;
+
+  private static ByteBuffer getBegin() throws IOException {
+    // unit tests run from the module directory
+    byte[] begin = Files.readAllBytes(Paths.get("src/main/res/raw/begin_signal.raw"));
+    return ByteBuffer.allocateDirect(begin.length).put(begin);
+  }
+
+  private static ByteBuffer getEnd() {
+    return new SignalBank().get(SignalBank.TYPE_CHIRP, SAMPLE_RATE, 100, -6f);
+  }
+
+  // s16 capture with PULSES begin/end signal pairs, DELAY_FRAMES apart, the
+  // first begin signal at `firstFrame`, converted to `format`
+  private static ByteBuffer getCapture(int format, int firstFrame) throws IOException {
+    ByteBuffer begin = getBegin();
+    ByteBuffer end = getEnd();
+    // plus 1 s, to flush the last pulse out of the correlators
+    int frames = PULSES * INTERVAL_FRAMES + SAMPLE_RATE;
+    ByteBuffer capture = ByteBuffer.allocate(2 * frames).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < PULSES; i++) {
+      int frame = i * INTERVAL_FRAMES + firstFrame;
+      for (int j = 0; j < begin.capacity(); j++) {
+        capture.put(2 * frame + j, begin.get(j));
+      }
+      frame += DELAY_FRAMES;
+      for (int j = 0; j < end.capacity(); j++) {
+        capture.put(2 * frame + j, end.get(j));
+      }
+    }
+    if (format == SampleFormat.PCM_16) {
+      return capture;
+    }
+    return SampleFormat.fromPcm16(capture, capture.capacity(), format);
+  }
+
+  private static ByteBuffer getCapture(int format) throws IOException {
+    return getCapture(format, 1000);
+  }
+
+  // latencies found feeding `capture` in chunks of `chunkSize` bytes
+  private static List<Double> detect(ByteBuffer capture, int format, int chunkSize)
+      throws IOException {
+    final List<Double> latencies = new ArrayList<>();
+    ByteBuffer begin = getBegin();
+    ByteBuffer end = getEnd();
+    LatencyDetector detector = new LatencyDetector(begin, begin.capacity(), end, end.capacity(),
+        SAMPLE_RATE, LatencyDetector.DEFAULT_THRESHOLD, 1000.0,
+        new LatencyDetector.Listener() {
+          @Override
+          public void onLatency(
+              long beginFrame, long endFrame, double delayMs, float score, double snrDb) {
+            latencies.add(delayMs);
+          }
+        });
+    detector.setSampleFormat(format);
+    for (int offset = 0; offset < capture.capacity(); offset += chunkSize) {
+      detector.process(capture, offset, Math.min(chunkSize, capture.capacity() - offset));
+    }
+    return latencies;
+  }
+
+  @Test
+  public void wholeFrames() throws IOException {
+    List<Double> latencies = detect(getCapture(SampleFormat.PCM_16), SampleFormat.PCM_16, 960);
+    assertEquals(PULSES, latencies.size());
+    for (double latency : latencies) {
+      assertEquals(1000.0 * DELAY_FRAMES / SAMPLE_RATE, latency, 0.01);
+    }
+  }
+
+  @Test
+  public void pulseAtTheStartOfTheStream() throws IOException {
+    // the correlation peaks have no history before frame 0
+    for (int firstFrame : new int[] {0, 3}) {
+      List<Double> latencies =
+          detect(getCapture(SampleFormat.PCM_16, firstFrame), SampleFormat.PCM_16, 960);
+      assertEquals(PULSES, latencies.size());
+      for (double latency : latencies) {
+        assertEquals(1000.0 * DELAY_FRAMES / SAMPLE_RATE, latency, 0.01);
+      }
+    }
+  }
+
+  @Test
+  public void framesSplitAcrossChunks() throws IOException {
+    int[] formats = {SampleFormat.PCM_16, SampleFormat.PCM_FLOAT, SampleFormat.PCM_24_PACKED};
+    for (int format : formats) {
+      ByteBuffer capture = getCapture(format);
+      int frameSize = SampleFormat.getBytesPerSample(format);
+      List<Double> expected = detect(capture, format, 1200 * frameSize);
+      assertEquals(PULSES, expected.size());
+      // 16384 bytes (the capture ring slots) is not a multiple of 3, and odd
+      // sizes split every kind of frame
+      assertEquals(expected, detect(capture, format, 16384));
+      assertEquals(expected, detect(capture, format, 1001));
+      assertEquals(expected, detect(capture, format, 1));
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package com.facebook.audiolat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+// The java loop and the on-line detector (in the capture writer), on the
+// simulated device: the latencies it measures are known, so these catch
+// regressions of the harness itself (scheduling, splicing, detection).
+public class LatencyLoopTest {
+  private static final int SAMPLE_RATE = 48000;
+  private static final int BURST = 96;
+  private static final int OUTPUT_DELAY = 96;
+  private static final int INPUT_DELAY = 144;
+  private static final int ACOUSTIC_DELAY = 144;
+  private static final int TIMEOUT = 5;
+  private static final int INTERVAL_MS = 500;
+  private static final int SIGNAL_COUNT = TIMEOUT * 1000 / INTERVAL_MS;
+  private static final double TOLERANCE_MS = 0.01;
+
+  private static TestSettings getSettings(int scheduler) throws IOException {
+    // unit tests run from the module directory
+    byte[] begin = Files.readAllBytes(Paths.get("src/main/res/raw/begin_signal.raw"));
+    ByteBuffer end = new SignalBank().get(SignalBank.TYPE_CHIRP, SAMPLE_RATE, 100, -6f);
+    TestSettings settings = new TestSettings();
+    settings.sampleRate = SAMPLE_RATE;
+    settings.timeout = TIMEOUT;
+    settings.timeBetweenSignalsMs = INTERVAL_MS;
+    settings.javaaudioScheduler = scheduler;
+    settings.burstSizeInFrames = BURST;
+    settings.beginSignal = ByteBuffer.allocateDirect(begin.length).put(begin);
+    settings.beginSignalSizeInBytes = begin.length;
+    settings.endSignal = end;
+    settings.endSignalSizeInBytes = end.capacity();
+    return settings;
+  }
+
+  private static SimulatedBackend getBackend(TestSettings settings) {
+    SimulatedBackend backend = new SimulatedBackend(SAMPLE_RATE, BURST);
+    backend.setOutputDelayInFrames(OUTPUT_DELAY);
+    backend.setInputDelayInFrames(INPUT_DELAY);
+    backend.setNoiseLevel(0.001f);
+    backend.setSeed(1);
+    if (settings.referenceChannel > 0) {
+      backend.setAcousticDelayInFrames(ACOUSTIC_DELAY);
+      backend.setReferenceChannel(settings.referenceChannel);
+    }
+    return backend;
+  }
+
+  // the capture is only analyzed (by the detector, in the writer thread)
+  private static class NullChannel implements WritableByteChannel {
+    @Override
+    public int write(ByteBuffer src) {
+      int size = src.remaining();
+      src.position(src.limit());
+      return size;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  private static LatencyDetector getDetector(TestSettings settings, final List<Double> latencies) {
+    LatencyDetector.Listener listener = new LatencyDetector.Listener() {
+      @Override
+      public void onLatency(
+          long beginFrame, long endFrame, double delayMs, float score, double snrDb) {
+        latencies.add(delayMs);
+      }
+    };
+    LatencyDetector detector;
+    if (settings.referenceChannel > 0) {
+      detector = new LatencyDetector(settings.endSignal, settings.endSignalSizeInBytes,
+          settings.referenceChannel - 1, SAMPLE_RATE, LatencyDetector.DEFAULT_THRESHOLD, 1000.0,
+          SAMPLE_RATE / 10, listener);
+    } else {
+      detector = new LatencyDetector(settings.beginSignal, settings.beginSignalSizeInBytes,
+          settings.endSignal, settings.endSignalSizeInBytes, SAMPLE_RATE,
+          LatencyDetector.DEFAULT_THRESHOLD, 1000.0, SAMPLE_RATE / 10, listener);
+    }
+    detector.setSampleFormat(settings.sampleFormat);
+    return detector;
+  }
+
+  // runs `settings` as JavaAudio does: the loop in this thread, and the
+  // capture writer (with the detector) in its own
+  private static LatencyLoop run(TestSettings settings, List<Double> latencies)
+      throws InterruptedException {
+    CaptureRing ring = new CaptureRing(64, 16384);
+    CaptureWriter writer = new CaptureWriter(ring, new NullChannel());
+    writer.setDetector(getDetector(settings, latencies));
+    Thread thread = new Thread(writer);
+    thread.start();
+    LatencyLoop loop = new LatencyLoop(settings, getBackend(settings), ring);
+    loop.run();
+    ring.finish();
+    writer.stop();
+    thread.join();
+    assertEquals(0, ring.getOverflowCount());
+    return loop;
+  }
+
+  private static List<Double> run(TestSettings settings) throws InterruptedException {
+    List<Double> latencies = new ArrayList<>();
+    run(settings, latencies);
+    return latencies;
+  }
+
+  private static void assertLatencies(double expectedMs, List<Double> latencies) {
+    for (double latency : latencies) {
+      assertEquals(expectedMs, latency, TOLERANCE_MS);
+    }
+  }
+
+  @Test
+  public void referenceChannelMeasuresTheAcousticDelay() throws Exception {
+    TestSettings settings = getSettings(LatencyLoop.SCHEDULER_BLOCKING);
+    settings.referenceChannel = 1;
+    List<Double> latencies = run(settings);
+    assertEquals(SIGNAL_COUNT, latencies.size());
+    assertLatencies(1000.0 * ACOUSTIC_DELAY / SAMPLE_RATE, latencies);
+  }
+
+  @Test
+  public void timestampSpliceMeasuresTheOutputPath() throws Exception {
+    for (int scheduler = LatencyLoop.SCHEDULER_SLEEP; scheduler <= LatencyLoop.SCHEDULER_CALLBACK;
+         scheduler++) {
+      TestSettings settings = getSettings(scheduler);
+      settings.timestampSplice = true;
+      List<Double> latencies = run(settings);
+      assertEquals(SIGNAL_COUNT, latencies.size());
+      // the first signal is written before there is an input timestamp. The
+      // others wait for one burst queued in the output buffer, plus the
+      // output delay (there is no acoustic delay).
+      assertLatencies(1000.0 * (BURST + OUTPUT_DELAY) / SAMPLE_RATE,
+          latencies.subList(1, latencies.size()));
+    }
+  }
+
+  @Test
+  public void schedulersMeasureTheSameLatencies() throws Exception {
+    List<Double> expected = run(getSettings(LatencyLoop.SCHEDULER_BLOCKING));
+    assertEquals(SIGNAL_COUNT, expected.size());
+    assertEquals(expected, run(getSettings(LatencyLoop.SCHEDULER_SLEEP)));
+    assertEquals(expected, run(getSettings(LatencyLoop.SCHEDULER_CALLBACK)));
+    // and the same on every run
+    assertEquals(expected, run(getSettings(LatencyLoop.SCHEDULER_BLOCKING)));
+  }
+
+  @Test
+  public void triggersAreWrittenWithinABurst() throws Exception {
+    TestSettings settings = getSettings(LatencyLoop.SCHEDULER_BLOCKING);
+    LatencyLoop loop = run(settings, new ArrayList<Double>());
+    assertEquals(SIGNAL_COUNT, loop.getTriggerCount());
+    assertTrue(loop.getTriggerDelayMaxNs() <= 1000000000L * BURST / SAMPLE_RATE);
+    assertEquals(0, loop.getGlitchMonitor().getTotalCount());
+    assertEquals(0, loop.getWriteErrors() + loop.getReadErrors());
+  }
+
+  @Test
+  public void sleepSchedulerDoesNotWaitOnTheSimulatedClock() throws Exception {
+    TestSettings settings = getSettings(LatencyLoop.SCHEDULER_SLEEP);
+    long start = System.nanoTime();
+    run(settings);
+    // sleeping 40 ms per burst took 4 times the simulated time
+    assertTrue((System.nanoTime() - start) < TIMEOUT * 1000000000L);
+  }
+}
@@ -0,0 +1,62 @@
+package com.facebook.audiolat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LoopWakerTest {
+  private static final long TIMEOUT_NS = 10000000000L;
+
+  @Test
+  public void wakesFromSeveralThreadsAreAllCounted() throws InterruptedException {
+    final LoopWaker waker = new LoopWaker();
+    final int wakes = 100000;
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int j = 0; j < wakes; j++) {
+            waker.wake();
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(threads.length * wakes, waker.getWakeCount());
+  }
+
+  @Test
+  public void wakeBeforeAwaitIsNotLost() {
+    LoopWaker waker = new LoopWaker();
+    waker.register();
+    waker.wake();
+    long start = System.nanoTime();
+    waker.await(TIMEOUT_NS);
+    waker.unregister();
+    assertTrue(System.nanoTime() - start < TIMEOUT_NS / 2);
+  }
+
+  @Test
+  public void wakeFromAnotherThread() throws InterruptedException {
+    final LoopWaker waker = new LoopWaker();
+    waker.register();
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        waker.wake();
+      }
+    });
+    long start = System.nanoTime();
+    thread.start();
+    waker.await(TIMEOUT_NS);
+    waker.unregister();
+    thread.join();
+    assertTrue(System.nanoTime() - start < TIMEOUT_NS / 2);
+    assertEquals(1, waker.getWakeCount());
+  }
+}
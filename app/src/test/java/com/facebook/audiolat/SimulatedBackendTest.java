@@ -0,0 +1,116 @@
+package com.facebook.audiolat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+
+public class SimulatedBackendTest {
+  private static final int SAMPLE_RATE = 48000;
+  private static final int BURST = 96;
+  private static final int OUTPUT_DELAY = 96;
+  private static final int INPUT_DELAY = 144;
+  private static final int ACOUSTIC_DELAY = 48;
+
+  private static SimulatedBackend getBackend() {
+    SimulatedBackend backend = new SimulatedBackend(SAMPLE_RATE, BURST);
+    backend.setOutputDelayInFrames(OUTPUT_DELAY);
+    backend.setInputDelayInFrames(INPUT_DELAY);
+    backend.setAcousticDelayInFrames(ACOUSTIC_DELAY);
+    return backend;
+  }
+
+  private static ByteBuffer getImpulse(int frames) {
+    ByteBuffer data = ByteBuffer.allocateDirect(2 * frames).order(ByteOrder.LITTLE_ENDIAN);
+    data.putShort(0, Short.MAX_VALUE);
+    return data;
+  }
+
+  // capture frame of the first non-zero sample, reading `frames` frames
+  private static long findImpulse(SimulatedBackend backend, int frames) {
+    ByteBuffer data = ByteBuffer.allocateDirect(2 * BURST).order(ByteOrder.LITTLE_ENDIAN);
+    for (int frame = 0; frame < frames; ) {
+      data.clear();
+      int read = backend.read(data, data.capacity(), true);
+      assertEquals(data.capacity(), read);
+      for (int i = 0; i < read / 2; i++) {
+        if (data.getShort(2 * i) != 0) {
+          return frame + i;
+        }
+      }
+      frame += read / 2;
+    }
+    return -1;
+  }
+
+  @Test
+  public void impulseComesBackAfterTheDelays() {
+    SimulatedBackend backend = getBackend();
+    backend.start();
+    ByteBuffer impulse = getImpulse(BURST);
+    assertEquals(2 * BURST, backend.write(impulse, impulse.capacity()));
+    assertEquals(OUTPUT_DELAY + ACOUSTIC_DELAY + INPUT_DELAY, findImpulse(backend, 10 * BURST));
+  }
+
+  @Test
+  public void clockOnlyAdvancesWithTheReads() {
+    SimulatedBackend backend = getBackend();
+    backend.start();
+    long start = backend.getNanoTime();
+    ByteBuffer silence = ByteBuffer.allocateDirect(backend.getOutputBufferSizeInBytes());
+    backend.write(silence, silence.capacity());
+    assertEquals(start, backend.getNanoTime());
+    ByteBuffer data = ByteBuffer.allocateDirect(2 * BURST);
+    backend.read(data, data.capacity(), true);
+    assertEquals(start + 1000000000L * BURST / SAMPLE_RATE, backend.getNanoTime());
+  }
+
+  @Test
+  public void outputBufferIsLimited() {
+    SimulatedBackend backend = getBackend();
+    backend.start();
+    ByteBuffer silence = ByteBuffer.allocateDirect(4 * backend.getOutputBufferSizeInBytes());
+    assertEquals(backend.getOutputBufferSizeInBytes(), backend.write(silence, silence.capacity()));
+    // full: nothing more is taken (non-blocking)
+    assertEquals(0, backend.write(silence, silence.remaining()));
+  }
+
+  @Test
+  public void underrunsAreCounted() {
+    SimulatedBackend backend = getBackend();
+    backend.start();
+    // 2 bursts of output, then 3 bursts with nothing to play
+    ByteBuffer silence = ByteBuffer.allocateDirect(2 * 2 * BURST);
+    backend.write(silence, silence.capacity());
+    ByteBuffer data = ByteBuffer.allocateDirect(2 * BURST);
+    for (int i = 0; i < 5; i++) {
+      data.clear();
+      backend.read(data, data.capacity(), true);
+    }
+    assertEquals(3, backend.getUnderrunCount());
+  }
+
+  @Test
+  public void timestampsFollowTheDevicePositions() {
+    SimulatedBackend backend = getBackend();
+    backend.start();
+    LatencyBackend.Timestamp timestamp = new LatencyBackend.Timestamp();
+    ByteBuffer silence = ByteBuffer.allocateDirect(backend.getOutputBufferSizeInBytes());
+    ByteBuffer data = ByteBuffer.allocateDirect(2 * BURST);
+    for (int i = 0; i < 10; i++) {
+      silence.clear();
+      backend.write(silence, silence.capacity());
+      data.clear();
+      backend.read(data, data.capacity(), true);
+    }
+    long now = backend.getNanoTime();
+    assertTrue(backend.getInputTimestamp(timestamp));
+    assertEquals(10 * BURST, timestamp.framePosition);
+    assertEquals(now - 1000000000L * INPUT_DELAY / SAMPLE_RATE, timestamp.nanoTime);
+    assertTrue(backend.getOutputTimestamp(timestamp));
+    assertEquals(10 * BURST - OUTPUT_DELAY, timestamp.framePosition);
+    assertEquals(now, timestamp.nanoTime);
+  }
+}
@@ -0,0 +1,95 @@
+package com.facebook.audiolat;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+// TimestampLatencyEstimator on synthetic timestamp streams: a device that
+// consumes (or produces) frames at `rate`, with a constant latency, and
+// timestamps that are `TIMESTAMP_AGE_NS` old when they are used.
+public class TimestampLatencyEstimatorTest {
+  private static final int SAMPLE_RATE = 48000;
+  private static final int LATENCY_IN_FRAMES = 480;
+  private static final long TIMESTAMP_AGE_NS = 500000000L;
+  private static final int BURST = SAMPLE_RATE / 100;
+  private static final long PERIOD_NS = 10000000L;
+  private static final long START_NS = 1000000000L;
+  private static final int SAMPLES = 300;
+  private static final double TOLERANCE_MS = 0.01;
+
+  // nanotime of frame `frame` of a device running at `rate`
+  private static long getNanotime(long frame, double rate) {
+    return START_NS + Math.round(frame * 1e9 / rate);
+  }
+
+  // feeds output and input samples of a device running at `rate`. Positions
+  // are whole frames, so the expected latencies are exact.
+  private static TimestampLatencyEstimator run(double rate) {
+    TimestampLatencyEstimator estimator = new TimestampLatencyEstimator(SAMPLE_RATE);
+    for (int i = 0; i < SAMPLES; i++) {
+      long position = 1 + (long) i * BURST;
+      long nanotime = getNanotime(position, rate);
+      // the timestamps get older until they are TIMESTAMP_AGE_NS old
+      long age = Math.min(TIMESTAMP_AGE_NS, i * PERIOD_NS / 2);
+      long timestampFrame = position - (long) Math.floor(age * rate / 1e9);
+      long timestampNanotime = getNanotime(timestampFrame, rate);
+      estimator.addOutputSample(
+          position + LATENCY_IN_FRAMES, nanotime, timestampFrame, timestampNanotime);
+      estimator.addInputSample(
+          position - LATENCY_IN_FRAMES, nanotime, timestampFrame, timestampNanotime);
+    }
+    return estimator;
+  }
+
+  private static void assertLatency(
+      double expectedMs, TimestampLatencyEstimator.LatencyStats stats) {
+    assertEquals(SAMPLES, stats.getCount());
+    assertEquals(expectedMs, stats.getMin(), TOLERANCE_MS);
+    assertEquals(expectedMs, stats.getMax(), TOLERANCE_MS);
+  }
+
+  @Test
+  public void nominalRate() {
+    TimestampLatencyEstimator estimator = run(SAMPLE_RATE);
+    double latencyMs = 1000.0 * LATENCY_IN_FRAMES / SAMPLE_RATE;
+    assertLatency(latencyMs, estimator.getOutputLatency());
+    assertLatency(latencyMs, estimator.getInputLatency());
+    assertEquals(2 * latencyMs, estimator.getRoundTripLatencyMs(), 2 * TOLERANCE_MS);
+    assertEquals(0, estimator.getOutputDriftPpm(), 1);
+    assertEquals(0, estimator.getInputDriftPpm(), 1);
+  }
+
+  @Test
+  public void driftingClockIsExtrapolatedAtTheFittedRate() {
+    // 500 ppm fast: extrapolating 500 ms at the nominal rate would be 12
+    // frames (0.25 ms) short
+    double rate = SAMPLE_RATE * (1 + 500e-6);
+    TimestampLatencyEstimator estimator = run(rate);
+    assertEquals(500, estimator.getOutputDriftPpm(), 1);
+    assertEquals(500, estimator.getInputDriftPpm(), 1);
+    assertEquals(rate, estimator.getOutputRate(), 0.1);
+    assertEquals(rate, estimator.getInputRate(), 0.1);
+    double latencyMs = 1000.0 * LATENCY_IN_FRAMES / rate;
+    assertLatency(latencyMs, estimator.getOutputLatency());
+    assertLatency(latencyMs, estimator.getInputLatency());
+  }
+
+  @Test
+  public void implausibleFitFallsBackToTheNominalRate() {
+    // 2% off: not a clock drift, the nominal rate is used
+    TimestampLatencyEstimator estimator = run(SAMPLE_RATE * 1.02);
+    assertEquals(20000, estimator.getOutputDriftPpm(), 1);
+    assertEquals(SAMPLE_RATE, estimator.getOutputRate(), 0);
+    assertEquals(SAMPLE_RATE, estimator.getInputRate(), 0);
+  }
+
+  @Test
+  public void samplesBeforeTheStreamRunsAreIgnored() {
+    TimestampLatencyEstimator estimator = new TimestampLatencyEstimator(SAMPLE_RATE);
+    estimator.addOutputSample(960, 1000000000L, 0, 0);
+    estimator.addInputSample(0, 1000000000L, 0, 0);
+    assertEquals(0, estimator.getOutputLatency().getCount());
+    assertEquals(0, estimator.getInputLatency().getCount());
+    assertEquals(SAMPLE_RATE, estimator.getOutputRate(), 0);
+  }
+}
@@ -0,0 +1,217 @@
+package com.facebook.audiolat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+// UsbMidiParser on recorded packet streams, and the note-on debounce of
+// UsbMidi.
+public class UsbMidiParserTest {
+  private static final int MAX_PACKET_SIZE = 64;
+  private static final long NANOTIME = 123456789L;
+
+  // everything the parser reports, as strings
+  private static class Recorder implements UsbMidiParser.Listener {
+    final List<String> mEvents = new ArrayList<>();
+    final List<byte[]> mSysEx = new ArrayList<>();
+    final List<Long> mTimes = new ArrayList<>();
+
+    @Override
+    public void onMidiEvent(int cable, int cin, int status, int data1, int data2, long nanotime,
+        long latencyNs) {
+      mEvents.add(String.format("%d %x %02x %02x %02x", cable, cin, status, data1, data2));
+      mTimes.add(nanotime);
+    }
+
+    @Override
+    public void onSysEx(int cable, byte[] data, int length, long nanotime, long latencyNs) {
+      mEvents.add(String.format("%d sysex %d", cable, length));
+      mSysEx.add(Arrays.copyOf(data, length));
+      mTimes.add(nanotime);
+    }
+  }
+
+  private static byte[] bytes(int... values) {
+    byte[] data = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      data[i] = (byte) values[i];
+    }
+    return data;
+  }
+
+  private static Recorder parse(byte[] stream) {
+    Recorder recorder = new Recorder();
+    UsbMidiParser parser = new UsbMidiParser(MAX_PACKET_SIZE, recorder);
+    parser.parse(stream, 0, stream.length, NANOTIME);
+    return recorder;
+  }
+
+  @Test
+  public void channelMessagesAreDecoded() {
+    Recorder recorder = parse(bytes(
+        0x09, 0x90, 0x3c, 0x64, // note on
+        0x08, 0x80, 0x3c, 0x00, // note off
+        0x1a, 0xa1, 0x40, 0x20, // poly key pressure, cable 1
+        0x0b, 0xb0, 0x07, 0x7f, // control change
+        0x0c, 0xc2, 0x05, 0x00, // program change (1 data byte)
+        0x0d, 0xd3, 0x30, 0x00, // channel pressure
+        0x0e, 0xe0, 0x00, 0x40)); // pitch bend
+    assertEquals(Arrays.asList(
+        "0 9 90 3c 64",
+        "0 8 80 3c 00",
+        "1 a a1 40 20",
+        "0 b b0 07 7f",
+        "0 c c2 05 00",
+        "0 d d3 30 00",
+        "0 e e0 00 40"), recorder.mEvents);
+  }
+
+  @Test
+  public void systemMessagesAreDecoded() {
+    Recorder recorder = parse(bytes(
+        0x02, 0xf3, 0x01, 0x55, // song select (the 3rd byte is not part of it)
+        0x03, 0xf2, 0x10, 0x20, // song position pointer
+        0x05, 0xf6, 0x00, 0x00, // tune request (single-byte system common)
+        0x0f, 0xf8, 0x00, 0x00)); // clock (single byte)
+    assertEquals(Arrays.asList(
+        "0 2 f3 01 00",
+        "0 3 f2 10 20",
+        "0 5 f6 00 00",
+        "0 f f8 00 00"), recorder.mEvents);
+  }
+
+  @Test
+  public void reservedAndPaddingPacketsAreSkipped() {
+    Recorder recorder = new Recorder();
+    UsbMidiParser parser = new UsbMidiParser(MAX_PACKET_SIZE, recorder);
+    byte[] stream = bytes(
+        0x00, 0x00, 0x00, 0x00, // padding
+        0x01, 0x12, 0x34, 0x56, // cable event (reserved)
+        0x09, 0x90, 0x3c, 0x64,
+        0x00, 0x00, 0x00, 0x00);
+    parser.parse(stream, 0, stream.length, NANOTIME);
+    assertEquals(Arrays.asList("0 9 90 3c 64"), recorder.mEvents);
+    assertEquals(1, parser.getEventCount());
+  }
+
+  @Test
+  public void sysExIsReassembledAcrossPackets() {
+    Recorder recorder = parse(bytes(
+        0x04, 0xf0, 0x7e, 0x7f, // start
+        0x04, 0x06, 0x01, 0x02, // continue
+        0x09, 0x90, 0x3c, 0x64, // a note-on in between
+        0x04, 0x03, 0x04, 0x05, // continue
+        0x05, 0xf7, 0x00, 0x00, // end with 1 byte
+        0x04, 0xf0, 0x01, 0x02,
+        0x06, 0x03, 0xf7, 0x00, // end with 2 bytes
+        0x04, 0xf0, 0x01, 0x02,
+        0x07, 0x03, 0x04, 0xf7, // end with 3 bytes
+        0x07, 0xf0, 0x7e, 0xf7)); // complete in one packet
+    assertEquals(Arrays.asList(
+        "0 9 90 3c 64", "0 sysex 10", "0 sysex 5", "0 sysex 6", "0 sysex 3"),
+        recorder.mEvents);
+    assertArrayEquals(bytes(0xf0, 0x7e, 0x7f, 0x06, 0x01, 0x02, 0x03, 0x04, 0x05, 0xf7),
+        recorder.mSysEx.get(0));
+    assertArrayEquals(bytes(0xf0, 0x01, 0x02, 0x03, 0xf7), recorder.mSysEx.get(1));
+    assertArrayEquals(bytes(0xf0, 0x01, 0x02, 0x03, 0x04, 0xf7), recorder.mSysEx.get(2));
+    assertArrayEquals(bytes(0xf0, 0x7e, 0xf7), recorder.mSysEx.get(3));
+  }
+
+  @Test
+  public void sysExIsReassembledPerCable() {
+    Recorder recorder = parse(bytes(
+        0x04, 0xf0, 0x01, 0x02,
+        0x14, 0xf0, 0x11, 0x12, // cable 1
+        0x15, 0xf7, 0x00, 0x00,
+        0x06, 0x03, 0xf7, 0x00));
+    assertEquals(Arrays.asList("1 sysex 4", "0 sysex 5"), recorder.mEvents);
+    assertArrayEquals(bytes(0xf0, 0x11, 0x12, 0xf7), recorder.mSysEx.get(0));
+    assertArrayEquals(bytes(0xf0, 0x01, 0x02, 0x03, 0xf7), recorder.mSysEx.get(1));
+  }
+
+  @Test
+  public void longSysExIsTruncated() {
+    Recorder recorder = new Recorder();
+    UsbMidiParser parser = new UsbMidiParser(MAX_PACKET_SIZE, recorder);
+    int packets = UsbMidiParser.SYSEX_MAX_SIZE / 3 + 10;
+    byte[] stream = new byte[4 * (packets + 1)];
+    for (int i = 0; i < packets; i++) {
+      stream[4 * i] = 0x04;
+      stream[4 * i + 1] = (byte) ((i == 0) ? 0xf0 : 0x01);
+    }
+    stream[4 * packets] = 0x05;
+    stream[4 * packets + 1] = (byte) 0xf7;
+    parser.parse(stream, 0, stream.length, NANOTIME);
+    assertEquals(1, recorder.mSysEx.size());
+    assertTrue(recorder.mSysEx.get(0).length <= UsbMidiParser.SYSEX_MAX_SIZE);
+    assertEquals(1, parser.getTruncatedSysExCount());
+  }
+
+  @Test
+  public void partialPacketsAreCompletedByTheNextParse() {
+    Recorder recorder = new Recorder();
+    UsbMidiParser parser = new UsbMidiParser(MAX_PACKET_SIZE, recorder);
+    byte[] stream = bytes(
+        0x09, 0x90, 0x3c, 0x64,
+        0x08, 0x80, 0x3c, 0x00,
+        0x0b, 0xb0, 0x07, 0x7f);
+    // 1, 2, 3, ... bytes at a time
+    int offset = 0;
+    for (int length = 1; offset < stream.length; length++) {
+      length = Math.min(length, stream.length - offset);
+      parser.parse(stream, offset, length, NANOTIME + offset);
+      offset += length;
+    }
+    assertEquals(Arrays.asList("0 9 90 3c 64", "0 8 80 3c 00", "0 b b0 07 7f"),
+        recorder.mEvents);
+    // each event is stamped with the transfer that completed it
+    assertEquals(Arrays.asList(NANOTIME + 3, NANOTIME + 6, NANOTIME + 10), recorder.mTimes);
+  }
+
+  @Test
+  public void partialPacketsAreCompletedByTheNextTransfer() {
+    Recorder recorder = new Recorder();
+    UsbMidiParser parser = new UsbMidiParser(MAX_PACKET_SIZE, recorder);
+    byte[] first = bytes(0x09, 0x90, 0x3c, 0x64, 0x08, 0x80);
+    System.arraycopy(first, 0, parser.getBuffer(), parser.getWriteOffset(), first.length);
+    parser.onTransfer(first.length, NANOTIME);
+    assertEquals(2, parser.getWriteOffset());
+    byte[] second = bytes(0x3c, 0x00);
+    System.arraycopy(second, 0, parser.getBuffer(), parser.getWriteOffset(), second.length);
+    parser.onTransfer(second.length, NANOTIME + 1);
+    assertEquals(0, parser.getWriteOffset());
+    assertEquals(Arrays.asList("0 9 90 3c 64", "0 8 80 3c 00"), recorder.mEvents);
+    assertEquals(Arrays.asList(NANOTIME, NANOTIME + 1), recorder.mTimes);
+  }
+
+  @Test
+  public void debounceIgnoresCloseNoteOns() {
+    UsbMidi.Debouncer debouncer = new UsbMidi.Debouncer(UsbMidi.DEBOUNCE_MS);
+    long second = 1000000000L;
+    long start = 10 * second;
+    assertTrue(debouncer.isTrigger(UsbMidiParser.CIN_NOTE_ON, 0x64, start));
+    // note-offs (including note-ons with zero velocity) are never triggers,
+    // and do not restart the debounce
+    assertFalse(debouncer.isTrigger(UsbMidiParser.CIN_NOTE_OFF, 0x40, start + 2 * second));
+    assertFalse(debouncer.isTrigger(UsbMidiParser.CIN_NOTE_ON, 0x00, start + 2 * second));
+    // too close: ignored, but it restarts the debounce
+    assertFalse(debouncer.isTrigger(UsbMidiParser.CIN_NOTE_ON, 0x64, start + second / 2));
+    assertFalse(debouncer.isTrigger(UsbMidiParser.CIN_NOTE_ON, 0x64, start + 3 * second / 2));
+    assertTrue(debouncer.isTrigger(UsbMidiParser.CIN_NOTE_ON, 0x64, start + 3 * second));
+  }
+
+  @Test
+  public void debounceIsPerEndpoint() {
+    UsbMidi.Debouncer first = new UsbMidi.Debouncer(UsbMidi.DEBOUNCE_MS);
+    UsbMidi.Debouncer second = new UsbMidi.Debouncer(UsbMidi.DEBOUNCE_MS);
+    long start = 10000000000L;
+    assertTrue(first.isTrigger(UsbMidiParser.CIN_NOTE_ON, 0x64, start));
+    assertTrue(second.isTrigger(UsbMidiParser.CIN_NOTE_ON, 0x64, start + 1000));
+  }
+}
@@ -0,0 +1,98 @@
+package com.facebook.audiolat;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WavFileWriterTest {
+  private static final int SAMPLE_RATE = 48000;
+  private static final int BURST_SIZE_IN_BYTES = 2 * SAMPLE_RATE / 100;
+
+  private File mFile;
+
+  @Before
+  public void setUp() throws IOException {
+    mFile = File.createTempFile("audiolat", ".wav");
+  }
+
+  @After
+  public void tearDown() {
+    mFile.delete();
+  }
+
+  private static ByteBuffer getBurst(int index) {
+    ByteBuffer burst = ByteBuffer.allocateDirect(BURST_SIZE_IN_BYTES);
+    for (int i = 0; i < BURST_SIZE_IN_BYTES; i++) {
+      burst.put(i, (byte) (1 + (index + i) % 127));
+    }
+    return burst;
+  }
+
+  // writes `bursts` bursts, checking the file never grows past `preallocated`
+  // bytes of data while there is room in it. Returns the file contents.
+  private ByteBuffer write(long preallocated, int bursts) throws IOException {
+    WavFileWriter wav = new WavFileWriter(mFile.getPath(), SAMPLE_RATE, 1, 16, preallocated);
+    for (int i = 0; i < bursts; i++) {
+      assertEquals(BURST_SIZE_IN_BYTES, wav.write(getBurst(i)));
+      long size = WavFileWriter.HEADER_SIZE + Math.max(preallocated, wav.getDataSize());
+      assertEquals(size, mFile.length());
+    }
+    assertEquals((long) bursts * BURST_SIZE_IN_BYTES, wav.getDataSize());
+    wav.close();
+    return ByteBuffer.wrap(Files.readAllBytes(mFile.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static void checkData(ByteBuffer file, int bursts) {
+    assertEquals(WavFileWriter.HEADER_SIZE + bursts * BURST_SIZE_IN_BYTES, file.capacity());
+    assertEquals(bursts * BURST_SIZE_IN_BYTES, file.getInt(WavFileWriter.HEADER_SIZE - 4));
+    assertEquals(file.capacity() - 8, file.getInt(4));
+    for (int i = 0; i < bursts; i++) {
+      ByteBuffer burst = getBurst(i);
+      for (int j = 0; j < BURST_SIZE_IN_BYTES; j++) {
+        int position = WavFileWriter.HEADER_SIZE + i * BURST_SIZE_IN_BYTES + j;
+        assertEquals(burst.get(j), file.get(position));
+      }
+    }
+  }
+
+  @Test
+  public void unusedPreallocationIsDropped() throws IOException {
+    checkData(write(100 * BURST_SIZE_IN_BYTES, 10), 10);
+  }
+
+  @Test
+  public void runLongerThanThePreallocation() throws IOException {
+    // the last window is cut at the end of the preallocated space (in the
+    // middle of a burst), and the rest is written past it
+    checkData(write(10 * BURST_SIZE_IN_BYTES + 100, 50), 50);
+  }
+
+  @Test
+  public void noPreallocation() throws IOException {
+    checkData(write(0, 10), 10);
+  }
+
+  @Test
+  public void metadataFollowsTheData() throws IOException {
+    WavFileWriter wav = new WavFileWriter(mFile.getPath(), SAMPLE_RATE, 1, 16, SAMPLE_RATE);
+    wav.write(getBurst(0));
+    wav.setMetadata("abc");
+    wav.close();
+    ByteBuffer file =
+        ByteBuffer.wrap(Files.readAllBytes(mFile.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    int list = WavFileWriter.HEADER_SIZE + BURST_SIZE_IN_BYTES;
+    // LIST, size, INFO, ICMT, size, "abc\0"
+    assertEquals(list + 8 + 4 + 8 + 4, file.capacity());
+    assertEquals(file.capacity() - 8, file.getInt(4));
+    assertEquals('L', file.get(list));
+    assertEquals(4, file.getInt(list + 16));
+    assertEquals('c', file.get(list + 22));
+  }
+}
@@ -0,0 +1,57 @@
+package com.facebook.audiolat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+// Synthetic s16le signals for the benchmarks (no resources on a plain JVM).
+public class BenchmarkSignals {
+    // 10 ms, the default java loop burst
+    public static int burstSizeInFrames(int sampleRate) {
+        return sampleRate / 100;
+    }
+
+    // short click, as the begin signal
+    public static ByteBuffer pulse(int numSamples) {
+        ByteBuffer buffer = ByteBuffer.allocate(numSamples * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < numSamples; i++) {
+            buffer.putShort((short) ((i % 2 == 0) ? 30000 : -30000));
+        }
+        return buffer;
+    }
+
+    // linear chirp from 200 Hz to sampleRate / 4, as the end signal
+    public static ByteBuffer chirp(int sampleRate, int durationMs) {
+        int numSamples = sampleRate * durationMs / 1000;
+        double f0 = 200;
+        double f1 = sampleRate / 4.0;
+        double duration = (double) numSamples / sampleRate;
+        ByteBuffer buffer = ByteBuffer.allocate(numSamples * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < numSamples; i++) {
+            double t = (double) i / sampleRate;
+            double phase = 2 * Math.PI * (f0 * t + (f1 - f0) * t * t / (2 * duration));
+            buffer.putShort((short) (16000 * Math.sin(phase)));
+        }
+        return buffer;
+    }
+
+    public static byte[] noise(int numSamples, long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[numSamples * 2];
+        for (int i = 0; i < numSamples; i++) {
+            utils.putShort(data, 2 * i, (short) (random.nextGaussian() * 1000), true);
+        }
+        return data;
+    }
+
+    public static TestSettings settings(int sampleRate) {
+        TestSettings settings = new TestSettings();
+        settings.sampleRate = sampleRate;
+        settings.burstSizeInFrames = burstSizeInFrames(sampleRate);
+        settings.beginSignal = pulse(32);
+        settings.beginSignalSizeInBytes = settings.beginSignal.capacity();
+        settings.endSignal = chirp(sampleRate, 300);
+        settings.endSignalSizeInBytes = settings.endSignal.capacity();
+        return settings;
+    }
+}
@@ -0,0 +1,52 @@
+package com.facebook.audiolat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// On-line analysis cost: one burst through the latency detector (begin and
+// end correlators), and the FFT it uses for the end signal.
+@State(Scope.Thread)
+public class CorrelationBenchmark {
+    @Param({"8000", "16000", "48000"})
+    public int sampleRate;
+
+    private LatencyDetector mDetector;
+    private byte[] mBurst;
+    private Fft mFft;
+    private double[] mRe;
+    private double[] mIm;
+    private int mLatencies = 0;
+
+    @Setup
+    public void setup() {
+        TestSettings settings = BenchmarkSignals.settings(sampleRate);
+        mDetector = new LatencyDetector(settings.beginSignal, settings.beginSignalSizeInBytes,
+            settings.endSignal, settings.endSignalSizeInBytes, sampleRate,
+            LatencyDetector.DEFAULT_THRESHOLD, 1000.0, new LatencyDetector.Listener() {
+                @Override
+                public void onLatency(long beginFrame, long endFrame, double delayMs, float score,
+                        double snrDb) {
+                    mLatencies++;
+                }
+            });
+        mBurst = BenchmarkSignals.noise(settings.burstSizeInFrames, 1);
+        mFft = new Fft(Fft.nextPowerOfTwo(2 * settings.endSignalSizeInBytes / 2));
+        mRe = new double[mFft.size()];
+        mIm = new double[mFft.size()];
+    }
+
+    @Benchmark
+    public int detector() {
+        mDetector.process(mBurst, 0, mBurst.length);
+        return mLatencies;
+    }
+
+    @Benchmark
+    public double[] fft() {
+        mFft.forward(mRe, mIm);
+        return mRe;
+    }
+}
@@ -0,0 +1,56 @@
+package com.facebook.audiolat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Capture path of the java record loop: one burst (with or without the begin
+// signal spliced in) pushed into the capture ring, which is then drained as
+// the writer thread would.
+@State(Scope.Thread)
+public class SpliceBenchmark {
+    @Param({"8000", "16000", "48000"})
+    public int sampleRate;
+
+    private CaptureRing mRing;
+    private LatencyLoop mLoop;
+    private ByteBuffer mBurst;
+
+    @Setup
+    public void setup() {
+        TestSettings settings = BenchmarkSignals.settings(sampleRate);
+        mRing = new CaptureRing(64, 16384);
+        mLoop = new LatencyLoop(settings,
+            new SimulatedBackend(sampleRate, settings.burstSizeInFrames), mRing);
+        byte[] burst = BenchmarkSignals.noise(settings.burstSizeInFrames, 1);
+        mBurst = ByteBuffer.allocateDirect(burst.length).order(ByteOrder.LITTLE_ENDIAN);
+        mBurst.put(burst);
+    }
+
+    private int drain() {
+        mRing.flush();
+        int bytes = 0;
+        ByteBuffer slot;
+        while ((slot = mRing.poll()) != null) {
+            bytes += slot.remaining();
+            mRing.release();
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public int capture() {
+        mLoop.captureBurst(mBurst, mBurst.capacity(), false);
+        return drain();
+    }
+
+    @Benchmark
+    public int captureWithBeginSignal() {
+        mLoop.captureBurst(mBurst, mBurst.capacity(), true);
+        return drain();
+    }
+}
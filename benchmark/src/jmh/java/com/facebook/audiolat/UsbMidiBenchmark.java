@@ -0,0 +1,66 @@
+package com.facebook.audiolat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// USB MIDI parsing of a full-size (64 bytes) bulk transfer of note-on/off
+// events: in the parser buffer (as the reader thread does), replayed from
+// another array, and replayed split at a non-packet boundary.
+@State(Scope.Thread)
+public class UsbMidiBenchmark {
+    private static final int MAX_PACKET_SIZE = 64;
+
+    private UsbMidiParser mParser;
+    private byte[] mTransfer;
+    private int mNotes = 0;
+
+    @Setup
+    public void setup() {
+        mParser = new UsbMidiParser(MAX_PACKET_SIZE, new UsbMidiParser.Listener() {
+            @Override
+            public void onMidiEvent(int cable, int cin, int status, int data1, int data2,
+                    long nanotime, long latencyNs) {
+                if (cin == UsbMidiParser.CIN_NOTE_ON) {
+                    mNotes++;
+                }
+            }
+
+            @Override
+            public void onSysEx(int cable, byte[] data, int length, long nanotime,
+                    long latencyNs) {
+            }
+        });
+        mTransfer = new byte[MAX_PACKET_SIZE];
+        for (int i = 0; i < MAX_PACKET_SIZE; i += 4) {
+            boolean noteOn = (i / 4) % 2 == 0;
+            mTransfer[i] = (byte) (noteOn ? 0x09 : 0x08);
+            mTransfer[i + 1] = (byte) (noteOn ? 0x90 : 0x80);
+            mTransfer[i + 2] = (byte) 60;
+            mTransfer[i + 3] = (byte) (noteOn ? 100 : 0);
+        }
+    }
+
+    @Benchmark
+    public int transfer() {
+        System.arraycopy(mTransfer, 0, mParser.getBuffer(), mParser.getWriteOffset(),
+                mTransfer.length);
+        mParser.onTransfer(mTransfer.length, System.nanoTime());
+        return mNotes;
+    }
+
+    @Benchmark
+    public int parse() {
+        mParser.parse(mTransfer, 0, mTransfer.length, System.nanoTime());
+        return mNotes;
+    }
+
+    @Benchmark
+    public int parseSplit() {
+        long nanotime = System.nanoTime();
+        mParser.parse(mTransfer, 0, 30, nanotime);
+        mParser.parse(mTransfer, 30, 34, nanotime);
+        return mNotes;
+    }
+}
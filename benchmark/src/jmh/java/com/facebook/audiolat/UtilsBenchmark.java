@@ -0,0 +1,47 @@
+package com.facebook.audiolat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Sample conversion and gain kernels, on one burst.
+@State(Scope.Thread)
+public class UtilsBenchmark {
+    @Param({"8000", "16000", "48000"})
+    public int sampleRate;
+
+    private int mNumSamples;
+    private byte[] mBytes;
+    private byte[] mOutput;
+    private float[] mFloats;
+
+    @Setup
+    public void setup() {
+        mNumSamples = BenchmarkSignals.burstSizeInFrames(sampleRate);
+        mBytes = BenchmarkSignals.noise(mNumSamples, 1);
+        mOutput = new byte[mBytes.length];
+        mFloats = new float[mNumSamples];
+        utils.convertBytesToFloats(mBytes, 0, mBytes.length, mFloats, 0, true);
+    }
+
+    @Benchmark
+    public float[] bytesToFloats() {
+        utils.convertBytesToFloats(mBytes, 0, mBytes.length, mFloats, 0, true);
+        return mFloats;
+    }
+
+    @Benchmark
+    public byte[] floatsToBytes() {
+        utils.convertFloatsToBytes(mFloats, 0, mNumSamples, mOutput, 0, true);
+        return mOutput;
+    }
+
+    @Benchmark
+    public byte[] gainRamp() {
+        System.arraycopy(mBytes, 0, mOutput, 0, mBytes.length);
+        utils.gain(mOutput, 0, mOutput.length, 0.5f, 1.0f, true);
+        return mOutput;
+    }
+}
@@ -0,0 +1,68 @@
+#!/usr/bin/env python3
+
+import argparse
+import struct
+import numpy as np
+import pandas as pd
+
+# see EventJournal.java
+MAGIC = b'ALJ1'
+LABELS = ['type', 'trigger_nanotime', 'write_nanotime', 'frames_written',
+          'timestamp_frame_position', 'timestamp_nanotime', 'source',
+          'splice_frame']
+TYPES = {0: 'timer', 1: 'midi'}
+
+
+def parse_journal(filename):
+    with open(filename, 'rb') as f:
+        data = f.read()
+    if data[0:4] != MAGIC:
+        print(f'error: {filename} is not an event journal')
+        return None, 0
+    num_fields, num_records, dropped = struct.unpack('<iii', data[4:16])
+    records = np.frombuffer(data, dtype='<i8', offset=16,
+                            count=num_records * num_fields)
+    records = records.reshape((num_records, num_fields))
+    # older journals have no source (or splice frame) field
+    labels = LABELS[:min(num_fields, len(LABELS))]
+    journal = pd.DataFrame(records[:, :len(labels)], columns=labels)
+    journal['type'] = journal['type'].map(TYPES)
+    journal['trigger_to_write_ms'] = (
+        journal['write_nanotime'] - journal['trigger_nanotime']) / 1e6
+    return journal, dropped
+
+
+def main():
+    parser = argparse.ArgumentParser(
+        description='Parse the javaaudio trigger event journal')
+    parser.add_argument('files', nargs='+', help='journal file to parse')
+    parser.add_argument('-o', '--output', default=None,
+                        help='csv file with the events of all the journals')
+    options = parser.parse_args()
+
+    journals = []
+    for filename in options.files:
+        journal, dropped = parse_journal(filename)
+        if journal is None or len(journal) == 0:
+            continue
+        journals.append(journal.assign(filename=filename))
+        delay = journal['trigger_to_write_ms']
+        print(f'\n***\nfilename: {filename}\nevents: {len(journal)}'
+              f', dropped: {dropped}\ntrigger-to-write delay: '
+              f'p50: {round(np.percentile(delay, 50), 3)} ms'
+              f', p90: {round(np.percentile(delay, 90), 3)} ms'
+              f', max: {round(np.max(delay), 3)} ms\n***')
+        if 'source' in journal:
+            for source, events in journal.groupby('source'):
+                delay = events['trigger_to_write_ms']
+                print(f'source: {source} events: {len(events)} '
+                      f'trigger-to-write delay: '
+                      f'p50: {round(np.percentile(delay, 50), 3)} ms'
+                      f', max: {round(np.max(delay), 3)} ms')
+
+    if options.output is not None and len(journals) > 0:
+        pd.concat(journals).to_csv(options.output, index=False)
+
+
+if __name__ == '__main__':
+    main()